@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+import com.example.android.sunshine.app.utils.PollingCheck;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class TestAppStateStore extends AndroidTestCase {
+
+    private SharedPreferences mPrefs;
+    private String mStatusKey;
+    private String mUnitsKey;
+    private AppStateStore mStore;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        mStatusKey = mContext.getString(R.string.pref_location_status_key);
+        mUnitsKey = mContext.getString(R.string.pref_units_key);
+        mPrefs.edit().remove(mStatusKey).remove(mUnitsKey).commit();
+        mStore = new AppStateStore(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mStore.flush();
+        mPrefs.edit().remove(mStatusKey).remove(mUnitsKey).commit();
+        super.tearDown();
+    }
+
+    public void testWritesAreReadBackBeforeTheyReachDisk() {
+        mStore.setLocationStatus(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN);
+
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN, mStore.getLocationStatus());
+        assertFalse(mPrefs.contains(mStatusKey));
+
+        mStore.flush();
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN,
+                mPrefs.getInt(mStatusKey, -1));
+    }
+
+    public void testWritesAreCoalesced() {
+        long writes = SunshineStats.getCounter(mContext, AppStateStore.STAT_WRITES);
+        long flushes = SunshineStats.getCounter(mContext, AppStateStore.STAT_FLUSHES);
+
+        mStore.setLocationStatus(SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN);
+        mStore.setLocationStatus(SunshineSyncAdapter.LOCATION_STATUS_OK);
+        // Unchanged, so not a write at all
+        mStore.setLocationStatus(SunshineSyncAdapter.LOCATION_STATUS_OK);
+        mStore.setLastNotification(1419033600000L);
+        mStore.flush();
+
+        assertEquals(writes + 3, SunshineStats.getCounter(mContext, AppStateStore.STAT_WRITES));
+        assertEquals(flushes + 1, SunshineStats.getCounter(mContext, AppStateStore.STAT_FLUSHES));
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, mPrefs.getInt(mStatusKey, -1));
+    }
+
+    public void testFlushesOnItsOwn() {
+        mStore.setLocationStatus(SunshineSyncAdapter.LOCATION_STATUS_INVALID);
+
+        new PollingCheck(AppStateStore.FLUSH_DELAY_MILLIS + 3000) {
+            @Override
+            protected boolean check() {
+                return mPrefs.getInt(mStatusKey, -1)
+                        == SunshineSyncAdapter.LOCATION_STATUS_INVALID;
+            }
+        }.run();
+    }
+
+    public void testListenersHearAboutEveryChange() {
+        final List<String> changed = Collections.synchronizedList(new ArrayList<String>());
+        mStore.addListener(new AppStateStore.Listener() {
+            @Override
+            public void onAppStateChanged(String key) {
+                changed.add(key);
+            }
+        });
+
+        // Once for the store's own write...
+        mStore.setLocationStatus(SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID);
+        // ...and once for one made to the preferences directly, e.g. by the settings screen
+        mPrefs.edit().putString(mUnitsKey, mContext.getString(R.string.pref_units_imperial))
+                .commit();
+
+        new PollingCheck(3000) {
+            @Override
+            protected boolean check() {
+                return changed.contains(mStatusKey) && changed.contains(mUnitsKey);
+            }
+        }.run();
+        assertFalse(mStore.isMetric());
+
+        // The store's write landing in the preferences is no news
+        mStore.flush();
+        drainMainThread();
+        assertEquals(2, changed.size());
+    }
+
+    /*
+        The preference listeners run on the main thread, and the store's own listeners in a
+        message they post, so two round trips see everything either would deliver.
+     */
+    private void drainMainThread() {
+        final Handler handler = new Handler(Looper.getMainLooper());
+        final boolean[] drained = new boolean[1];
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (drained) {
+                            drained[0] = true;
+                        }
+                    }
+                });
+            }
+        });
+        new PollingCheck(3000) {
+            @Override
+            protected boolean check() {
+                synchronized (drained) {
+                    return drained[0];
+                }
+            }
+        }.run();
+    }
+}
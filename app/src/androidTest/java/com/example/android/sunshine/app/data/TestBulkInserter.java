@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Locale;
+
+public class TestBulkInserter extends AndroidTestCase {
+    public static final String LOG_TAG = TestBulkInserter.class.getSimpleName();
+
+    // From one sync's worth of days up to years of them
+    private static final int[] BENCHMARK_ROWS = {14, 100, 1000, 10000, 100000};
+    private static final long DAY_MILLIS = 1000 * 60 * 60 * 24;
+
+    private SQLiteDatabase mDb;
+    private long mLocationRowId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = new WeatherDbHelper(mContext).getWritableDatabase();
+        deleteAll();
+        mLocationRowId = mDb.insert(LocationEntry.TABLE_NAME, null,
+                TestUtilities.createNorthPoleLocationValues());
+        assertTrue(mLocationRowId != -1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        mDb.close();
+        super.tearDown();
+    }
+
+    private void deleteAll() {
+        mDb.delete(WeatherEntry.TABLE_NAME, null, null);
+        mDb.delete(LocationEntry.TABLE_NAME, null, null);
+    }
+
+    public void testInsertMatchesInsert() {
+        ContentValues values = TestUtilities.createWeatherValues(mLocationRowId);
+        BulkInserter inserter = new BulkInserter(mDb, WeatherProvider.WEATHER_INSERT);
+        try {
+            assertTrue(inserter.canBind(values));
+            inserter.bind(values);
+            assertTrue(inserter.executeInsert() != -1);
+        } finally {
+            inserter.close();
+        }
+
+        Cursor cursor = mDb.query(WeatherEntry.TABLE_NAME, null, null, null, null, null, null);
+        try {
+            assertTrue("No row from the compiled insert", cursor.moveToFirst());
+            TestUtilities.validateCurrentRecord("Compiled insert stored different values",
+                    cursor, values);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testUnknownColumnIsNotBound() {
+        ContentValues values = TestUtilities.createWeatherValues(mLocationRowId);
+        values.put("not_a_column", 1);
+        BulkInserter inserter = new BulkInserter(mDb, WeatherProvider.WEATHER_INSERT);
+        try {
+            assertFalse(inserter.canBind(values));
+        } finally {
+            inserter.close();
+        }
+    }
+
+    public void testMissingRequiredColumnIsSkipped() {
+        ContentValues values = TestUtilities.createWeatherValues(mLocationRowId);
+        values.remove(WeatherEntry.COLUMN_SHORT_DESC);
+        BulkInserter inserter = new BulkInserter(mDb, WeatherProvider.WEATHER_INSERT);
+        try {
+            assertTrue(inserter.canBind(values));
+            inserter.bind(values);
+            assertEquals(-1, inserter.executeInsert());
+        } finally {
+            inserter.close();
+        }
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, WeatherEntry.TABLE_NAME));
+    }
+
+    // Not a pass/fail test: logs rows per second for the compiled statement and for insert(),
+    // both normalizing every date as the provider does
+    public void testBulkInsertBenchmark() {
+        // Warm up both paths before timing
+        insertCompiled(BENCHMARK_ROWS[1]);
+        insertEach(BENCHMARK_ROWS[1]);
+
+        for (int rows : BENCHMARK_ROWS) {
+            long eachMillis = insertEach(rows);
+            long compiledMillis = insertCompiled(rows);
+            Log.i(LOG_TAG, String.format(Locale.US,
+                    "%d rows: insert() %.0f rows/s, compiled %.0f rows/s",
+                    rows, rowsPerSecond(rows, eachMillis), rowsPerSecond(rows, compiledMillis)));
+        }
+    }
+
+    private long insertEach(int rows) {
+        ContentValues values = TestUtilities.createWeatherValues(mLocationRowId);
+        long start = SystemClock.elapsedRealtime();
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < rows; i++) {
+                values.put(WeatherEntry.COLUMN_DATE,
+                        WeatherContract.normalizeDate(TestUtilities.TEST_DATE + i * DAY_MILLIS));
+                assertTrue(mDb.insert(WeatherEntry.TABLE_NAME, null, values) != -1);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        return finish(rows, start);
+    }
+
+    private long insertCompiled(int rows) {
+        ContentValues values = TestUtilities.createWeatherValues(mLocationRowId);
+        int dateIndex = WeatherProvider.WEATHER_INSERT.indexOf(WeatherEntry.COLUMN_DATE);
+        long start = SystemClock.elapsedRealtime();
+        mDb.beginTransaction();
+        try {
+            BulkInserter inserter = new BulkInserter(mDb, WeatherProvider.WEATHER_INSERT);
+            try {
+                Time time = new Time();
+                for (int i = 0; i < rows; i++) {
+                    inserter.bind(values);
+                    inserter.bindLong(dateIndex, WeatherContract.normalizeDate(time,
+                            TestUtilities.TEST_DATE + i * DAY_MILLIS));
+                    assertTrue(inserter.executeInsert() != -1);
+                }
+            } finally {
+                inserter.close();
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        return finish(rows, start);
+    }
+
+    /**
+     * Checks every row went in and clears them for the next run.
+     * @return the milliseconds since start, before clearing
+     */
+    private long finish(int rows, long start) {
+        long millis = SystemClock.elapsedRealtime() - start;
+        assertEquals(rows, DatabaseUtils.queryNumEntries(mDb, WeatherEntry.TABLE_NAME));
+        mDb.delete(WeatherEntry.TABLE_NAME, null, null);
+        return millis;
+    }
+
+    private static double rowsPerSecond(int rows, long millis) {
+        return rows * 1000.0 / Math.max(millis, 1);
+    }
+}
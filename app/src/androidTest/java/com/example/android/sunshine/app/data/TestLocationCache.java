@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.SunshineStats;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.utils.PollingCheck;
+
+public class TestLocationCache extends AndroidTestCase {
+
+    private LocationCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mCache = new LocationCache(mContext);
+    }
+
+    public void testLookupIsCached() {
+        long locationRowId = insertNorthPole();
+        long hits = SunshineStats.getCounter(mContext, LocationCache.STAT_HIT);
+
+        assertEquals(locationRowId, mCache.getLocationId(TestUtilities.TEST_LOCATION));
+        assertEquals(locationRowId, mCache.getLocationId(TestUtilities.TEST_LOCATION));
+        assertEquals(hits + 1, SunshineStats.getCounter(mContext, LocationCache.STAT_HIT));
+
+        assertEquals(-1, mCache.getLocationId("nowhere"));
+    }
+
+    public void testCoordinatesFallback() {
+        long locationRowId = insertNorthPole();
+
+        // A picked address the location table doesn't know, right next to the North Pole
+        assertEquals(locationRowId,
+                mCache.getLocationId("1 Santa Claus Lane", 64.75, -147.35));
+        assertEquals(-1, mCache.getLocationId("1 Santa Claus Lane", 0, 0));
+    }
+
+    public void testCoordinatesFallbackPicksNearest() {
+        // Inside the tolerance too, and stored first, so only ordering makes it lose
+        ContentValues farther = TestUtilities.createNorthPoleLocationValues();
+        farther.put(LocationEntry.COLUMN_LOCATION_SETTING, "farther");
+        farther.put(LocationEntry.COLUMN_COORD_LAT, 64.79);
+        farther.put(LocationEntry.COLUMN_COORD_LONG, -147.39);
+        mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, farther);
+        long locationRowId = insertNorthPole();
+
+        assertEquals(locationRowId,
+                mCache.getLocationId("1 Santa Claus Lane", 64.75, -147.35));
+    }
+
+    public void testInvalidatedByLocationChanges() {
+        long locationRowId = insertNorthPole();
+        assertEquals(locationRowId, mCache.getLocationId(TestUtilities.TEST_LOCATION));
+
+        // Row ids get reused once the table is empty, so put something else in first
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        ContentValues placeholder = TestUtilities.createNorthPoleLocationValues();
+        placeholder.put(LocationEntry.COLUMN_LOCATION_SETTING, "placeholder");
+        mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, placeholder);
+        final long replacementId = insertNorthPole();
+        assertTrue(replacementId != locationRowId);
+
+        // The observer runs on a binder thread, so give it a moment
+        new PollingCheck(5000) {
+            @Override
+            protected boolean check() {
+                return mCache.getLocationId(TestUtilities.TEST_LOCATION) == replacementId;
+            }
+        }.run();
+    }
+
+    private long insertNorthPole() {
+        ContentValues values = TestUtilities.createNorthPoleLocationValues();
+        Uri uri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, values);
+        return ContentUris.parseId(uri);
+    }
+}
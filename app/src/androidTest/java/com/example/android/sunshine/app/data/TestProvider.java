@@ -16,6 +16,8 @@
 package com.example.android.sunshine.app.data;
 
 import android.content.ComponentName;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.pm.PackageManager;
@@ -27,9 +29,13 @@ import android.os.Build;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncLogEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
+import java.util.ArrayList;
+
 /*
     Note: This is not a complete set of tests of the Sunshine ContentProvider, but it does test
     that at least the basic functionality has been implemented correctly.
@@ -61,6 +67,16 @@ public class TestProvider extends AndroidTestCase {
                 null,
                 null
         );
+        mContext.getContentResolver().delete(
+                SyncLogEntry.CONTENT_URI,
+                null,
+                null
+        );
+        mContext.getContentResolver().delete(
+                HourlyEntry.CONTENT_URI,
+                null,
+                null
+        );
 
         Cursor cursor = mContext.getContentResolver().query(
                 WeatherEntry.CONTENT_URI,
@@ -160,6 +176,16 @@ public class TestProvider extends AndroidTestCase {
         // vnd.android.cursor.dir/com.example.android.sunshine.app/location
         assertEquals("Error: the LocationEntry CONTENT_URI should return LocationEntry.CONTENT_TYPE",
                 LocationEntry.CONTENT_TYPE, type);
+
+        // content://com.example.android.sunshine.app/sync_log/summary
+        type = mContext.getContentResolver().getType(SyncLogEntry.SUMMARY_URI);
+        assertEquals("Error: the SyncLogEntry SUMMARY_URI should return SyncLogEntry.CONTENT_TYPE",
+                SyncLogEntry.CONTENT_TYPE, type);
+
+        // content://com.example.android.sunshine.app/hourly/94074
+        type = mContext.getContentResolver().getType(HourlyEntry.buildHourlyLocation(testLocation));
+        assertEquals("Error: the HourlyEntry CONTENT_URI with location should return HourlyEntry.CONTENT_TYPE",
+                HourlyEntry.CONTENT_TYPE, type);
     }
 
 
@@ -512,4 +538,242 @@ public class TestProvider extends AndroidTestCase {
         }
         cursor.close();
     }
+
+    /*
+        Diff mode only writes the days that changed, keeps every row's _ID and reports the
+        changed range on the notification uri.
+     */
+    public void testDiffBulkInsert() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+        Uri diffUri = WeatherEntry.buildWeatherDiffUri(TestUtilities.TEST_LOCATION);
+
+        ContentValues[] values = createBulkInsertWeatherValues(locationRowId);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT,
+                mContext.getContentResolver().bulkInsert(diffUri, values));
+        long[] ids = readWeatherIds();
+
+        // The same forecast again changes nothing
+        values = createBulkInsertWeatherValues(locationRowId);
+        assertEquals(0, mContext.getContentResolver().bulkInsert(diffUri, values));
+
+        // Change one day
+        values = createBulkInsertWeatherValues(locationRowId);
+        values[3].put(WeatherEntry.COLUMN_MAX_TEMP, 99);
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION), true, weatherObserver);
+        assertEquals(1, mContext.getContentResolver().bulkInsert(diffUri, values));
+        weatherObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+
+        long[] idsAfter = readWeatherIds();
+        assertEquals(ids.length, idsAfter.length);
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals("Row " + i + " should have kept its id", ids[i], idsAfter[i]);
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                null, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertTrue(cursor.moveToPosition(3));
+        TestUtilities.validateCurrentRecord("testDiffBulkInsert. Error validating changed day",
+                cursor, values[3]);
+        cursor.close();
+    }
+
+    private long[] readWeatherIds() {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID}, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        long[] ids = new long[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(0);
+        }
+        cursor.close();
+        return ids;
+    }
+
+    /*
+        A whole sync's worth of operations applied as a batch lands in one transaction and
+        produces exactly one change notification, where the same calls made one at a time
+        notify once each.
+     */
+    public void testApplyBatchNotifiesOnce() throws Exception {
+        ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+        ContentValues[] weatherValues = createBulkInsertWeatherValues(0);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                .withValues(locationValues).build());
+        Uri diffUri = WeatherEntry.buildWeatherDiffUri(TestUtilities.TEST_LOCATION);
+        for (ContentValues values : weatherValues) {
+            values.remove(WeatherEntry.COLUMN_LOC_KEY);
+            operations.add(ContentProviderOperation.newInsert(diffUri).withValues(values)
+                    .withValueBackReference(WeatherEntry.COLUMN_LOC_KEY, 0).build());
+        }
+        operations.add(ContentProviderOperation.newDelete(WeatherEntry.CONTENT_URI)
+                .withSelection(WeatherEntry.COLUMN_DATE + " < ?",
+                        new String[]{Long.toString(TestUtilities.TEST_DATE)})
+                .build());
+
+        TestUtilities.TestContentObserver observer = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherContract.BASE_CONTENT_URI, true, observer);
+        ContentProviderResult[] results = mContext.getContentResolver()
+                .applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+        int notifications = observer.waitForNotificationsAndCount(1000);
+        mContext.getContentResolver().unregisterContentObserver(observer);
+
+        assertEquals("Batch should notify exactly once", 1, notifications);
+        assertEquals(operations.size(), results.length);
+        long locationRowId = ContentUris.parseId(results[0].uri);
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                null, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals(locationRowId,
+                cursor.getLong(cursor.getColumnIndex(WeatherEntry.COLUMN_LOC_KEY)));
+        cursor.close();
+
+        // The same work without a batch, for comparison
+        deleteAllRecords();
+        observer = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherContract.BASE_CONTENT_URI, true, observer);
+        locationRowId = ContentUris.parseId(
+                mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, locationValues));
+        for (ContentValues values : weatherValues) {
+            values.put(WeatherEntry.COLUMN_LOC_KEY, locationRowId);
+        }
+        mContext.getContentResolver().bulkInsert(diffUri, weatherValues);
+        notifications = observer.waitForNotificationsAndCount(1000);
+        mContext.getContentResolver().unregisterContentObserver(observer);
+        assertTrue("Separate calls should notify separately, got " + notifications,
+                notifications > 1);
+    }
+
+    /*
+        The sync journal keeps only the newest MAX_ROWS syncs, and its summary reports nearest
+        rank percentiles per stage, leaving out syncs that never reached a stage.
+     */
+    public void testSyncLogBoundedAndSummarized() {
+        int extra = 10;
+        for (int i = 1; i <= SyncLogEntry.MAX_ROWS + extra; i++) {
+            ContentValues values = new ContentValues();
+            values.put(SyncLogEntry.COLUMN_START, TestUtilities.TEST_DATE + i);
+            values.put(SyncLogEntry.COLUMN_TOTAL_MS, i);
+            values.put(SyncLogEntry.COLUMN_FETCH_MS, i * 2);
+            values.put(SyncLogEntry.COLUMN_OUTCOME, 0);
+            if (i % 10 == 0) {
+                // Only some syncs pushed to the watch
+                values.put(SyncLogEntry.COLUMN_WATCH_MS, i);
+            }
+            Uri uri = mContext.getContentResolver().insert(SyncLogEntry.CONTENT_URI, values);
+            assertTrue(ContentUris.parseId(uri) != -1);
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(SyncLogEntry.CONTENT_URI,
+                new String[]{SyncLogEntry.COLUMN_TOTAL_MS}, null, null,
+                SyncLogEntry.COLUMN_TOTAL_MS + " ASC");
+        assertEquals("Journal should be bounded", SyncLogEntry.MAX_ROWS, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals("Oldest rows should go first", extra + 1, cursor.getLong(0));
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(SyncLogEntry.SUMMARY_URI,
+                null, null, null, null);
+        assertEquals(SyncLogEntry.STAGE_COLUMNS.length, cursor.getCount());
+        int stageIndex = cursor.getColumnIndex(SyncLogEntry.COLUMN_STAGE);
+        int samplesIndex = cursor.getColumnIndex(SyncLogEntry.COLUMN_SAMPLES);
+        int p50Index = cursor.getColumnIndex(SyncLogEntry.COLUMN_P50);
+        int p95Index = cursor.getColumnIndex(SyncLogEntry.COLUMN_P95);
+        while (cursor.moveToNext()) {
+            String stage = cursor.getString(stageIndex);
+            if (SyncLogEntry.COLUMN_TOTAL_MS.equals(stage)) {
+                // 11..210
+                assertEquals(SyncLogEntry.MAX_ROWS, cursor.getInt(samplesIndex));
+                assertEquals(110, cursor.getLong(p50Index));
+                assertEquals(200, cursor.getLong(p95Index));
+            } else if (SyncLogEntry.COLUMN_FETCH_MS.equals(stage)) {
+                assertEquals(220, cursor.getLong(p50Index));
+                assertEquals(400, cursor.getLong(p95Index));
+            } else if (SyncLogEntry.COLUMN_WATCH_MS.equals(stage)) {
+                // 20, 30, .. 210
+                assertEquals(20, cursor.getInt(samplesIndex));
+                assertEquals(110, cursor.getLong(p50Index));
+                assertEquals(200, cursor.getLong(p95Index));
+            } else if (SyncLogEntry.COLUMN_DELETE_MS.equals(stage)) {
+                assertEquals(0, cursor.getInt(samplesIndex));
+                assertTrue(cursor.isNull(p50Index));
+            }
+        }
+        cursor.close();
+    }
+
+    private static final long THREE_HOURS_MILLIS = 1000 * 60 * 60 * 3;
+
+    static ContentValues[] createHourlyValues(long firstTime, int count) {
+        ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = new ContentValues();
+            values[i].put(HourlyEntry.COLUMN_TIME, firstTime + i * THREE_HOURS_MILLIS);
+            values[i].put(HourlyEntry.COLUMN_TEMP, HourlyEntry.encodeTemperature(-3.25 + i));
+            values[i].put(HourlyEntry.COLUMN_WEATHER_ID, i % 2 == 0 ? 800 : 500);
+            values[i].put(HourlyEntry.COLUMN_PRECIPITATION, HourlyEntry.encodePrecipitation(
+                    i % 2 == 0 ? 0 : 0.25 * i));
+        }
+        return values;
+    }
+
+    /*
+        A location's 3-hourly points go in as one batch that replaces the previous one, never
+        keep more than MAX_POINTS_PER_LOCATION, and can be read back by time range.
+     */
+    public void testHourlyBulkInsertAndRange() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+        long firstTime = TestUtilities.TEST_DATE * 1000;
+        Uri hourlyUri = HourlyEntry.buildHourlyLocation(TestUtilities.TEST_LOCATION);
+
+        TestUtilities.TestContentObserver hourlyObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(hourlyUri, true, hourlyObserver);
+        // More than a sync may keep
+        ContentValues[] values = createHourlyValues(firstTime, HourlyEntry.MAX_POINTS_PER_LOCATION + 8);
+        assertEquals(HourlyEntry.MAX_POINTS_PER_LOCATION,
+                mContext.getContentResolver().bulkInsert(hourlyUri, values));
+        hourlyObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(hourlyObserver);
+
+        // The next sync starts a day later; the points before it go
+        long laterTime = firstTime + 8 * THREE_HOURS_MILLIS;
+        values = createHourlyValues(laterTime, HourlyEntry.MAX_POINTS_PER_LOCATION);
+        assertEquals(HourlyEntry.MAX_POINTS_PER_LOCATION,
+                mContext.getContentResolver().bulkInsert(hourlyUri, values));
+        Cursor cursor = mContext.getContentResolver().query(HourlyEntry.CONTENT_URI,
+                null, null, null, null);
+        assertEquals("Table should be bounded", HourlyEntry.MAX_POINTS_PER_LOCATION,
+                cursor.getCount());
+        cursor.close();
+
+        // One day's points, in time order
+        cursor = mContext.getContentResolver().query(
+                HourlyEntry.buildHourlyLocationWithRange(TestUtilities.TEST_LOCATION,
+                        laterTime, laterTime + 8 * THREE_HOURS_MILLIS),
+                new String[]{HourlyEntry.COLUMN_LOC_KEY, HourlyEntry.COLUMN_TIME,
+                        HourlyEntry.COLUMN_TEMP, HourlyEntry.COLUMN_WEATHER_ID,
+                        HourlyEntry.COLUMN_PRECIPITATION},
+                null, null, null);
+        assertEquals(8, cursor.getCount());
+        for (int i = 0; cursor.moveToNext(); i++) {
+            values[i].put(HourlyEntry.COLUMN_LOC_KEY, locationRowId);
+            TestUtilities.validateCurrentRecord("testHourlyBulkInsertAndRange. Point " + i,
+                    cursor, values[i]);
+        }
+        cursor.close();
+
+        // A location that isn't stored gets nothing
+        assertEquals(0, mContext.getContentResolver().bulkInsert(
+                HourlyEntry.buildHourlyLocation("nowhere"), createHourlyValues(firstTime, 4)));
+    }
 }
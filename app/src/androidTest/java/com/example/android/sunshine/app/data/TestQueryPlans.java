@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncLogEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Checks the EXPLAIN QUERY PLAN of every query the provider runs on a hot path, so a schema
+    change that turns one of them into a table scan, or into a sort, fails here rather than
+    quietly on devices with a few weeks of forecasts.
+
+    The plan wording changed between SQLite versions ("SEARCH TABLE weather" became
+    "SEARCH weather"), so only the parts every version shares are checked.
+ */
+public class TestQueryPlans extends AndroidTestCase {
+
+    // What ForecastFragment and the detail widget read
+    private static final String[] FORECAST_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG
+    };
+
+    private static final String SORT_BY_DATE = WeatherEntry.COLUMN_DATE + " ASC";
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = new WeatherDbHelper(mContext).getReadableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    // "weather/*", the forecast list
+    public void testWeatherWithLocation() {
+        List<String> plan = explainJoin(WeatherProvider.sWeatherByLocationSettingQueryBuilder,
+                FORECAST_COLUMNS, WeatherProvider.sLocationSettingSelection, SORT_BY_DATE,
+                TestUtilities.TEST_LOCATION);
+        assertSearched(plan, LocationEntry.TABLE_NAME);
+        assertCoveredBy(plan, WeatherEntry.TABLE_NAME, WeatherDbHelper.WEATHER_LOCATION_DATE_INDEX);
+        assertNotSorted(plan);
+    }
+
+    // "weather/*?date=", the forecast list from today
+    public void testWeatherWithLocationAndStartDate() {
+        List<String> plan = explainJoin(WeatherProvider.sWeatherByLocationSettingQueryBuilder,
+                FORECAST_COLUMNS, WeatherProvider.sLocationSettingWithStartDateSelection,
+                SORT_BY_DATE, TestUtilities.TEST_LOCATION, Long.toString(TestUtilities.TEST_DATE));
+        assertSearched(plan, LocationEntry.TABLE_NAME);
+        assertCoveredBy(plan, WeatherEntry.TABLE_NAME, WeatherDbHelper.WEATHER_LOCATION_DATE_INDEX);
+        assertNotSorted(plan);
+    }
+
+    // "weather/*/#", the detail screen
+    public void testWeatherWithLocationAndDate() {
+        List<String> plan = explainJoin(WeatherProvider.sWeatherByLocationSettingQueryBuilder,
+                null, WeatherProvider.sLocationSettingAndDaySelection, null,
+                TestUtilities.TEST_LOCATION, Long.toString(TestUtilities.TEST_DATE));
+        assertSearched(plan, LocationEntry.TABLE_NAME);
+        assertSearched(plan, WeatherEntry.TABLE_NAME);
+    }
+
+    // "weather" by location id, for the widgets, Muzei, the watch and the notification
+    public void testWeatherFromDate() {
+        List<String> plan = explain(SQLiteQueryBuilder.buildQueryString(false,
+                WeatherEntry.TABLE_NAME,
+                new String[]{WeatherEntry.COLUMN_WEATHER_ID, WeatherEntry.COLUMN_SHORT_DESC,
+                        WeatherEntry.COLUMN_MAX_TEMP, WeatherEntry.COLUMN_MIN_TEMP},
+                LocationCache.WEATHER_FROM_DATE_SELECTION, null, null, SORT_BY_DATE, null),
+                LocationCache.weatherSelectionArgs(1, TestUtilities.TEST_DATE));
+        assertCoveredBy(plan, WeatherEntry.TABLE_NAME, WeatherDbHelper.WEATHER_LOCATION_DATE_INDEX);
+        assertNotSorted(plan);
+
+        plan = explain(SQLiteQueryBuilder.buildQueryString(false, WeatherEntry.TABLE_NAME, null,
+                LocationCache.WEATHER_ON_DATE_SELECTION, null, null, null, null),
+                LocationCache.weatherSelectionArgs(1, TestUtilities.TEST_DATE));
+        assertSearched(plan, WeatherEntry.TABLE_NAME);
+    }
+
+    // "weather" deletes: days gone by after every sync, and the locations nobody uses any more
+    public void testWeatherDeletes() {
+        assertSearched(explain("DELETE FROM " + WeatherEntry.TABLE_NAME + " WHERE " +
+                WeatherEntry.COLUMN_DATE + " <= ?", Long.toString(TestUtilities.TEST_DATE)),
+                WeatherEntry.TABLE_NAME);
+        assertSearched(explain("DELETE FROM " + WeatherEntry.TABLE_NAME + " WHERE " +
+                WeatherEntry.COLUMN_LOC_KEY + " IN (?,?)", "1", "2"),
+                WeatherEntry.TABLE_NAME);
+    }
+
+    // "location", by setting and by id
+    public void testLocation() {
+        assertSearched(explain(SQLiteQueryBuilder.buildQueryString(false,
+                LocationEntry.TABLE_NAME, null,
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?", null, null, null, null),
+                TestUtilities.TEST_LOCATION), LocationEntry.TABLE_NAME);
+        assertSearched(explain(SQLiteQueryBuilder.buildQueryString(false,
+                LocationEntry.TABLE_NAME, null,
+                LocationEntry._ID + " = ?", null, null, null, null), "1"),
+                LocationEntry.TABLE_NAME);
+    }
+
+    // "hourly/*?start=&end="
+    public void testHourlyWithLocationAndRange() {
+        List<String> plan = explainJoin(WeatherProvider.sHourlyByLocationSettingQueryBuilder,
+                null, WeatherProvider.sLocationSettingWithTimeRangeSelection,
+                HourlyEntry.COLUMN_TIME + " ASC", TestUtilities.TEST_LOCATION, "0", "1");
+        assertSearched(plan, LocationEntry.TABLE_NAME);
+        assertSearched(plan, HourlyEntry.TABLE_NAME);
+        assertNotSorted(plan);
+    }
+
+    // "sync_log": the summary reads every row on purpose, but trimming the journal mustn't
+    public void testSyncLogTrim() {
+        assertSearched(explain("DELETE FROM " + SyncLogEntry.TABLE_NAME + " WHERE " +
+                SyncLogEntry._ID + " <= ?", "1"), SyncLogEntry.TABLE_NAME);
+    }
+
+    private List<String> explainJoin(SQLiteQueryBuilder builder, String[] projection,
+                                     String selection, String sortOrder, String... args) {
+        return explain(SQLiteQueryBuilder.buildQueryString(false, builder.getTables(),
+                projection, selection, null, null, sortOrder, null), args);
+    }
+
+    /**
+     * @return the detail column of every row of the plan
+     */
+    private List<String> explain(String sql, String... args) {
+        List<String> plan = new ArrayList<String>();
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            int detail = cursor.getColumnIndex("detail");
+            while (cursor.moveToNext()) {
+                plan.add(cursor.getString(detail));
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan;
+    }
+
+    private static void assertSearched(List<String> plan, String table) {
+        assertNotNull("No step for " + table + " in " + plan, findStep(plan, table, "SEARCH"));
+        assertNull("Scans " + table + ": " + plan, findStep(plan, table, "SCAN"));
+    }
+
+    private static void assertCoveredBy(List<String> plan, String table, String index) {
+        assertSearched(plan, table);
+        String step = findStep(plan, table, "SEARCH");
+        assertTrue("Expected " + table + " to be read from " + index + " alone: " + plan,
+                step.contains("COVERING INDEX " + index));
+    }
+
+    private static void assertNotSorted(List<String> plan) {
+        for (String step : plan) {
+            assertFalse("Sorts the results: " + plan, step.contains("TEMP B-TREE"));
+        }
+    }
+
+    private static String findStep(List<String> plan, String table, String operation) {
+        for (String step : plan) {
+            if (step.startsWith(operation + " ") && (step.startsWith(operation + " " + table + " ")
+                    || step.startsWith(operation + " TABLE " + table + " "))) {
+                return step;
+            }
+        }
+        return null;
+    }
+}
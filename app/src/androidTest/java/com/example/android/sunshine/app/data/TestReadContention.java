@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/*
+    Reads of the forecast against one large bulk insert, the way a loader or widget meets a
+    sync.  With the write-ahead log, reads keep going while the insert's transaction is open
+    and see either none or all of it.
+ */
+public class TestReadContention extends AndroidTestCase {
+    public static final String LOG_TAG = TestReadContention.class.getSimpleName();
+
+    private static final int BULK_ROWS = 5000;
+    private static final int BASELINE_READS = 20;
+    private static final long DAY_MILLIS = 1000 * 60 * 60 * 24;
+
+    private volatile boolean mInserting;
+    private volatile int mInserted = -1;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    public void testWriteAheadLogging() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        try {
+            assertEquals("wal", DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null)
+                    .toLowerCase(Locale.US));
+        } finally {
+            db.close();
+        }
+    }
+
+    public void testCheckpointCopiesWholeLog() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        WeatherDbHelper helper = new WeatherDbHelper(mContext);
+        try {
+            // Nobody is reading, so nothing holds part of the log back
+            assertFalse(helper.checkpoint());
+        } finally {
+            helper.close();
+        }
+    }
+
+    public void testReadsDuringBulkInsert() throws Exception {
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        final ContentValues[] values = createWeatherValues(ContentUris.parseId(locationUri));
+        Uri readUri = WeatherEntry.buildWeatherLocationWithStartDate(
+                TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE);
+
+        List<Long> baseline = new ArrayList<Long>();
+        for (int i = 0; i < BASELINE_READS; i++) {
+            long start = SystemClock.elapsedRealtime();
+            assertEquals(0, readCount(readUri));
+            baseline.add(SystemClock.elapsedRealtime() - start);
+        }
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mInserting = true;
+                try {
+                    mInserted = mContext.getContentResolver().bulkInsert(
+                            WeatherEntry.CONTENT_URI, values);
+                } finally {
+                    mInserting = false;
+                }
+            }
+        });
+        long insertStart = SystemClock.elapsedRealtime();
+        writer.start();
+        while (!mInserting && writer.isAlive()) {
+            Thread.yield();
+        }
+
+        // Reads that started and finished while the insert was running
+        List<Long> during = new ArrayList<Long>();
+        while (mInserting) {
+            long start = SystemClock.elapsedRealtime();
+            int count = readCount(readUri);
+            long latency = SystemClock.elapsedRealtime() - start;
+            assertTrue("A read saw part of a transaction: " + count,
+                    count == 0 || count == BULK_ROWS);
+            if (mInserting) {
+                during.add(latency);
+            }
+        }
+        writer.join(30000);
+        long insertMillis = SystemClock.elapsedRealtime() - insertStart;
+        assertEquals(BULK_ROWS, mInserted);
+        assertEquals(BULK_ROWS, readCount(readUri));
+
+        Log.d(LOG_TAG, String.format(Locale.US,
+                "Insert of %d rows: %dms. Reads alone: %s. Reads during the insert: %d, %s",
+                BULK_ROWS, insertMillis, summarize(baseline), during.size(), summarize(during)));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            // Under the rollback journal the first read would wait out the whole insert
+            assertTrue("Reads were held up by the insert", during.size() > 1);
+        }
+    }
+
+    private int readCount(Uri uri) {
+        Cursor cursor = mContext.getContentResolver().query(uri,
+                new String[]{WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MAX_TEMP},
+                null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static ContentValues[] createWeatherValues(long locationRowId) {
+        ContentValues[] values = new ContentValues[BULK_ROWS];
+        for (int i = 0; i < BULK_ROWS; i++) {
+            values[i] = TestUtilities.createWeatherValues(locationRowId);
+            values[i].put(WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE + i * DAY_MILLIS);
+        }
+        return values;
+    }
+
+    private static String summarize(List<Long> latencies) {
+        if (latencies.isEmpty()) {
+            return "none";
+        }
+        List<Long> sorted = new ArrayList<Long>(latencies);
+        Collections.sort(sorted);
+        return String.format(Locale.US, "p50 %dms, max %dms",
+                sorted.get((sorted.size() - 1) / 2), sorted.get(sorted.size() - 1));
+    }
+}
@@ -36,6 +36,12 @@ public class TestUriMatcher extends AndroidTestCase {
     private static final Uri TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(LOCATION_QUERY, TEST_DATE);
     // content://com.example.android.sunshine.app/location"
     private static final Uri TEST_LOCATION_DIR = WeatherContract.LocationEntry.CONTENT_URI;
+    private static final Uri TEST_SYNC_LOG_DIR = WeatherContract.SyncLogEntry.CONTENT_URI;
+    private static final Uri TEST_SYNC_LOG_SUMMARY = WeatherContract.SyncLogEntry.SUMMARY_URI;
+    private static final Uri TEST_HOURLY_DIR = WeatherContract.HourlyEntry.CONTENT_URI;
+    private static final Uri TEST_HOURLY_WITH_LOCATION_DIR =
+            WeatherContract.HourlyEntry.buildHourlyLocationWithRange(LOCATION_QUERY,
+                    TEST_DATE * 1000, (TEST_DATE + 86400) * 1000);
 
     /*
         Students: This function tests that your UriMatcher returns the correct integer value
@@ -53,5 +59,13 @@ public class TestUriMatcher extends AndroidTestCase {
                 testMatcher.match(TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR), WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE);
         assertEquals("Error: The LOCATION URI was matched incorrectly.",
                 testMatcher.match(TEST_LOCATION_DIR), WeatherProvider.LOCATION);
+        assertEquals("Error: The SYNC LOG URI was matched incorrectly.",
+                testMatcher.match(TEST_SYNC_LOG_DIR), WeatherProvider.SYNC_LOG);
+        assertEquals("Error: The SYNC LOG SUMMARY URI was matched incorrectly.",
+                testMatcher.match(TEST_SYNC_LOG_SUMMARY), WeatherProvider.SYNC_LOG_SUMMARY);
+        assertEquals("Error: The HOURLY URI was matched incorrectly.",
+                testMatcher.match(TEST_HOURLY_DIR), WeatherProvider.HOURLY);
+        assertEquals("Error: The HOURLY WITH LOCATION URI was matched incorrectly.",
+                testMatcher.match(TEST_HOURLY_WITH_LOCATION_DIR), WeatherProvider.HOURLY_WITH_LOCATION);
     }
 }
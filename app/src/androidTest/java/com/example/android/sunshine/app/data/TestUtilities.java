@@ -23,6 +23,7 @@ import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.test.AndroidTestCase;
 
 import com.example.android.sunshine.app.utils.PollingCheck;
@@ -61,7 +62,7 @@ public class TestUtilities extends AndroidTestCase {
     /*
         Students: Use this to create some default weather values for your database tests.
      */
-    static ContentValues createWeatherValues(long locationRowId) {
+    public static ContentValues createWeatherValues(long locationRowId) {
         ContentValues weatherValues = new ContentValues();
         weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationRowId);
         weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, TEST_DATE);
@@ -121,7 +122,8 @@ public class TestUtilities extends AndroidTestCase {
      */
     static class TestContentObserver extends ContentObserver {
         final HandlerThread mHT;
-        boolean mContentChanged;
+        volatile boolean mContentChanged;
+        volatile int mChangeCount;
 
         static TestContentObserver getTestContentObserver() {
             HandlerThread ht = new HandlerThread("ContentObserverThread");
@@ -142,6 +144,7 @@ public class TestUtilities extends AndroidTestCase {
 
         @Override
         public void onChange(boolean selfChange, Uri uri) {
+            mChangeCount++;
             mContentChanged = true;
         }
 
@@ -158,6 +161,22 @@ public class TestUtilities extends AndroidTestCase {
             }.run();
             mHT.quit();
         }
+
+        /**
+         * Waits for the first notification, then gives any stragglers time to arrive.
+         * @return how many notifications were delivered in all
+         */
+        public int waitForNotificationsAndCount(long settleMillis) {
+            new PollingCheck(5000) {
+                @Override
+                protected boolean check() {
+                    return mContentChanged;
+                }
+            }.run();
+            SystemClock.sleep(settleMillis);
+            mHT.quit();
+            return mChangeCount;
+        }
     }
 
     static TestContentObserver getTestContentObserver() {
@@ -42,4 +42,30 @@ public class TestWeatherContract extends AndroidTestCase {
                 locationUri.toString(),
                 "content://com.example.android.sunshine.app/weather/%2FNorth%20Pole");
     }
+
+    public void testBuildHourlyLocationWithRange() {
+        long start = TEST_WEATHER_DATE * 1000;
+        long end = start + 1000 * 60 * 60 * 24;
+        Uri rangeUri = WeatherContract.HourlyEntry.buildHourlyLocationWithRange(
+                TEST_WEATHER_LOCATION, start, end);
+        assertEquals(TEST_WEATHER_LOCATION,
+                WeatherContract.HourlyEntry.getLocationSettingFromUri(rangeUri));
+        assertEquals(start, WeatherContract.HourlyEntry.getStartTimeFromUri(rangeUri));
+        assertEquals(end, WeatherContract.HourlyEntry.getEndTimeFromUri(rangeUri));
+
+        // Without a range, every point
+        Uri locationUri = WeatherContract.HourlyEntry.buildHourlyLocation(TEST_WEATHER_LOCATION);
+        assertEquals(Long.MIN_VALUE, WeatherContract.HourlyEntry.getStartTimeFromUri(locationUri));
+        assertEquals(Long.MAX_VALUE, WeatherContract.HourlyEntry.getEndTimeFromUri(locationUri));
+    }
+
+    public void testHourlyFixedPoint() {
+        assertEquals(-1234, WeatherContract.HourlyEntry.encodeTemperature(-12.34));
+        assertEquals(-12.34, WeatherContract.HourlyEntry.decodeTemperature(-1234), 0);
+        // Rounded to the nearest hundredth rather than cut off
+        assertEquals(1, WeatherContract.HourlyEntry.encodePrecipitation(0.005));
+        assertEquals(0, WeatherContract.HourlyEntry.encodePrecipitation(0.004));
+        assertEquals(3.1, WeatherContract.HourlyEntry.decodePrecipitation(
+                WeatherContract.HourlyEntry.encodePrecipitation(3.1)), 0);
+    }
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.gcm;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.SunshineStats;
+
+import java.util.Arrays;
+
+public class TestWatchUpdateQueue extends AndroidTestCase {
+    private static final String PATH = "/weather";
+    private static final String OTHER_PATH = "/other";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        clearQueue();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        clearQueue();
+        super.tearDown();
+    }
+
+    private void clearQueue() {
+        mContext.getApplicationContext()
+                .getSharedPreferences(WatchUpdateQueue.PREFS_NAME, Context.MODE_PRIVATE)
+                .edit().clear().commit();
+    }
+
+    public void testLatestPayloadReplacesQueuedOne() throws Exception {
+        WatchUpdateQueue.enqueue(mContext, PATH, new byte[]{1});
+        Thread.sleep(20);
+        long age = WatchUpdateQueue.getOldestAge(mContext);
+        WatchUpdateQueue.enqueue(mContext, PATH, new byte[]{2});
+
+        assertEquals(1, WatchUpdateQueue.getDepth(mContext));
+        assertTrue(Arrays.equals(new byte[]{2}, WatchUpdateQueue.getPayload(mContext, PATH)));
+        // The age is how long the watch has been out of date, so replacing doesn't reset it
+        assertTrue(WatchUpdateQueue.getOldestAge(mContext) >= age);
+
+        WatchUpdateQueue.enqueue(mContext, OTHER_PATH, new byte[]{3});
+        assertEquals(2, WatchUpdateQueue.getDepth(mContext));
+    }
+
+    public void testDeliveredEntryLeavesQueue() {
+        long delivered = SunshineStats.getCounter(mContext, WatchUpdateQueue.STAT_DELIVERED);
+        WatchUpdateQueue.enqueue(mContext, PATH, new byte[]{1});
+
+        assertFalse(WatchUpdateQueue.recordAttempt(mContext, PATH, true));
+        assertEquals(0, WatchUpdateQueue.getDepth(mContext));
+        assertNull(WatchUpdateQueue.getPayload(mContext, PATH));
+        assertEquals(0, WatchUpdateQueue.getOldestAge(mContext));
+        assertEquals(delivered + 1,
+                SunshineStats.getCounter(mContext, WatchUpdateQueue.STAT_DELIVERED));
+    }
+
+    public void testEntryIsDroppedAfterMaxAttempts() {
+        long dropped = SunshineStats.getCounter(mContext, WatchUpdateQueue.STAT_DROPPED);
+        WatchUpdateQueue.enqueue(mContext, PATH, new byte[]{1});
+
+        for (int i = 1; i < WatchUpdateQueue.MAX_ATTEMPTS; i++) {
+            assertTrue("Dropped after " + i + " attempts",
+                    WatchUpdateQueue.recordAttempt(mContext, PATH, false));
+        }
+        assertEquals(dropped, SunshineStats.getCounter(mContext, WatchUpdateQueue.STAT_DROPPED));
+
+        assertFalse(WatchUpdateQueue.recordAttempt(mContext, PATH, false));
+        assertEquals(0, WatchUpdateQueue.getDepth(mContext));
+        assertEquals(dropped + 1,
+                SunshineStats.getCounter(mContext, WatchUpdateQueue.STAT_DROPPED));
+    }
+
+    public void testNewPayloadResetsAttempts() {
+        WatchUpdateQueue.enqueue(mContext, PATH, new byte[]{1});
+        for (int i = 1; i < WatchUpdateQueue.MAX_ATTEMPTS; i++) {
+            WatchUpdateQueue.recordAttempt(mContext, PATH, false);
+        }
+
+        // A fresh payload gets all its attempts again
+        WatchUpdateQueue.enqueue(mContext, PATH, new byte[]{2});
+        assertTrue(WatchUpdateQueue.recordAttempt(mContext, PATH, false));
+        assertEquals(1, WatchUpdateQueue.getDepth(mContext));
+    }
+
+    public void testDepthIsRecorded() {
+        long samples = SunshineStats.getSampleCount(mContext, WatchUpdateQueue.STAT_DEPTH);
+        WatchUpdateQueue.enqueue(mContext, PATH, new byte[]{1});
+        WatchUpdateQueue.enqueue(mContext, OTHER_PATH, new byte[]{2});
+
+        assertEquals(samples + 2,
+                SunshineStats.getSampleCount(mContext, WatchUpdateQueue.STAT_DEPTH));
+        assertEquals(2, SunshineStats.getLast(mContext, WatchUpdateQueue.STAT_DEPTH));
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.net;
+
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.SunshineStats;
+import com.example.android.sunshine.app.utils.FakeForecastJson;
+import com.example.android.sunshine.app.utils.LocalHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.zip.GZIPOutputStream;
+
+public class TestSunshineHttpClient extends AndroidTestCase {
+
+    private LocalHttpServer mServer;
+    private String mBody;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBody = FakeForecastJson.dailyForecast("Mountain View", 14, 0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mServer != null) {
+            mServer.shutdown();
+        }
+        super.tearDown();
+    }
+
+    /*
+        We ask for gzip and hand back the decoded body.
+     */
+    public void testGzipDecoding() throws Exception {
+        final byte[] gzipped = gzip(mBody);
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                LocalHttpServer.Response response = LocalHttpServer.Response.ok("");
+                response.body = gzipped;
+                return response.header("Content-Encoding", "gzip");
+            }
+        });
+        SunshineHttpClient client = new SunshineHttpClient(getContext(), 5000, 5000);
+
+        assertEquals(mBody, fetch(client, mServer.getUrl("/forecast")));
+        assertEquals("gzip", mServer.getRequests().get(0).getHeader("Accept-Encoding"));
+        assertTrue("Compressed body should be smaller", gzipped.length < mBody.length());
+        // The size on the wire, not the decoded one
+        assertEquals(gzipped.length, SunshineStats.getLast(getContext(),
+                "http.test" + SunshineHttpClient.STAT_BYTES));
+    }
+
+    /*
+        Reading each body to the end and closing it lets every request share one connection.
+     */
+    public void testConnectionReuse() throws Exception {
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                return LocalHttpServer.Response.ok(mBody);
+            }
+        });
+        SunshineHttpClient client = new SunshineHttpClient(getContext(), 5000, 5000);
+
+        for (int i = 0; i < 5; i++) {
+            fetch(client, mServer.getUrl("/forecast?q=" + i));
+        }
+        assertEquals(5, mServer.getRequestCount());
+        assertEquals("Requests should have shared a connection", 1, mServer.getConnectionCount());
+
+        // A 304 with no body must release its connection too
+        mServer.shutdown();
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                return LocalHttpServer.Response.status(304);
+            }
+        });
+        for (int i = 0; i < 5; i++) {
+            client.execute(client.open(new URL(mServer.getUrl("/forecast"))), "test").close();
+        }
+
+        assertEquals(5, mServer.getRequestCount());
+        assertEquals("Bodiless responses should have shared a connection",
+                1, mServer.getConnectionCount());
+    }
+
+    public void testReadTimeout() throws Exception {
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request)
+                    throws InterruptedException {
+                Thread.sleep(3000);
+                return LocalHttpServer.Response.ok(mBody);
+            }
+        });
+        SunshineHttpClient client = new SunshineHttpClient(getContext(), 5000, 500);
+
+        try {
+            fetch(client, mServer.getUrl("/slow"));
+            fail("Request should have timed out");
+        } catch (SocketTimeoutException e) {
+            // expected
+        }
+    }
+
+    public void testTimingsRecorded() throws Exception {
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                return LocalHttpServer.Response.ok(mBody);
+            }
+        });
+        SunshineHttpClient client = new SunshineHttpClient(getContext(), 5000, 5000);
+        String prefix = "http.test";
+        long before = SunshineStats.getSampleCount(getContext(), prefix + SunshineHttpClient.STAT_BODY);
+
+        fetch(client, mServer.getUrl("/forecast"));
+
+        for (String timer : new String[] {SunshineHttpClient.STAT_DNS,
+                SunshineHttpClient.STAT_CONNECT, SunshineHttpClient.STAT_TTFB}) {
+            assertTrue("No samples for " + timer,
+                    SunshineStats.getSampleCount(getContext(), prefix + timer) > 0);
+        }
+        assertEquals(before + 1,
+                SunshineStats.getSampleCount(getContext(), prefix + SunshineHttpClient.STAT_BODY));
+        assertEquals(mBody.length(),
+                SunshineStats.getLast(getContext(), prefix + SunshineHttpClient.STAT_BYTES));
+    }
+
+    private static String fetch(SunshineHttpClient client, String url) throws IOException {
+        SunshineHttpClient.Response response = client.execute(client.open(new URL(url)), "test");
+        try {
+            InputStream in = response.getBody();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            response.close();
+        }
+    }
+
+    private static byte[] gzip(String text) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(text.getBytes("UTF-8"));
+        out.close();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.notification;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+
+public class TestNotificationArtCache extends AndroidTestCase {
+    private static final int SIZE = 32;
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(mContext.getCacheDir(), "test_notification_art");
+        deleteDirectory();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDirectory();
+        super.tearDown();
+    }
+
+    private void deleteDirectory() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private NotificationArtCache newCache() {
+        return new NotificationArtCache(mContext, mDirectory, SIZE, SIZE);
+    }
+
+    public void testStoredArtSurvivesNewInstance() {
+        Bitmap bitmap = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.RED);
+        bitmap.setPixel(3, 5, Color.BLUE);
+        newCache().store("key", bitmap);
+
+        // A fresh instance, as after the process restarted, reads the raw pixels back
+        Bitmap loaded = newCache().load("key");
+        assertNotNull(loaded);
+        assertEquals(SIZE, loaded.getWidth());
+        assertEquals(SIZE, loaded.getHeight());
+        assertEquals(Color.RED, loaded.getPixel(0, 0));
+        assertEquals(Color.BLUE, loaded.getPixel(3, 5));
+
+        assertNull(newCache().load("missing"));
+    }
+
+    public void testShortArtIsCentered() {
+        // Fit-center leaves wide art short
+        Bitmap wide = Bitmap.createBitmap(SIZE, SIZE / 2, Bitmap.Config.RGB_565);
+        wide.eraseColor(Color.GREEN);
+        Bitmap stored = newCache().store("wide", wide);
+
+        assertEquals(SIZE, stored.getHeight());
+        assertEquals(Color.TRANSPARENT, stored.getPixel(0, 0));
+        assertEquals(Color.GREEN, stored.getPixel(SIZE / 2, SIZE / 2));
+        assertEquals(Color.GREEN, newCache().load("wide").getPixel(SIZE / 2, SIZE / 2));
+    }
+
+    public void testRetainOnlyDropsOtherEntries() {
+        NotificationArtCache cache = newCache();
+        Bitmap bitmap = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+        cache.store("current", bitmap);
+        cache.store("old_pack", bitmap);
+
+        cache.retainOnly(Collections.singleton("current"));
+
+        assertNotNull(cache.load("current"));
+        assertNull(cache.load("old_pack"));
+    }
+
+    public void testTruncatedEntryIsIgnored() throws Exception {
+        NotificationArtCache cache = newCache();
+        cache.store("key", Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888));
+        RandomAccessFile file = new RandomAccessFile(new File(mDirectory, "key"), "rw");
+        file.setLength(10);
+        file.close();
+
+        assertNull(cache.load("key"));
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+/*
+    For tests about stored locations: starts and ends with an empty location table, and makes
+    locations that only differ in their setting and where they are.
+ */
+public abstract class LocationsTestCase extends AndroidTestCase {
+
+    static final long NOW = 1419033600000L;  // December 20th, 2014
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+
+    /**
+     * Stores a location named after its setting, at the given latitude and its negative as
+     * longitude.
+     * @return the location's row id
+     */
+    long insertLocation(String locationSetting, double latitude) {
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        values.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, locationSetting);
+        values.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, latitude);
+        values.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, -latitude);
+        Uri uri = mContext.getContentResolver().insert(
+                WeatherContract.LocationEntry.CONTENT_URI, values);
+        return ContentUris.parseId(uri);
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.text.format.Time;
+
+import java.util.Arrays;
+
+public class TestForecastFreshness extends LocationsTestCase {
+
+    /*
+        A location is stamped when its forecast is known to be current; the others keep theirs.
+     */
+    public void testMarkSyncedStampsLastSync() {
+        long first = insertLocation("first", 10.0);
+        long second = insertLocation("second", 20.0);
+        long other = insertLocation("other", 30.0);
+        assertEquals(ForecastFreshness.NEVER, ForecastFreshness.getLastSync(mContext, first));
+
+        Time dayTime = new Time();
+        dayTime.setToNow();
+        LocationSyncer syncer = new LocationSyncer(mContext,
+                Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff));
+        assertEquals(2, syncer.markSynced(Arrays.asList("first", "second"), NOW));
+
+        assertEquals(NOW, ForecastFreshness.getLastSync(mContext, first));
+        assertEquals(NOW, ForecastFreshness.getLastSync(mContext, second));
+        assertEquals(ForecastFreshness.NEVER, ForecastFreshness.getLastSync(mContext, other));
+        assertEquals(ForecastFreshness.NEVER, ForecastFreshness.getLastSync(mContext, -1));
+    }
+
+    /*
+        Data is stale once its stamp is a sync interval old, or can't be trusted at all.
+     */
+    public void testIsStale() {
+        assertFalse(ForecastFreshness.isStale(NOW, NOW + 1000));
+        assertTrue(ForecastFreshness.isStale(NOW, NOW + ForecastFreshness.STALE_AFTER_MILLIS));
+        assertTrue("A clock turned back can't vouch for the data",
+                ForecastFreshness.isStale(NOW, NOW - 1000));
+        assertTrue(ForecastFreshness.isStale(ForecastFreshness.NEVER, NOW));
+    }
+}
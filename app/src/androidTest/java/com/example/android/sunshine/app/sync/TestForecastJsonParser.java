@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.os.Build;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.utils.FakeForecastJson;
+
+import org.json.JSONException;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestForecastJsonParser extends AndroidTestCase {
+    public static final String LOG_TAG = TestForecastJsonParser.class.getSimpleName();
+
+    private static final int JULIAN_START_DAY = 2457012; // December 20th, 2014
+    private static final int BENCHMARK_ITERATIONS = 20;
+
+    private static InputStream asStream(String json) throws IOException {
+        return new ByteArrayInputStream(json.getBytes("UTF-8"));
+    }
+
+    public void testStreamingMatchesTree() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        String json = FakeForecastJson.dailyForecast("Mountain View", 14, 0);
+        ForecastJsonParser.Forecast streamed =
+                ForecastJsonParser.parseStream(asStream(json), JULIAN_START_DAY);
+        ForecastJsonParser.Forecast tree = ForecastJsonParser.parseTree(json, JULIAN_START_DAY);
+
+        assertEquals(HttpURLConnection.HTTP_OK, streamed.code);
+        assertEquals("Mountain View", streamed.cityName);
+        assertEquals(FakeForecastJson.cityId(0), streamed.cityId);
+        assertEquals(tree.cityId, streamed.cityId);
+        assertEquals(tree.cityLatitude, streamed.cityLatitude);
+        assertEquals(tree.cityLongitude, streamed.cityLongitude);
+        assertEquals(14, streamed.days.size());
+        for (int i = 0; i < tree.days.size(); i++) {
+            ContentValues expected = tree.days.get(i);
+            ContentValues actual = streamed.days.get(i);
+            for (String key : expected.keySet()) {
+                assertEquals("Day " + i + " column " + key,
+                        expected.getAsString(key), actual.getAsString(key));
+            }
+        }
+    }
+
+    public void testHourlyStreamingMatchesTree() throws Exception {
+        String json = FakeForecastJson.hourlyForecast("Mountain View", 40, 0);
+        ForecastJsonParser.HourlyForecast tree = ForecastJsonParser.parseHourlyTree(asStream(json));
+        assertEquals(HttpURLConnection.HTTP_OK, tree.code);
+        assertEquals(40, tree.points.size());
+
+        ContentValues first = tree.points.get(0);
+        assertEquals(1419033600000L,
+                (long) first.getAsLong(WeatherContract.HourlyEntry.COLUMN_TIME));
+        assertEquals(-500, (long) first.getAsLong(WeatherContract.HourlyEntry.COLUMN_TEMP));
+        assertEquals(500, (int) first.getAsInteger(WeatherContract.HourlyEntry.COLUMN_WEATHER_ID));
+        assertEquals(0, (long) first.getAsLong(WeatherContract.HourlyEntry.COLUMN_PRECIPITATION));
+        // Snow, with an empty rain object alongside
+        ContentValues second = tree.points.get(1);
+        assertEquals(150, (long) second.getAsLong(WeatherContract.HourlyEntry.COLUMN_PRECIPITATION));
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        ForecastJsonParser.HourlyForecast streamed =
+                ForecastJsonParser.parseHourlyStream(asStream(json));
+        assertEquals(HttpURLConnection.HTTP_OK, streamed.code);
+        assertEquals(tree.points.size(), streamed.points.size());
+        for (int i = 0; i < tree.points.size(); i++) {
+            ContentValues expected = tree.points.get(i);
+            ContentValues actual = streamed.points.get(i);
+            assertEquals(expected.size(), actual.size());
+            for (String key : expected.keySet()) {
+                assertEquals("Point " + i + " column " + key,
+                        expected.getAsString(key), actual.getAsString(key));
+            }
+        }
+    }
+
+    public void testHourlyErrorCode() throws Exception {
+        ForecastJsonParser.HourlyForecast forecast = ForecastJsonParser.parseHourlyTree(
+                asStream(FakeForecastJson.cityNotFound()));
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, forecast.code);
+        assertTrue(forecast.points.isEmpty());
+    }
+
+    public void testGroupResponse() throws Exception {
+        List<String> cities = new ArrayList<String>();
+        for (int seed = 0; seed < 3; seed++) {
+            cities.add(FakeForecastJson.dailyForecast("City " + seed, 14, seed));
+        }
+        String json = FakeForecastJson.groupForecast(cities);
+
+        List<ForecastJsonParser.Forecast> tree =
+                ForecastJsonParser.parseGroupTree(asStream(json), JULIAN_START_DAY);
+        assertEquals(3, tree.size());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            List<ForecastJsonParser.Forecast> streamed =
+                    ForecastJsonParser.parseGroupStream(asStream(json), JULIAN_START_DAY);
+            assertEquals(3, streamed.size());
+            for (int i = 0; i < 3; i++) {
+                assertEquals(FakeForecastJson.cityId(i), streamed.get(i).cityId);
+                assertEquals("City " + i, streamed.get(i).cityName);
+                assertEquals(14, streamed.get(i).days.size());
+                assertEquals(tree.get(i).cityId, streamed.get(i).cityId);
+            }
+        }
+    }
+
+    public void testLargeDayCount() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        String json = FakeForecastJson.dailyForecast("Mountain View", 400, 1);
+        ForecastJsonParser.Forecast forecast =
+                ForecastJsonParser.parseStream(asStream(json), JULIAN_START_DAY);
+        assertEquals(400, forecast.days.size());
+    }
+
+    public void testErrorCode() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        ForecastJsonParser.Forecast forecast = ForecastJsonParser.parseStream(
+                asStream(FakeForecastJson.cityNotFound()), JULIAN_START_DAY);
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, forecast.code);
+        assertTrue(forecast.days.isEmpty());
+    }
+
+    public void testMalformedResponse() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        try {
+            ForecastJsonParser.parseStream(asStream("{\"city\":[1,2"), JULIAN_START_DAY);
+            fail("Expected a JSONException for a malformed response");
+        } catch (JSONException expected) {
+            // this is what the sync adapter maps to LOCATION_STATUS_SERVER_INVALID
+        }
+    }
+
+    /*
+        A 200 without a forecast in it is as invalid to the streaming parser as to the tree one.
+     */
+    public void testMissingList() throws Exception {
+        String json = "{\"cod\":\"200\",\"city\":{\"id\":5375480,\"name\":\"Mountain View\","
+                + "\"coord\":{\"lat\":37.3861,\"lon\":-122.0839}}}";
+        try {
+            ForecastJsonParser.parseTree(json, JULIAN_START_DAY);
+            fail("Expected a JSONException from the tree parser");
+        } catch (JSONException expected) {
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        try {
+            ForecastJsonParser.parseStream(asStream(json), JULIAN_START_DAY);
+            fail("Expected a JSONException from the streaming parser");
+        } catch (JSONException expected) {
+        }
+    }
+
+    /*
+        Not a pass/fail test: logs parse time and allocations for the streaming parser against
+        the original read-into-a-StringBuffer-then-JSONObject path, for a few forecast sizes.
+     */
+    public void testParseBenchmark() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        for (int days : new int[] {14, 16, 100, 1000}) {
+            String json = FakeForecastJson.dailyForecast("Mountain View", days, 0);
+
+            // warm up both paths so we aren't measuring class loading
+            ForecastJsonParser.parseStream(asStream(json), JULIAN_START_DAY);
+            parseLegacy(asStream(json));
+
+            long[] streaming = measure(json, true);
+            long[] legacy = measure(json, false);
+            Log.i(LOG_TAG, String.format("days=%d bytes=%d | stream: %dus %d allocs %d bytes" +
+                            " | legacy: %dus %d allocs %d bytes",
+                    days, json.length(),
+                    streaming[0], streaming[1], streaming[2],
+                    legacy[0], legacy[1], legacy[2]));
+        }
+    }
+
+    // returns {average microseconds, average allocation count, average allocated bytes}
+    @SuppressWarnings("deprecation")
+    private long[] measure(String json, boolean streaming) throws Exception {
+        long elapsedNanos = 0;
+        long allocCount = 0;
+        long allocSize = 0;
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            InputStream in = asStream(json);
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            Debug.startAllocCounting();
+            long start = System.nanoTime();
+            if (streaming) {
+                ForecastJsonParser.parseStream(in, JULIAN_START_DAY);
+            } else {
+                parseLegacy(in);
+            }
+            elapsedNanos += System.nanoTime() - start;
+            Debug.stopAllocCounting();
+            allocCount += Debug.getThreadAllocCount();
+            allocSize += Debug.getThreadAllocSize();
+        }
+        return new long[] {
+                elapsedNanos / BENCHMARK_ITERATIONS / 1000,
+                allocCount / BENCHMARK_ITERATIONS,
+                allocSize / BENCHMARK_ITERATIONS
+        };
+    }
+
+    // The way onPerformSync used to read the body: line by line into a StringBuffer
+    private static ForecastJsonParser.Forecast parseLegacy(InputStream in) throws Exception {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        StringBuffer buffer = new StringBuffer();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            buffer.append(line + "\n");
+        }
+        return ForecastJsonParser.parseTree(buffer.toString(), JULIAN_START_DAY);
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.utils.FakeForecastJson;
+import com.example.android.sunshine.app.utils.LocalHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+public class TestForecastResponseCache extends AndroidTestCase {
+
+    private static final String ETAG = "\"forecast-v1\"";
+
+    private LocalHttpServer mServer;
+    private File mCacheDir;
+    private String mBody;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCacheDir = new File(getContext().getCacheDir(), "test_forecast_http");
+        deleteDirectory(mCacheDir);
+        mBody = FakeForecastJson.dailyForecast("Mountain View", 14, 0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mServer != null) {
+            mServer.shutdown();
+        }
+        deleteDirectory(mCacheDir);
+        super.tearDown();
+    }
+
+    /*
+        The server answers If-None-Match with a 304 and the cached body is left as it was.
+     */
+    public void testConditionalRequestGetsNotModified() throws Exception {
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                if (ETAG.equals(request.getHeader("If-None-Match"))) {
+                    return LocalHttpServer.Response.status(304).header("ETag", ETAG);
+                }
+                return LocalHttpServer.Response.ok(mBody).header("ETag", ETAG);
+            }
+        });
+        ForecastResponseCache cache = new ForecastResponseCache(getContext(), mCacheDir, 512 * 1024);
+        String url = mServer.getUrl("/forecast?q=94043");
+
+        assertNull("Nothing should be cached yet", cache.get(url));
+        fetch(cache, url);
+
+        ForecastResponseCache.Entry entry = cache.get(url);
+        assertNotNull("Full response should have been cached", entry);
+        assertFalse("Response without max-age shouldn't be fresh", entry.isFresh());
+        assertEquals(mBody, readFully(cache.openBody(entry)));
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        cache.addConditionalHeaders(connection, entry);
+        assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, connection.getResponseCode());
+        cache.updateNotModified(entry, connection);
+        connection.disconnect();
+
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(ETAG, mServer.getRequests().get(1).getHeader("If-None-Match"));
+        assertEquals(mBody, readFully(cache.openBody(cache.get(url))));
+    }
+
+    /*
+        A body trimmed away while its metadata was kept drops the whole entry, so the next
+        request goes out without validators rather than getting a 304 there's nothing to back.
+     */
+    public void testMissingBodyDropsEntry() throws Exception {
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                return LocalHttpServer.Response.ok(mBody).header("ETag", ETAG);
+            }
+        });
+        ForecastResponseCache cache = new ForecastResponseCache(getContext(), mCacheDir, 512 * 1024);
+        String url = mServer.getUrl("/forecast?q=trimmed");
+        fetch(cache, url);
+        ForecastResponseCache.Entry entry = cache.get(url);
+        assertNotNull(entry);
+
+        assertTrue(entry.body.delete());
+        assertNull("A missing body can't be opened", cache.openBody(entry));
+        assertNull("The entry should have been dropped", cache.get(url));
+        assertEquals(0, mCacheDir.listFiles().length);
+    }
+
+    /*
+        A max-age response is fresh until it expires, and no-store responses are never kept.
+     */
+    public void testCacheControl() throws Exception {
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                String cacheControl = request.path.contains("no-store") ? "no-store" : "max-age=3600";
+                return LocalHttpServer.Response.ok(mBody).header("Cache-Control", cacheControl);
+            }
+        });
+        ForecastResponseCache cache = new ForecastResponseCache(getContext(), mCacheDir, 512 * 1024);
+
+        String freshUrl = mServer.getUrl("/forecast?q=fresh");
+        fetch(cache, freshUrl);
+        assertTrue("max-age response should be fresh", cache.get(freshUrl).isFresh());
+
+        String noStoreUrl = mServer.getUrl("/forecast?q=no-store");
+        fetch(cache, noStoreUrl);
+        assertNull("no-store response shouldn't be cached", cache.get(noStoreUrl));
+    }
+
+    /*
+        A body that was never read to the end must not replace what's in the cache.
+     */
+    public void testPartialReadNotCommitted() throws Exception {
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                return LocalHttpServer.Response.ok(mBody).header("ETag", ETAG);
+            }
+        });
+        ForecastResponseCache cache = new ForecastResponseCache(getContext(), mCacheDir, 512 * 1024);
+        String url = mServer.getUrl("/forecast?q=partial");
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        InputStream in = cache.cacheWhileReading(url, connection, connection.getInputStream());
+        in.read(new byte[16]);
+        in.close();
+        connection.disconnect();
+
+        assertNull("Partially read response shouldn't be cached", cache.get(url));
+    }
+
+    /*
+        The cache stays under its size limit by dropping the least recently used entries.
+     */
+    public void testEvictionBound() throws Exception {
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                return LocalHttpServer.Response.ok(mBody).header("ETag", ETAG);
+            }
+        });
+        long maxBytes = mBody.length() * 3;
+        ForecastResponseCache cache = new ForecastResponseCache(getContext(), mCacheDir, maxBytes);
+
+        for (int i = 0; i < 10; i++) {
+            fetch(cache, mServer.getUrl("/forecast?q=" + i));
+            // lastModified only has a one second resolution on some file systems
+            Thread.sleep(1000);
+        }
+
+        long size = 0;
+        for (File file : mCacheDir.listFiles()) {
+            size += file.length();
+        }
+        assertTrue("Cache grew to " + size + " bytes, limit is " + maxBytes, size <= maxBytes);
+        assertNotNull("Most recent entry should have been kept",
+                cache.get(mServer.getUrl("/forecast?q=9")));
+        assertNull("Oldest entry should have been evicted",
+                cache.get(mServer.getUrl("/forecast?q=0")));
+    }
+
+    private static void fetch(ForecastResponseCache cache, String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            readFully(cache.cacheWhileReading(url, connection, connection.getInputStream()));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.text.format.Time;
+
+import com.example.android.sunshine.app.SunshineStats;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.utils.FakeForecastJson;
+import com.example.android.sunshine.app.utils.LocalHttpServer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestGroupFetch extends AndroidTestCase {
+
+    private static final int LOCATION_COUNT = 3;
+    private static final String SETTING_PREFIX = "city-";
+
+    private LocalHttpServer mServer;
+    private boolean mGroupSupported;
+    private LocationSyncer mSyncer;
+    private List<LocationSyncer.Target> mTargets;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+        mContext.getSharedPreferences(LocationSyncer.GROUP_PREFS, Context.MODE_PRIVATE)
+                .edit().clear().commit();
+
+        /*
+            Serves single forecasts for "city-<seed>" and, when supported, group forecasts for
+            the matching city ids.
+         */
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                Uri uri = Uri.parse("http://localhost" + request.path);
+                if (uri.getPath().endsWith("/group")) {
+                    if (!mGroupSupported) {
+                        return LocalHttpServer.Response.status(404);
+                    }
+                    List<String> forecasts = new ArrayList<String>();
+                    for (String id : uri.getQueryParameter("id").split(",")) {
+                        int seed = (int) (Long.parseLong(id) - FakeForecastJson.cityId(0));
+                        forecasts.add(FakeForecastJson.dailyForecast(
+                                SETTING_PREFIX + seed, SunshineSyncAdapter.FORECAST_DAYS, seed));
+                    }
+                    return LocalHttpServer.Response.ok(FakeForecastJson.groupForecast(forecasts));
+                }
+                String setting = uri.getQueryParameter("q");
+                int seed = Integer.parseInt(setting.substring(SETTING_PREFIX.length()));
+                return LocalHttpServer.Response.ok(FakeForecastJson.dailyForecast(
+                        setting, SunshineSyncAdapter.FORECAST_DAYS, seed));
+            }
+        });
+
+        Time dayTime = new Time();
+        dayTime.setToNow();
+        int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+        mSyncer = new LocationSyncer(mContext, julianStartDay, mServer.getUrl("/"));
+
+        mTargets = new ArrayList<LocationSyncer.Target>();
+        for (int i = 0; i < LOCATION_COUNT; i++) {
+            mTargets.add(new LocationSyncer.Target(SETTING_PREFIX + i));
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        mContext.getSharedPreferences(LocationSyncer.GROUP_PREFS, Context.MODE_PRIVATE)
+                .edit().clear().commit();
+        super.tearDown();
+    }
+
+    /*
+        Locations that have been synced once go out as a single group request.
+     */
+    public void testKnownLocationsShareOneRequest() {
+        mGroupSupported = true;
+
+        // The first sync has no city ids yet, so every location needs its own request
+        assertAllOk(SunshineSyncAdapter.syncAll(mSyncer, mTargets));
+        assertEquals(LOCATION_COUNT, mServer.getRequestCount());
+
+        long locationSamples = SunshineStats.getSampleCount(mContext, LocationSyncer.STAT_LOCATION_MS);
+        assertAllOk(SunshineSyncAdapter.syncAll(mSyncer, mTargets));
+        assertEquals("Known locations should be fetched together",
+                LOCATION_COUNT + 1, mServer.getRequestCount());
+        assertTrue(lastRequestPath().contains("/group"));
+        assertEquals("Every location should still report its cost",
+                locationSamples + LOCATION_COUNT,
+                SunshineStats.getSampleCount(mContext, LocationSyncer.STAT_LOCATION_MS));
+    }
+
+    /*
+        An upstream without a group endpoint is asked once, then left alone, and every
+        location still gets its forecast.
+     */
+    public void testFallsBackWithoutGroupEndpoint() {
+        mGroupSupported = false;
+
+        assertAllOk(SunshineSyncAdapter.syncAll(mSyncer, mTargets));
+        assertEquals(LOCATION_COUNT, mServer.getRequestCount());
+
+        long fallbacks = SunshineStats.getCounter(mContext, LocationSyncer.STAT_GROUP_FALLBACKS);
+        assertAllOk(SunshineSyncAdapter.syncAll(mSyncer, mTargets));
+        assertEquals("One turned down group request, then one request per location",
+                LOCATION_COUNT * 2 + 1, mServer.getRequestCount());
+        assertEquals(fallbacks + LOCATION_COUNT,
+                SunshineStats.getCounter(mContext, LocationSyncer.STAT_GROUP_FALLBACKS));
+
+        assertAllOk(SunshineSyncAdapter.syncAll(mSyncer, mTargets));
+        assertEquals("The group endpoint shouldn't be asked again",
+                LOCATION_COUNT * 3 + 1, mServer.getRequestCount());
+    }
+
+    private void assertAllOk(List<LocationSyncer.Result> results) {
+        assertEquals(LOCATION_COUNT, results.size());
+        for (LocationSyncer.Result result : results) {
+            assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, result.status);
+        }
+    }
+
+    private String lastRequestPath() {
+        List<LocalHttpServer.Request> requests = mServer.getRequests();
+        return requests.get(requests.size() - 1).path;
+    }
+}
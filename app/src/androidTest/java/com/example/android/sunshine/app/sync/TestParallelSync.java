@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestParallelSync extends AndroidTestCase {
+
+    private static final long FETCH_MILLIS = 500;
+
+    /*
+        Stands in for the network: every location takes the same time, "bad" locations fail
+        the way LocationSyncer reports it and "crash" locations throw.
+     */
+    private static class SlowSyncer extends LocationSyncer {
+        final AtomicInteger mRunning = new AtomicInteger();
+        final AtomicInteger mMaxRunning = new AtomicInteger();
+
+        SlowSyncer() {
+            super(null, 0);
+        }
+
+        @Override
+        Result sync(Target target) {
+            int running = mRunning.incrementAndGet();
+            while (true) {
+                int max = mMaxRunning.get();
+                if (running <= max || mMaxRunning.compareAndSet(max, running)) {
+                    break;
+                }
+            }
+            try {
+                SystemClock.sleep(FETCH_MILLIS);
+                if (target.locationSetting.startsWith("crash")) {
+                    throw new IllegalStateException("boom");
+                }
+                if (target.locationSetting.startsWith("bad")) {
+                    return new Result(SunshineSyncAdapter.LOCATION_STATUS_INVALID, 0);
+                }
+                return new Result(SunshineSyncAdapter.LOCATION_STATUS_OK, 1);
+            } finally {
+                mRunning.decrementAndGet();
+            }
+        }
+    }
+
+    /*
+        Eight locations on a pool of four take two rounds, not eight, and never more than four
+        run at once.
+     */
+    public void testWallTimeScalesWithPoolSize() {
+        SlowSyncer syncer = new SlowSyncer();
+        int locationCount = SunshineSyncAdapter.SYNC_POOL_SIZE * 2;
+
+        long start = SystemClock.elapsedRealtime();
+        List<LocationSyncer.Result> results =
+                SunshineSyncAdapter.syncEach(syncer, targets(locationCount));
+        long wallMillis = SystemClock.elapsedRealtime() - start;
+
+        assertEquals(locationCount, results.size());
+        long rounds = (locationCount + SunshineSyncAdapter.SYNC_POOL_SIZE - 1)
+                / SunshineSyncAdapter.SYNC_POOL_SIZE;
+        assertTrue("Sync took " + wallMillis + "ms, expected about " + rounds * FETCH_MILLIS,
+                wallMillis < (rounds + 1) * FETCH_MILLIS);
+        assertTrue("At most the pool size should run at once",
+                syncer.mMaxRunning.get() <= SunshineSyncAdapter.SYNC_POOL_SIZE);
+    }
+
+    /*
+        A location that fails, or even throws, doesn't change what the others report, and
+        results come back in target order.
+     */
+    public void testFailuresStayWithTheirLocation() {
+        List<LocationSyncer.Target> targets = new ArrayList<LocationSyncer.Target>();
+        targets.add(new LocationSyncer.Target("94043"));
+        targets.add(new LocationSyncer.Target("bad-location"));
+        targets.add(new LocationSyncer.Target("crash-location"));
+        targets.add(new LocationSyncer.Target("London"));
+
+        List<LocationSyncer.Result> results = SunshineSyncAdapter.syncEach(new SlowSyncer(), targets);
+
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, results.get(0).status);
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_INVALID, results.get(1).status);
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN, results.get(2).status);
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, results.get(3).status);
+        assertEquals(1, results.get(3).changedDays);
+    }
+
+    private static List<LocationSyncer.Target> targets(int count) {
+        List<LocationSyncer.Target> targets = new ArrayList<LocationSyncer.Target>();
+        for (int i = 0; i < count; i++) {
+            targets.add(new LocationSyncer.Target("location-" + i));
+        }
+        return targets;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.sunshine.app.data.TestUtilities;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class TestRecentLocations extends LocationsTestCase {
+
+    /*
+        The most recently used locations come first, those synced anyway are skipped, and
+        locations that were never preferred don't count as recent.
+     */
+    public void testTargetsAreMostRecentFirst() {
+        insertLocation("preferred", 10.0);
+        insertLocation("older", 20.0);
+        insertLocation("newer", 30.0);
+        insertLocation("saved", 40.0);
+        RecentLocations.markUsed(mContext, "older", NOW);
+        RecentLocations.markUsed(mContext, "newer", NOW + 1000);
+        RecentLocations.markUsed(mContext, "preferred", NOW + 2000);
+
+        List<LocationSyncer.Target> targets = RecentLocations.getTargets(mContext,
+                Arrays.asList("preferred", "saved"), 5);
+        assertEquals(2, targets.size());
+        assertEquals("newer", targets.get(0).locationSetting);
+        assertEquals("older", targets.get(1).locationSetting);
+        // Synced by the city they resolved to
+        assertTrue(targets.get(0).useCoordinates);
+        assertEquals(30.0, targets.get(0).latitude);
+
+        targets = RecentLocations.getTargets(mContext, Collections.singleton("preferred"), 1);
+        assertEquals(1, targets.size());
+        assertEquals("newer", targets.get(0).locationSetting);
+
+        assertTrue(RecentLocations.getTargets(mContext,
+                Collections.singleton("preferred"), 0).isEmpty());
+    }
+
+    /*
+        Locations beyond those kept go, weather and all; the kept ones are untouched.
+     */
+    public void testRetainOnlyDeletesOthersWithWeather() {
+        long keptId = insertLocation("kept", 10.0);
+        long droppedId = insertLocation("dropped", 20.0);
+        insertWeather(keptId);
+        insertWeather(droppedId);
+
+        assertEquals(1, RecentLocations.retainOnly(mContext, Collections.singleton("kept")));
+
+        assertEquals(1, countRows(WeatherContract.LocationEntry.CONTENT_URI, null, null));
+        assertEquals(1, countRows(WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(keptId)}));
+        assertEquals(0, countRows(WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(droppedId)}));
+
+        assertEquals(0, RecentLocations.retainOnly(mContext, Collections.singleton("kept")));
+    }
+
+    private void insertWeather(long locationId) {
+        ContentValues values = TestUtilities.createWeatherValues(locationId);
+        values.put(WeatherContract.WeatherEntry.COLUMN_DATE, NOW);
+        mContext.getContentResolver().insert(WeatherContract.WeatherEntry.CONTENT_URI, values);
+    }
+
+    private int countRows(Uri uri, String selection, String[] selectionArgs) {
+        Cursor cursor = mContext.getContentResolver().query(uri, null, selection, selectionArgs,
+                null);
+        assertNotNull(cursor);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.utils.MockForecastServer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/*
+    Drives the whole fetch, parse and store pipeline against a MockForecastServer and logs
+    throughput and per-stage latency under the "SyncBenchmark" tag, e.g.
+
+        adb logcat -s SyncBenchmark
+
+    The budgets are loose enough for a slow emulator: they catch a sync that got several times
+    more expensive, while the logged numbers are what to compare between releases.
+ */
+@LargeTest
+public class TestSyncBenchmark extends AndroidTestCase {
+    private static final String LOG_TAG = "SyncBenchmark";
+
+    private static final int LOCATION_COUNT = 20;
+    private static final int ROUNDS = 5;
+
+    // p95 per location, in ms
+    private static final long PARSE_BUDGET_MILLIS = 250;
+    private static final long WRITE_BUDGET_MILLIS = 500;
+
+    private MockForecastServer mServer;
+    private LocationSyncer mSyncer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteForecasts();
+        clearGroupPrefs();
+
+        mServer = new MockForecastServer().setDays(SunshineSyncAdapter.FORECAST_DAYS);
+        Time dayTime = new Time();
+        dayTime.setToNow();
+        int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+        mSyncer = new LocationSyncer(mContext, julianStartDay, mServer.getBaseUrl());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        clearGroupPrefs();
+        deleteForecasts();
+        super.tearDown();
+    }
+
+    private void deleteForecasts() {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private void clearGroupPrefs() {
+        mContext.getSharedPreferences(LocationSyncer.GROUP_PREFS, Context.MODE_PRIVATE)
+                .edit().clear().commit();
+    }
+
+    /*
+        One request per location, as for locations synced for the first time or an upstream
+        without group requests.
+     */
+    public void testSingleRequests() {
+        mServer.setGroupSupported(false);
+
+        Report report = run("single", LOCATION_COUNT, ROUNDS);
+
+        assertEquals(LOCATION_COUNT * ROUNDS, report.mOk);
+        report.assertWithinBudgets();
+    }
+
+    /*
+        Locations already known by city id, fetched MAX_GROUP_SIZE at a time.
+     */
+    public void testGroupRequests() {
+        // Learn the city ids first
+        run("group warm-up", LOCATION_COUNT, 1);
+        int requests = mServer.getRequestCount();
+
+        Report report = run("group", LOCATION_COUNT, ROUNDS);
+
+        assertEquals(LOCATION_COUNT * ROUNDS, report.mOk);
+        int groups = (LOCATION_COUNT + LocationSyncer.MAX_GROUP_SIZE - 1)
+                / LocationSyncer.MAX_GROUP_SIZE;
+        assertEquals(groups * ROUNDS, mServer.getRequestCount() - requests);
+        report.assertWithinBudgets();
+    }
+
+    /*
+        A slow server: locations are fetched side by side, so a round takes far less than
+        the latencies added up.
+     */
+    public void testSlowServer() {
+        final long latencyMillis = 200;
+        final int locationCount = SunshineSyncAdapter.SYNC_POOL_SIZE * 2;
+        mServer.setGroupSupported(false).setLatency(latencyMillis);
+
+        Report report = run("latency " + latencyMillis + "ms", locationCount, 2);
+
+        assertEquals(locationCount * 2, report.mOk);
+        assertTrue("Round p50 " + report.roundMillis(50) + "ms",
+                report.roundMillis(50) < locationCount * latencyMillis);
+    }
+
+    /*
+        Responses padded to a few hundred KB, which the streaming parser has to skip through.
+     */
+    public void testLargePayloads() {
+        final int paddingBytes = 256 * 1024;
+        mServer.setGroupSupported(false).setPaddingBytes(paddingBytes);
+
+        Report report = run("payload " + paddingBytes / 1024 + "KB", LOCATION_COUNT / 4, ROUNDS);
+
+        assertEquals(LOCATION_COUNT / 4 * ROUNDS, report.mOk);
+        assertTrue(report.mBytes >= (long) paddingBytes * report.mOk);
+    }
+
+    /*
+        Every fourth request fails with a 503, which costs only the failed locations, and
+        unknown locations are told apart from a failing server.
+     */
+    public void testServerErrors() {
+        mServer.setGroupSupported(false).setError(503, 4).setLocationCount(LOCATION_COUNT - 2);
+
+        Report report = run("errors", LOCATION_COUNT, ROUNDS);
+
+        assertTrue("Some locations should fail", report.mServerDown > 0);
+        assertTrue("Most locations should still sync", report.mOk > report.mServerDown);
+        assertTrue("Unknown locations should be invalid, unless their request failed",
+                report.mInvalid > 0 && report.mInvalid <= 2 * ROUNDS);
+        assertEquals(LOCATION_COUNT * ROUNDS, report.mOk + report.mServerDown + report.mInvalid);
+    }
+
+    /*
+        Syncs the first locationCount locations rounds times, against a new revision of the
+        forecasts every time so there is always something to write, and logs the report.
+     */
+    private Report run(String name, int locationCount, int rounds) {
+        List<LocationSyncer.Target> targets = new ArrayList<LocationSyncer.Target>();
+        for (int i = 0; i < locationCount; i++) {
+            targets.add(new LocationSyncer.Target(MockForecastServer.locationSetting(i)));
+        }
+
+        Report report = new Report(name);
+        for (int round = 0; round < rounds; round++) {
+            mServer.nextRevision();
+            long start = SystemClock.elapsedRealtime();
+            List<LocationSyncer.Result> results = SunshineSyncAdapter.syncAll(mSyncer, targets);
+            report.addRound(SystemClock.elapsedRealtime() - start, results);
+        }
+        Log.i(LOG_TAG, report.toString());
+        return report;
+    }
+
+    private static class Report {
+        final String mName;
+        final List<Long> mRoundMillis = new ArrayList<Long>();
+        final List<Long> mFetchMillis = new ArrayList<Long>();
+        final List<Long> mParseMillis = new ArrayList<Long>();
+        final List<Long> mWriteMillis = new ArrayList<Long>();
+        long mBytes;
+        int mOk;
+        int mServerDown;
+        int mInvalid;
+
+        Report(String name) {
+            mName = name;
+        }
+
+        void addRound(long millis, List<LocationSyncer.Result> results) {
+            mRoundMillis.add(millis);
+            for (LocationSyncer.Result result : results) {
+                switch (result.status) {
+                    case SunshineSyncAdapter.LOCATION_STATUS_OK:
+                        mOk++;
+                        // Only locations that got all the way through say what a sync costs
+                        mFetchMillis.add(result.stages.fetchMillis);
+                        mParseMillis.add(result.stages.parseMillis);
+                        mWriteMillis.add(result.stages.writeMillis);
+                        break;
+                    case SunshineSyncAdapter.LOCATION_STATUS_INVALID:
+                        mInvalid++;
+                        break;
+                    default:
+                        mServerDown++;
+                        break;
+                }
+                mBytes += result.stages.bytes;
+            }
+        }
+
+        long roundMillis(int percent) {
+            return percentile(mRoundMillis, percent);
+        }
+
+        void assertWithinBudgets() {
+            assertTrue(mName + ": parse p95 " + percentile(mParseMillis, 95) + "ms",
+                    percentile(mParseMillis, 95) <= PARSE_BUDGET_MILLIS);
+            assertTrue(mName + ": write p95 " + percentile(mWriteMillis, 95) + "ms",
+                    percentile(mWriteMillis, 95) <= WRITE_BUDGET_MILLIS);
+        }
+
+        @Override
+        public String toString() {
+            long totalMillis = 0;
+            for (long millis : mRoundMillis) {
+                totalMillis += millis;
+            }
+            int locations = mOk + mServerDown + mInvalid;
+            return String.format(Locale.US,
+                    "%s: %d locations in %d rounds, %d ok, %d failed, %d invalid; " +
+                            "%.1f locations/s, %.1f KB/s; p50/p95 ms: round %d/%d, " +
+                            "fetch %d/%d, parse %d/%d, write %d/%d",
+                    mName, locations, mRoundMillis.size(), mOk, mServerDown, mInvalid,
+                    locations * 1000.0 / Math.max(totalMillis, 1),
+                    mBytes / 1024.0 * 1000.0 / Math.max(totalMillis, 1),
+                    percentile(mRoundMillis, 50), percentile(mRoundMillis, 95),
+                    percentile(mFetchMillis, 50), percentile(mFetchMillis, 95),
+                    percentile(mParseMillis, 50), percentile(mParseMillis, 95),
+                    percentile(mWriteMillis, 50), percentile(mWriteMillis, 95));
+        }
+
+        /*
+            Nearest rank, like the sync journal's summary
+         */
+        private static long percentile(List<Long> samples, int percent) {
+            if (samples.isEmpty()) {
+                return 0;
+            }
+            Long[] sorted = samples.toArray(new Long[samples.size()]);
+            Arrays.sort(sorted);
+            int rank = (percent * sorted.length + 99) / 100;
+            return sorted[Math.max(rank, 1) - 1];
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.utils;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Builds responses shaped like the OpenWeatherMap daily forecast API, so parsing and syncing
+ * can be exercised without a network.
+ */
+public class FakeForecastJson {
+
+    /**
+     * @param cityName The city name to report
+     * @param days Number of entries in the "list" array
+     * @param seed Changes the generated values, so two calls with different seeds differ
+     */
+    public static String dailyForecast(String cityName, int days, int seed) {
+        return dailyForecast(cityName, days, seed, 0, 0);
+    }
+
+    /**
+     * @param revision Changes the pressure of every day, so the same city can be given a new
+     *                 forecast
+     * @param paddingBytes Size of an extra field the parser has to skip, to grow the payload
+     *                     without changing the forecast
+     */
+    public static String dailyForecast(String cityName, int days, int seed, int revision,
+                                       int paddingBytes) {
+        StringBuilder json = new StringBuilder(256 + days * 320 + paddingBytes);
+        json.append("{\"city\":{\"id\":").append(cityId(seed))
+                .append(",\"name\":\"").append(cityName)
+                .append("\",\"coord\":{\"lon\":-122.0838,\"lat\":37.3861},\"country\":\"US\",")
+                .append("\"population\":0},\"cod\":\"200\",\"message\":0.0123,");
+        if (paddingBytes > 0) {
+            json.append("\"padding\":\"");
+            for (int i = 0; i < paddingBytes; i++) {
+                json.append('x');
+            }
+            json.append("\",");
+        }
+        json.append("\"cnt\":").append(days).append(",\"list\":[");
+        for (int i = 0; i < days; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            double max = 20 + ((i + seed) % 10);
+            double min = max - 8;
+            int weatherId = (i + seed) % 2 == 0 ? 800 : 500;
+            json.append(String.format(Locale.US,
+                    "{\"dt\":%d,\"temp\":{\"day\":%.2f,\"min\":%.2f,\"max\":%.2f,\"night\":%.2f," +
+                            "\"eve\":%.2f,\"morn\":%.2f},\"pressure\":%.2f,\"humidity\":%d," +
+                            "\"weather\":[{\"id\":%d,\"main\":\"%s\",\"description\":\"%s\"," +
+                            "\"icon\":\"01d\"}],\"speed\":%.2f,\"deg\":%d,\"clouds\":0}",
+                    1419076800L + i * 86400L, max - 2, min, max, min + 1, max - 1, min + 2,
+                    1013.25 + i + revision, 40 + (i % 50), weatherId,
+                    weatherId == 800 ? "Clear" : "Rain",
+                    weatherId == 800 ? "sky is clear" : "light rain",
+                    1.5 + (i % 7), (i * 37) % 360));
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    /**
+     * @return a response shaped like the 3-hourly forecast API
+     * @param points Number of entries in the "list" array, 3 hours apart
+     * @param seed Changes the generated values, so two calls with different seeds differ
+     */
+    public static String hourlyForecast(String cityName, int points, int seed) {
+        StringBuilder json = new StringBuilder(256 + points * 400);
+        json.append("{\"cod\":\"200\",\"message\":0.0123,\"cnt\":").append(points)
+                .append(",\"list\":[");
+        for (int i = 0; i < points; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            int weatherId = (i + seed) % 3 == 0 ? 500 : ((i + seed) % 3 == 1 ? 600 : 800);
+            json.append(String.format(Locale.US,
+                    "{\"dt\":%d,\"main\":{\"temp\":%.2f,\"temp_min\":%.2f,\"pressure\":%.2f," +
+                            "\"humidity\":%d},\"weather\":[{\"id\":%d,\"main\":\"%s\"," +
+                            "\"icon\":\"01d\"}],\"wind\":{\"speed\":%.2f,\"deg\":%d}",
+                    1419033600L + i * 10800L, -5 + ((i + seed) % 12) * 1.37, -6.0,
+                    1013.25 + i, 40 + (i % 50), weatherId,
+                    weatherId == 500 ? "Rain" : (weatherId == 600 ? "Snow" : "Clear"),
+                    1.5 + (i % 7), (i * 37) % 360));
+            if (weatherId == 500) {
+                json.append(String.format(Locale.US, ",\"rain\":{\"3h\":%.3f}", 0.125 * (i % 5)));
+            } else if (weatherId == 600) {
+                // Snow on its own, and an empty rain object like the real service sends
+                json.append(String.format(Locale.US, ",\"rain\":{},\"snow\":{\"3h\":%.2f}",
+                        0.5 + (i % 3)));
+            }
+            json.append('}');
+        }
+        json.append("],\"city\":{\"id\":").append(cityId(seed))
+                .append(",\"name\":\"").append(cityName)
+                .append("\",\"coord\":{\"lon\":-122.0838,\"lat\":37.3861},\"country\":\"US\"}}");
+        return json.toString();
+    }
+
+    /**
+     * @return a group response: an object whose "list" holds the given complete forecasts
+     */
+    public static String groupForecast(List<String> forecasts) {
+        StringBuilder json = new StringBuilder("{\"cnt\":").append(forecasts.size())
+                .append(",\"list\":[");
+        for (int i = 0; i < forecasts.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(forecasts.get(i));
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * @return the city id {@link #dailyForecast} reports for a seed
+     */
+    public static long cityId(int seed) {
+        return 5375480 + seed;
+    }
+
+    /**
+     * The body OpenWeatherMap sends back when it doesn't know the location
+     */
+    public static String cityNotFound() {
+        return "{\"cod\":\"404\",\"message\":\"Error: Not found city\"}";
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A tiny HTTP/1.1 server bound to localhost, standing in for OpenWeatherMap in tests.  Every
+ * request is handed to a {@link Handler}, every request is recorded, and connections are kept
+ * alive between requests so connection reuse can be observed.
+ */
+public class LocalHttpServer {
+
+    public interface Handler {
+        Response handle(Request request) throws Exception;
+    }
+
+    public static class Request {
+        public String method;
+        public String path;
+        // header names are lower-cased
+        public final Map<String, String> headers = new LinkedHashMap<String, String>();
+
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase(Locale.US));
+        }
+    }
+
+    public static class Response {
+        public int code = 200;
+        public final Map<String, String> headers = new LinkedHashMap<String, String>();
+        public byte[] body = new byte[0];
+
+        public static Response ok(String body) {
+            Response response = new Response();
+            try {
+                response.body = body.getBytes("UTF-8");
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            response.headers.put("Content-Type", "application/json; charset=utf-8");
+            return response;
+        }
+
+        public static Response status(int code) {
+            Response response = new Response();
+            response.code = code;
+            return response;
+        }
+
+        public Response header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+    }
+
+    private final ServerSocket mServerSocket;
+    private final Handler mHandler;
+    private final List<Request> mRequests = Collections.synchronizedList(new ArrayList<Request>());
+    private final List<Socket> mSockets = Collections.synchronizedList(new ArrayList<Socket>());
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+    private volatile boolean mRunning = true;
+
+    public LocalHttpServer(Handler handler) throws IOException {
+        mHandler = handler;
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptThread = new Thread("LocalHttpServer") {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        };
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public String getUrl(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    public List<Request> getRequests() {
+        synchronized (mRequests) {
+            return new ArrayList<Request>(mRequests);
+        }
+    }
+
+    public int getRequestCount() {
+        return mRequests.size();
+    }
+
+    /**
+     * @return the number of TCP connections accepted so far
+     */
+    public int getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    public void shutdown() {
+        mRunning = false;
+        try {
+            mServerSocket.close();
+        } catch (IOException ignored) {
+        }
+        synchronized (mSockets) {
+            for (Socket socket : mSockets) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void acceptLoop() {
+        while (mRunning) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                mConnectionCount.incrementAndGet();
+                mSockets.add(socket);
+                Thread connectionThread = new Thread("LocalHttpServer connection") {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                };
+                connectionThread.setDaemon(true);
+                connectionThread.start();
+            } catch (IOException e) {
+                // closed by shutdown()
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while (mRunning) {
+                Request request = readRequest(in);
+                if (request == null) {
+                    break;
+                }
+                mRequests.add(request);
+                Response response;
+                try {
+                    response = mHandler.handle(request);
+                } catch (Exception e) {
+                    response = Response.status(500);
+                }
+                writeResponse(out, request, response);
+                if ("close".equalsIgnoreCase(request.getHeader("Connection"))) {
+                    break;
+                }
+            }
+        } catch (SocketException e) {
+            // client went away
+        } catch (IOException e) {
+            // nothing useful to do in a test server
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static Request readRequest(InputStream in) throws IOException {
+        String requestLine = readLine(in);
+        if (requestLine == null || requestLine.length() == 0) {
+            return null;
+        }
+        String[] parts = requestLine.split(" ");
+        Request request = new Request();
+        request.method = parts[0];
+        request.path = parts.length > 1 ? parts[1] : "/";
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                request.headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                        line.substring(colon + 1).trim());
+            }
+        }
+        // Our clients only send GETs, but drain any body so the next request parses cleanly
+        String contentLength = request.getHeader("Content-Length");
+        if (contentLength != null) {
+            long remaining = Long.parseLong(contentLength);
+            while (remaining > 0 && in.read() != -1) {
+                remaining--;
+            }
+        }
+        return request;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                break;
+            }
+            if (c != '\r') {
+                line.write(c);
+            }
+        }
+        if (c == -1 && line.size() == 0) {
+            return null;
+        }
+        return line.toString("ISO-8859-1");
+    }
+
+    private static void writeResponse(OutputStream out, Request request, Response response)
+            throws IOException {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(response.code).append(' ')
+                .append(reasonPhrase(response.code)).append("\r\n");
+        for (Map.Entry<String, String> header : response.headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        boolean hasBody = response.code != 304 && response.code != 204
+                && !"HEAD".equals(request.method);
+        head.append("Content-Length: ").append(hasBody ? response.body.length : 0).append("\r\n");
+        head.append("\r\n");
+        out.write(head.toString().getBytes("ISO-8859-1"));
+        if (hasBody) {
+            out.write(response.body);
+        }
+        out.flush();
+    }
+
+    private static String reasonPhrase(int code) {
+        switch (code) {
+            case 200:
+                return "OK";
+            case 304:
+                return "Not Modified";
+            case 404:
+                return "Not Found";
+            case 500:
+                return "Internal Server Error";
+            case 503:
+                return "Service Unavailable";
+            default:
+                return "Status";
+        }
+    }
+}
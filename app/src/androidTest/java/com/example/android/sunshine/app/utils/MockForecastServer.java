@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.utils;
+
+import android.net.Uri;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local stand-in for the OpenWeatherMap daily forecast API, single and group endpoints,
+ * serving generated forecasts for the locations {@link #locationSetting} names.  How many days
+ * it serves, how many locations it knows, how slow it is, how often it fails and how big its
+ * responses are can all be changed while it runs.
+ */
+public class MockForecastServer {
+
+    private static final String SETTING_PREFIX = "mock-";
+
+    private final LocalHttpServer mServer;
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicLong mBytesServed = new AtomicLong();
+
+    private volatile int mDays = 14;
+    private volatile int mLocationCount = Integer.MAX_VALUE;
+    private volatile long mLatencyMillis;
+    private volatile int mPaddingBytes;
+    private volatile int mErrorCode;
+    private volatile int mErrorEvery;
+    private volatile boolean mGroupSupported = true;
+    private volatile int mRevision;
+
+    public MockForecastServer() throws IOException {
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request)
+                    throws Exception {
+                LocalHttpServer.Response response = respond(request);
+                mBytesServed.addAndGet(response.body.length);
+                return response;
+            }
+        });
+    }
+
+    /**
+     * @return the setting of the index-th location the server knows
+     */
+    public static String locationSetting(int index) {
+        return SETTING_PREFIX + index;
+    }
+
+    /**
+     * @return the base url to hand to LocationSyncer in place of OpenWeatherMap's
+     */
+    public String getBaseUrl() {
+        return mServer.getUrl("/");
+    }
+
+    public MockForecastServer setDays(int days) {
+        mDays = days;
+        return this;
+    }
+
+    /**
+     * Locations from this index on get OpenWeatherMap's "city not found".
+     */
+    public MockForecastServer setLocationCount(int locationCount) {
+        mLocationCount = locationCount;
+        return this;
+    }
+
+    /**
+     * @param latencyMillis How long every response waits before it is sent
+     */
+    public MockForecastServer setLatency(long latencyMillis) {
+        mLatencyMillis = latencyMillis;
+        return this;
+    }
+
+    /**
+     * @param paddingBytes Extra bytes in every forecast, in a field the parser skips
+     */
+    public MockForecastServer setPaddingBytes(int paddingBytes) {
+        mPaddingBytes = paddingBytes;
+        return this;
+    }
+
+    /**
+     * Answers every n-th request with the code instead of a forecast; 0 turns it off.
+     */
+    public MockForecastServer setError(int code, int every) {
+        mErrorCode = code;
+        mErrorEvery = every;
+        return this;
+    }
+
+    /**
+     * Without group support, group requests get a 404 like from an upstream that lacks them.
+     */
+    public MockForecastServer setGroupSupported(boolean groupSupported) {
+        mGroupSupported = groupSupported;
+        return this;
+    }
+
+    /**
+     * Changes every forecast served from now on, so a sync has something to write again.
+     */
+    public void nextRevision() {
+        mRevision++;
+    }
+
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * @return the response body bytes sent so far
+     */
+    public long getBytesServed() {
+        return mBytesServed.get();
+    }
+
+    public void shutdown() {
+        mServer.shutdown();
+    }
+
+    private LocalHttpServer.Response respond(LocalHttpServer.Request request) throws Exception {
+        int count = mRequestCount.incrementAndGet();
+        if (mLatencyMillis > 0) {
+            Thread.sleep(mLatencyMillis);
+        }
+        if (mErrorEvery > 0 && count % mErrorEvery == 0) {
+            return LocalHttpServer.Response.status(mErrorCode);
+        }
+
+        Uri uri = Uri.parse("http://localhost" + request.path);
+        if (uri.getPath().endsWith("/group")) {
+            if (!mGroupSupported) {
+                return LocalHttpServer.Response.status(404);
+            }
+            List<String> forecasts = new ArrayList<String>();
+            for (String id : uri.getQueryParameter("id").split(",")) {
+                int index = (int) (Long.parseLong(id) - FakeForecastJson.cityId(0));
+                if (index < mLocationCount) {
+                    forecasts.add(forecast(index));
+                }
+            }
+            return LocalHttpServer.Response.ok(FakeForecastJson.groupForecast(forecasts));
+        }
+
+        String setting = uri.getQueryParameter("q");
+        int index = -1;
+        if (setting != null && setting.startsWith(SETTING_PREFIX)) {
+            try {
+                index = Integer.parseInt(setting.substring(SETTING_PREFIX.length()));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        if (index < 0 || index >= mLocationCount) {
+            // OpenWeatherMap says so in the body, with a 200
+            return LocalHttpServer.Response.ok(FakeForecastJson.cityNotFound());
+        }
+        return LocalHttpServer.Response.ok(forecast(index));
+    }
+
+    private String forecast(int index) {
+        return FakeForecastJson.dailyForecast(locationSetting(index), mDays, index, mRevision,
+                mPaddingBytes);
+    }
+}
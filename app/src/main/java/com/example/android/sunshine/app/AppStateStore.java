@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.preference.PreferenceManager;
+
+import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The app's state as held in the default preferences, kept in memory.  Adapters, widgets and
+ * the sync adapter read settings on every row and every sync; here that is a map lookup rather
+ * than a trip through the preferences' lock.
+ *
+ * Writes made here land in memory at once and reach the preferences in one background commit
+ * {@link #FLUSH_DELAY_MILLIS} after the first of them, so a sync that resets, sets and stamps
+ * its state costs one write to disk instead of one each.  A write lost to the process dying in
+ * between only costs transient state, which the next sync sets again.  Writes made to the
+ * preferences directly, e.g. by the settings screen, reach memory when the preference listeners
+ * run.
+ *
+ * Listeners hear about every change, whoever made it, on the main thread.
+ */
+public class AppStateStore implements SharedPreferences.OnSharedPreferenceChangeListener {
+
+    /**
+     * Told about every change to the state, on the main thread.
+     */
+    public interface Listener {
+        /**
+         * @param key The preference key whose value changed
+         */
+        void onAppStateChanged(String key);
+    }
+
+    // How long writes wait for others to join them before going to disk
+    static final long FLUSH_DELAY_MILLIS = 1000;
+
+    // Counters reported through SunshineStats: writes made to the store, and the commits that
+    // carried them to disk.  Both are kept here and written with each commit, so counting a write
+    // doesn't cost one of its own.
+    public static final String STAT_WRITES = "app_state.writes";
+    public static final String STAT_FLUSHES = "app_state.flushes";
+
+    private static AppStateStore sInstance;
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+    private final Handler mFlushHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+
+    // Every stored value by key, and those not yet committed
+    private final Map<String, Object> mValues;
+    private final Map<String, Object> mPending = new HashMap<String, Object>();
+    private boolean mFlushScheduled;
+    // Writes made since the last commit, for STAT_WRITES
+    private long mUnflushedWrites;
+
+    // Keys and defaults, looked up once rather than on every read
+    private final String mLocationKey;
+    private final String mLocationDefault;
+    private final String mUnitsKey;
+    private final String mUnitsMetric;
+    private final String mArtPackKey;
+    private final String mArtPackSunshine;
+    private final String mLocationStatusKey;
+    private final String mLastNotificationKey;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public static synchronized AppStateStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AppStateStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    AppStateStore(Context context) {
+        mContext = context;
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        mValues = new HashMap<String, Object>(mPrefs.getAll());
+        // The preferences only hold on to their listeners weakly; this one lives as long as the
+        // process does
+        mPrefs.registerOnSharedPreferenceChangeListener(this);
+
+        HandlerThread flushThread = new HandlerThread("AppStateFlush",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        flushThread.start();
+        mFlushHandler = new Handler(flushThread.getLooper());
+
+        mLocationKey = context.getString(R.string.pref_location_key);
+        mLocationDefault = context.getString(R.string.pref_location_default);
+        mUnitsKey = context.getString(R.string.pref_units_key);
+        mUnitsMetric = context.getString(R.string.pref_units_metric);
+        mArtPackKey = context.getString(R.string.pref_art_pack_key);
+        mArtPackSunshine = context.getString(R.string.pref_art_pack_sunshine);
+        mLocationStatusKey = context.getString(R.string.pref_location_status_key);
+        mLastNotificationKey = context.getString(R.string.pref_last_notification);
+    }
+
+    public String getPreferredLocation() {
+        return getString(mLocationKey, mLocationDefault);
+    }
+
+    public boolean isMetric() {
+        return getString(mUnitsKey, mUnitsMetric).equals(mUnitsMetric);
+    }
+
+    public boolean usingLocalGraphics() {
+        return getString(mArtPackKey, mArtPackSunshine).equals(mArtPackSunshine);
+    }
+
+    @SuppressWarnings("ResourceType")
+    public @SunshineSyncAdapter.LocationStatus int getLocationStatus() {
+        return getInt(mLocationStatusKey, SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN);
+    }
+
+    /**
+     * Safe to call from any thread; nothing is written if the status is unchanged.
+     */
+    public void setLocationStatus(@SunshineSyncAdapter.LocationStatus int locationStatus) {
+        put(mLocationStatusKey, locationStatus);
+    }
+
+    /**
+     * @return when the daily weather notification was last shown, or 0 if never
+     */
+    public long getLastNotification() {
+        return getLong(mLastNotificationKey, 0);
+    }
+
+    public void setLastNotification(long time) {
+        put(mLastNotificationKey, time);
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    private synchronized String getString(String key, String defaultValue) {
+        Object value = mValues.get(key);
+        return value instanceof String ? (String) value : defaultValue;
+    }
+
+    private synchronized int getInt(String key, int defaultValue) {
+        Object value = mValues.get(key);
+        return value instanceof Integer ? (Integer) value : defaultValue;
+    }
+
+    private synchronized long getLong(String key, long defaultValue) {
+        Object value = mValues.get(key);
+        return value instanceof Long ? (Long) value : defaultValue;
+    }
+
+    private void put(String key, Object value) {
+        synchronized (this) {
+            if (value.equals(mValues.get(key))) {
+                return;
+            }
+            mValues.put(key, value);
+            mPending.put(key, value);
+            mUnflushedWrites++;
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mFlushHandler.postDelayed(mFlush, FLUSH_DELAY_MILLIS);
+            }
+        }
+        notifyListeners(key);
+    }
+
+    /**
+     * Commits every pending write now, on the calling thread.  The store does this on its own;
+     * tests call it to avoid waiting.
+     */
+    public void flush() {
+        Map<String, Object> pending;
+        long writes;
+        synchronized (this) {
+            mFlushHandler.removeCallbacks(mFlush);
+            mFlushScheduled = false;
+            if (mPending.isEmpty()) {
+                return;
+            }
+            pending = new HashMap<String, Object>(mPending);
+            mPending.clear();
+            writes = mUnflushedWrites;
+            mUnflushedWrites = 0;
+        }
+        SharedPreferences.Editor editor = mPrefs.edit();
+        for (Map.Entry<String, Object> entry : pending.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof Integer) {
+                editor.putInt(entry.getKey(), (Integer) value);
+            } else if (value instanceof Long) {
+                editor.putLong(entry.getKey(), (Long) value);
+            } else {
+                editor.putString(entry.getKey(), (String) value);
+            }
+        }
+        editor.commit();
+        Map<String, Long> counts = new HashMap<String, Long>();
+        counts.put(STAT_WRITES, writes);
+        counts.put(STAT_FLUSHES, 1L);
+        SunshineStats.incrementAll(mContext, counts);
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        Object value = sharedPreferences.getAll().get(key);
+        synchronized (this) {
+            // Our own pending write is newer than whatever this is
+            if (mPending.containsKey(key)) {
+                return;
+            }
+            Object old = value != null ? mValues.put(key, value) : mValues.remove(key);
+            // Our own flush landing, nothing new
+            if (value == null ? old == null : value.equals(old)) {
+                return;
+            }
+        }
+        notifyListeners(key);
+    }
+
+    private void notifyListeners(final String key) {
+        if (mListeners.isEmpty()) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : mListeners) {
+                    listener.onAppStateChanged(key);
+                }
+            }
+        });
+    }
+}
@@ -31,8 +31,9 @@ import android.view.MenuItem;
 import android.view.View;
 
 import com.example.android.sunshine.app.data.WeatherContract;
-import com.example.android.sunshine.app.gcm.RegistrationIntentService;
+import com.example.android.sunshine.app.sync.NetworkBatcher;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+import com.example.android.sunshine.app.sync.SyncScheduler;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
 
@@ -103,8 +104,8 @@ public class MainActivity extends AppCompatActivity implements ForecastFragment.
                     PreferenceManager.getDefaultSharedPreferences(this);
             boolean sentToken = sharedPreferences.getBoolean(SENT_TOKEN_TO_SERVER, false);
             if (!sentToken) {
-                Intent intent = new Intent(this, RegistrationIntentService.class);
-                startService(intent);
+                // Nothing depends on it right away, so it waits for the radio to be up anyway
+                NetworkBatcher.defer(this, NetworkBatcher.WORK_GCM_REGISTRATION);
             }
         }
     }
@@ -135,6 +136,7 @@ public class MainActivity extends AppCompatActivity implements ForecastFragment.
     @Override
     protected void onResume() {
         super.onResume();
+        SyncScheduler.noteActive(this, SyncScheduler.SOURCE_APP);
         String location = Utility.getPreferredLocation( this );
         // update the location in our second pane using the fragment manager
             if (location != null && !location.equals(mLocation)) {
@@ -30,6 +30,7 @@ import android.util.Log;
 import android.view.View;
 import android.widget.ImageView;
 import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.notification.NotificationArtService;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
 import com.google.android.gms.location.places.Place;
 import com.google.android.gms.location.places.ui.PlacePicker;
@@ -44,7 +45,8 @@ import com.google.android.gms.maps.model.LatLng;
  * API Guide</a> for more information on developing a Settings UI.
  */
 public class SettingsActivity extends PreferenceActivity
-        implements Preference.OnPreferenceChangeListener, SharedPreferences.OnSharedPreferenceChangeListener {
+        implements Preference.OnPreferenceChangeListener, SharedPreferences.OnSharedPreferenceChangeListener,
+        AppStateStore.Listener {
     protected final static int PLACE_PICKER_REQUEST = 9090;
     private ImageView mAttribution;
 
@@ -57,6 +59,8 @@ public class SettingsActivity extends PreferenceActivity
         // For all preferences, attach an OnPreferenceChangeListener so the UI summary can be
         // updated when the preference changes.
         bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_location_key)));
+        bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_saved_locations_key)));
+        bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_recent_locations_key)));
         bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_units_key)));
         bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_art_pack_key)));
 
@@ -79,6 +83,7 @@ public class SettingsActivity extends PreferenceActivity
     protected void onResume() {
         SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
         sp.registerOnSharedPreferenceChangeListener(this);
+        AppStateStore.getInstance(this).addListener(this);
         super.onResume();
     }
 
@@ -87,6 +92,7 @@ public class SettingsActivity extends PreferenceActivity
     protected void onPause() {
         SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
         sp.unregisterOnSharedPreferenceChangeListener(this);
+        AppStateStore.getInstance(this).removeListener(this);
         super.onPause();
     }
 
@@ -167,17 +173,29 @@ public class SettingsActivity extends PreferenceActivity
             }
 
             Utility.resetLocationStatus(this);
-            SunshineSyncAdapter.syncImmediately(this);
+            SunshineSyncAdapter.syncImmediately(this, true);
+        } else if ( key.equals(getString(R.string.pref_saved_locations_key)) ) {
+            // fetch forecasts for any newly added locations
+            SunshineSyncAdapter.syncImmediately(this, true);
         } else if ( key.equals(getString(R.string.pref_units_key)) ) {
             // units have changed. update lists of weather entries accordingly
             getContentResolver().notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
-        } else if ( key.equals(getString(R.string.pref_location_status_key)) ) {
-            // our location status has changed.  Update the summary accordingly
-            Preference locationPreference = findPreference(getString(R.string.pref_location_key));
-            bindPreferenceSummaryToValue(locationPreference);
         } else if ( key.equals(getString(R.string.pref_art_pack_key)) ) {
             // art pack have changed. update lists of weather entries accordingly
             getContentResolver().notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
+            // and have the new pack's notification art ready before it's needed
+            NotificationArtService.startWarmUp(this);
+        }
+    }
+
+    // The location status is set through the AppStateStore, which tells us as soon as it
+    // changes rather than when it reaches the preferences
+    @Override
+    public void onAppStateChanged(String key) {
+        if ( key.equals(getString(R.string.pref_location_status_key)) ) {
+            // our location status has changed.  Update the summary accordingly
+            Preference locationPreference = findPreference(getString(R.string.pref_location_key));
+            bindPreferenceSummaryToValue(locationPreference);
         }
     }
 
@@ -235,7 +253,7 @@ public class SettingsActivity extends PreferenceActivity
                 }
 
                 Utility.resetLocationStatus(this);
-                SunshineSyncAdapter.syncImmediately(this);
+                SunshineSyncAdapter.syncImmediately(this, true);
             }
         } else {
             super.onActivityResult(requestCode, resultCode, data);
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Map;
+
+/**
+ * Lightweight counters and timers used to see how Sunshine behaves in the field.  Values are
+ * kept in their own SharedPreferences file so they never show up in (or trigger listeners on)
+ * the user-facing settings, and every write uses apply() so it is safe to call from any thread.
+ */
+public class SunshineStats {
+    static final String PREFS_NAME = "sunshine_stats";
+
+    // Suffixes used to store the pieces of a timer
+    private static final String SUFFIX_COUNT = ".count";
+    private static final String SUFFIX_TOTAL = ".total";
+    private static final String SUFFIX_MAX = ".max";
+    private static final String SUFFIX_LAST = ".last";
+
+    private static SharedPreferences getStats(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Adds one to the named counter.
+     * @param context Context used to get the stats preferences
+     * @param counter The name of the counter
+     */
+    public static void increment(Context context, String counter) {
+        incrementBy(context, counter, 1);
+    }
+
+    /**
+     * Adds the given amount to the named counter.
+     * @param context Context used to get the stats preferences
+     * @param counter The name of the counter
+     * @param amount The amount to add
+     */
+    public static synchronized void incrementBy(Context context, String counter, long amount) {
+        SharedPreferences stats = getStats(context);
+        stats.edit().putLong(counter, stats.getLong(counter, 0) + amount).apply();
+    }
+
+    /**
+     * Adds to several counters in a single write.
+     * @param context Context used to get the stats preferences
+     * @param amounts The amount to add to each counter, by name
+     */
+    public static synchronized void incrementAll(Context context, Map<String, Long> amounts) {
+        SharedPreferences stats = getStats(context);
+        SharedPreferences.Editor editor = stats.edit();
+        for (Map.Entry<String, Long> entry : amounts.entrySet()) {
+            editor.putLong(entry.getKey(), stats.getLong(entry.getKey(), 0) + entry.getValue());
+        }
+        editor.apply();
+    }
+
+    /**
+     * Records a single sample (typically a latency in milliseconds) for the named timer.  We keep
+     * the number of samples, their total, the largest one and the most recent one.
+     * @param context Context used to get the stats preferences
+     * @param timer The name of the timer
+     * @param value The value of the sample
+     */
+    public static synchronized void record(Context context, String timer, long value) {
+        SharedPreferences stats = getStats(context);
+        stats.edit()
+                .putLong(timer + SUFFIX_COUNT, stats.getLong(timer + SUFFIX_COUNT, 0) + 1)
+                .putLong(timer + SUFFIX_TOTAL, stats.getLong(timer + SUFFIX_TOTAL, 0) + value)
+                .putLong(timer + SUFFIX_MAX, Math.max(stats.getLong(timer + SUFFIX_MAX, 0), value))
+                .putLong(timer + SUFFIX_LAST, value)
+                .apply();
+    }
+
+    public static long getCounter(Context context, String counter) {
+        return getStats(context).getLong(counter, 0);
+    }
+
+    public static long getSampleCount(Context context, String timer) {
+        return getStats(context).getLong(timer + SUFFIX_COUNT, 0);
+    }
+
+    public static long getMean(Context context, String timer) {
+        SharedPreferences stats = getStats(context);
+        long count = stats.getLong(timer + SUFFIX_COUNT, 0);
+        return count == 0 ? 0 : stats.getLong(timer + SUFFIX_TOTAL, 0) / count;
+    }
+
+    public static long getMax(Context context, String timer) {
+        return getStats(context).getLong(timer + SUFFIX_MAX, 0);
+    }
+
+    public static long getLast(Context context, String timer) {
+        return getStats(context).getLong(timer + SUFFIX_LAST, 0);
+    }
+}
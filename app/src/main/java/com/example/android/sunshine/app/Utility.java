@@ -26,7 +26,9 @@ import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 public class Utility {
@@ -55,16 +57,45 @@ public class Utility {
     }
 
     public static String getPreferredLocation(Context context) {
+        return AppStateStore.getInstance(context).getPreferredLocation();
+    }
+
+    /**
+     * @return the saved locations the user wants forecasts for besides the preferred one, in
+     * the order they were entered, without blanks or duplicates
+     */
+    public static List<String> getSavedLocations(Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        return prefs.getString(context.getString(R.string.pref_location_key),
-                context.getString(R.string.pref_location_default));
+        String saved = prefs.getString(context.getString(R.string.pref_saved_locations_key), "");
+        String preferred = getPreferredLocation(context);
+        ArrayList<String> locations = new ArrayList<String>();
+        for (String location : saved.split(",")) {
+            location = location.trim();
+            if (location.length() > 0 && !location.equals(preferred)
+                    && !locations.contains(location)) {
+                locations.add(location);
+            }
+        }
+        return locations;
     }
 
-    public static boolean isMetric(Context context) {
+    /**
+     * @return how many of the locations the user switched away from keep their forecasts,
+     * besides the preferred and saved ones
+     */
+    public static int getRecentLocationCount(Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        return prefs.getString(context.getString(R.string.pref_units_key),
-                context.getString(R.string.pref_units_metric))
-                .equals(context.getString(R.string.pref_units_metric));
+        String defaultCount = context.getString(R.string.pref_recent_locations_default);
+        try {
+            return Integer.parseInt(prefs.getString(
+                    context.getString(R.string.pref_recent_locations_key), defaultCount));
+        } catch (NumberFormatException e) {
+            return Integer.parseInt(defaultCount);
+        }
+    }
+
+    public static boolean isMetric(Context context) {
+        return AppStateStore.getInstance(context).isMetric();
     }
 
     public static String formatTemperature(Context context, double temperature) {
@@ -266,10 +297,17 @@ public class Utility {
      * @return true if Sunshine is using local graphics, false otherwise.
      */
     public static boolean usingLocalGraphics(Context context) {
+        return AppStateStore.getInstance(context).usingLocalGraphics();
+    }
+
+    /**
+     * @param context Context to use for retrieving the preference
+     * @return the art pack preference, the format of the art urls
+     */
+    public static String getArtPack(Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        String sunshineArtPack = context.getString(R.string.pref_art_pack_sunshine);
         return prefs.getString(context.getString(R.string.pref_art_pack_key),
-                sunshineArtPack).equals(sunshineArtPack);
+                context.getString(R.string.pref_art_pack_sunshine));
     }
 
     /**
@@ -281,9 +319,7 @@ public class Utility {
      * @return url for the corresponding weather artwork. null if no relation is found.
      */
     public static String getArtUrlForWeatherCondition(Context context, int weatherId) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        String formatArtUrl = prefs.getString(context.getString(R.string.pref_art_pack_key),
-                context.getString(R.string.pref_art_pack_sunshine));
+        String formatArtUrl = getArtPack(context);
 
         // Based on weather code data found at:
         // http://bugs.openweathermap.org/projects/api/wiki/Weather_Condition_Codes
@@ -582,11 +618,22 @@ public class Utility {
      * @param c Context used to get the SharedPreferences
      * @return the location status integer type
      */
-    @SuppressWarnings("ResourceType")
     static public @SunshineSyncAdapter.LocationStatus
     int getLocationStatus(Context c){
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(c);
-        return sp.getInt(c.getString(R.string.pref_location_status_key), SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN);
+        return AppStateStore.getInstance(c).getLocationStatus();
+    }
+
+    /**
+     * @param c Context used to get the SharedPreferences
+     * @param locationSetting Any synced location, preferred or saved
+     * @return the status the last sync of that location ended with
+     */
+    @SuppressWarnings("ResourceType")
+    static public @SunshineSyncAdapter.LocationStatus
+    int getLocationStatus(Context c, String locationSetting){
+        SharedPreferences sp = c.getSharedPreferences(SunshineSyncAdapter.LOCATION_STATUS_PREFS,
+                Context.MODE_PRIVATE);
+        return sp.getInt(locationSetting, SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN);
     }
 
     /**
@@ -594,9 +641,6 @@ public class Utility {
      * @param c Context used to get the SharedPreferences
      */
     static public void resetLocationStatus(Context c){
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(c);
-        SharedPreferences.Editor spe = sp.edit();
-        spe.putInt(c.getString(R.string.pref_location_status_key), SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN);
-        spe.apply();
+        AppStateStore.getInstance(c).setLocationStatus(SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN);
     }
 }
\ No newline at end of file
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Inserts a batch of rows into one table through a single compiled INSERT, binding each row's
+ * values straight to it.  {@link SQLiteDatabase#insert} builds the SQL, compiles it and copies
+ * the values again for every row.
+ *
+ * The columns, and how each is bound, are fixed per table by a {@link Table}, which has to
+ * follow the schema in {@link WeatherDbHelper}.  A row with any other column can't be bound;
+ * {@link #canBind} tells, so the caller can hand that row to insert() instead.
+ *
+ * Not thread safe.  Compile one per batch, inside the batch's transaction, and close it after.
+ */
+class BulkInserter {
+
+    static final int TYPE_INTEGER = 0;
+    static final int TYPE_REAL = 1;
+    static final int TYPE_TEXT = 2;
+
+    /**
+     * The INSERT for one table: its columns in binding order, and their types.
+     */
+    static class Table {
+        final String name;
+        final String[] columns;
+        final int[] types;
+        final String sql;
+
+        /**
+         * @param replace Whether to replace a row with the same key, like
+         *                {@link SQLiteDatabase#CONFLICT_REPLACE}, rather than follow the table's
+         *                own conflict clause
+         */
+        Table(String name, String[] columns, int[] types, boolean replace) {
+            this.name = name;
+            this.columns = columns;
+            this.types = types;
+            StringBuilder sql = new StringBuilder(replace ? "INSERT OR REPLACE INTO " : "INSERT INTO ")
+                    .append(name).append(" (");
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i == 0 ? "" : ",").append(columns[i]);
+            }
+            sql.append(") VALUES (");
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i == 0 ? "?" : ",?");
+            }
+            this.sql = sql.append(')').toString();
+        }
+
+        /**
+         * @return the column's position in the statement, counting from 1 like the bind calls
+         */
+        int indexOf(String column) {
+            for (int i = 0; i < columns.length; i++) {
+                if (columns[i].equals(column)) {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private final Table mTable;
+    private final SQLiteStatement mStatement;
+
+    BulkInserter(SQLiteDatabase db, Table table) {
+        mTable = table;
+        mStatement = db.compileStatement(table.sql);
+    }
+
+    /**
+     * @return whether every value in the row has a column in the statement
+     */
+    boolean canBind(ContentValues values) {
+        if (values.size() > mTable.columns.length) {
+            return false;
+        }
+        for (String key : values.keySet()) {
+            if (mTable.indexOf(key) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Binds the row to the statement.  Columns the row leaves out are bound to null.  Call
+     * {@link #bindLong} after this to put in a value the row doesn't have.
+     */
+    void bind(ContentValues values) {
+        for (int i = 0; i < mTable.columns.length; i++) {
+            Object value = values.get(mTable.columns[i]);
+            if (value == null) {
+                mStatement.bindNull(i + 1);
+                continue;
+            }
+            switch (mTable.types[i]) {
+                case TYPE_INTEGER:
+                    mStatement.bindLong(i + 1, value instanceof Number
+                            ? ((Number) value).longValue() : Long.parseLong(value.toString()));
+                    break;
+                case TYPE_REAL:
+                    mStatement.bindDouble(i + 1, value instanceof Number
+                            ? ((Number) value).doubleValue() : Double.parseDouble(value.toString()));
+                    break;
+                default:
+                    mStatement.bindString(i + 1, value.toString());
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @param index The column's position, from {@link Table#indexOf}
+     */
+    void bindLong(int index, long value) {
+        mStatement.bindLong(index, value);
+    }
+
+    /**
+     * Inserts the row bound last.
+     * @return the new row's id, or -1 if it broke a constraint, as insert() would return
+     */
+    long executeInsert() {
+        try {
+            return mStatement.executeInsert();
+        } catch (SQLiteConstraintException e) {
+            return -1;
+        }
+    }
+
+    void close() {
+        mStatement.close();
+    }
+}
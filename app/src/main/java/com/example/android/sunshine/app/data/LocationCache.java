@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+
+import com.example.android.sunshine.app.SunshineStats;
+import com.example.android.sunshine.app.Utility;
+
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Remembers which location row a location setting resolves to, so the sync adapter, widgets,
+ * Muzei and the watch don't each ask the provider for an id that almost never changes.
+ *
+ * Entries are keyed by location setting.  A setting from the Place Picker is an address the
+ * location table may know under a different name, so the picked coordinates are used as a
+ * second key.  The cache fills lazily and is emptied whenever the location table changes.
+ */
+public class LocationCache {
+
+    // Counters reported through SunshineStats
+    public static final String STAT_HIT = "location_cache.hit";
+    public static final String STAT_MISS = "location_cache.miss";
+
+    // How far, in degrees, a stored city may be from picked coordinates and still match them
+    private static final double COORD_TOLERANCE = 0.05;
+
+    // location_id = ? AND date >= ?
+    // For querying WeatherEntry.CONTENT_URI directly, without the location join, once the id
+    // is known.
+    public static final String WEATHER_FROM_DATE_SELECTION =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
+
+    // location_id = ? AND date = ?
+    public static final String WEATHER_ON_DATE_SELECTION =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
+
+    private static LocationCache sInstance;
+
+    private final Context mContext;
+    private final HashMap<String, Long> mIdsBySetting = new HashMap<String, Long>();
+    private final HashMap<String, Long> mIdsByCoordinates = new HashMap<String, Long>();
+
+    public static synchronized LocationCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new LocationCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    LocationCache(Context context) {
+        mContext = context;
+        // No handler: onChange runs on a binder thread, and clearing is all it does
+        context.getContentResolver().registerContentObserver(
+                WeatherContract.LocationEntry.CONTENT_URI, true, new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        invalidate();
+                    }
+                });
+    }
+
+    /**
+     * @return the id of the location row for the user's preferred location, or -1 if it hasn't
+     * been synced yet
+     */
+    public long getPreferredLocationId() {
+        String locationSetting = Utility.getPreferredLocation(mContext);
+        if (Utility.isLocationLatLonAvailable(mContext)) {
+            return getLocationId(locationSetting, Utility.getLocationLatitude(mContext),
+                    Utility.getLocationLongitude(mContext));
+        }
+        return getLocationId(locationSetting);
+    }
+
+    /**
+     * @return the id of the location row with this setting, or -1 if there isn't one
+     */
+    public long getLocationId(String locationSetting) {
+        synchronized (this) {
+            Long id = mIdsBySetting.get(locationSetting);
+            if (id != null) {
+                SunshineStats.increment(mContext, STAT_HIT);
+                return id;
+            }
+        }
+        SunshineStats.increment(mContext, STAT_MISS);
+        long id = queryId(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting}, null);
+        if (id != -1) {
+            synchronized (this) {
+                mIdsBySetting.put(locationSetting, id);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Like {@link #getLocationId(String)}, but falls back to the stored city nearest the given
+     * coordinates when no row has this setting.
+     */
+    public long getLocationId(String locationSetting, double latitude, double longitude) {
+        String coordinatesKey = coordinatesKey(latitude, longitude);
+        synchronized (this) {
+            Long id = mIdsBySetting.get(locationSetting);
+            if (id == null) {
+                id = mIdsByCoordinates.get(coordinatesKey);
+            }
+            if (id != null) {
+                SunshineStats.increment(mContext, STAT_HIT);
+                return id;
+            }
+        }
+        long id = getLocationId(locationSetting);
+        if (id == -1) {
+            id = queryId(WeatherContract.LocationEntry.COLUMN_COORD_LAT + " BETWEEN ? AND ? AND " +
+                            WeatherContract.LocationEntry.COLUMN_COORD_LONG + " BETWEEN ? AND ?",
+                    new String[]{
+                            Double.toString(latitude - COORD_TOLERANCE),
+                            Double.toString(latitude + COORD_TOLERANCE),
+                            Double.toString(longitude - COORD_TOLERANCE),
+                            Double.toString(longitude + COORD_TOLERANCE)},
+                    nearestFirst(latitude, longitude));
+        }
+        if (id != -1) {
+            synchronized (this) {
+                mIdsByCoordinates.put(coordinatesKey, id);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Forgets everything. Called whenever the location table changes.
+     */
+    public synchronized void invalidate() {
+        mIdsBySetting.clear();
+        mIdsByCoordinates.clear();
+    }
+
+    /**
+     * @return the fraction of lookups answered without going to the provider
+     */
+    public static float getHitRate(Context context) {
+        long hits = SunshineStats.getCounter(context, STAT_HIT);
+        long total = hits + SunshineStats.getCounter(context, STAT_MISS);
+        return total == 0 ? 0f : (float) hits / total;
+    }
+
+    /**
+     * @return selection arguments for {@link #WEATHER_FROM_DATE_SELECTION} and
+     * {@link #WEATHER_ON_DATE_SELECTION}
+     */
+    public static String[] weatherSelectionArgs(long locationId, long date) {
+        return new String[]{Long.toString(locationId),
+                Long.toString(WeatherContract.normalizeDate(date))};
+    }
+
+    private long queryId(String selection, String[] selectionArgs, String sortOrder) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry._ID},
+                selection, selectionArgs, sortOrder);
+        if (cursor == null) {
+            return -1;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return a sort order putting the city nearest the coordinates first, and only it.  The
+     * distance is squared degrees, which is plenty to choose within {@link #COORD_TOLERANCE}.
+     */
+    private static String nearestFirst(double latitude, double longitude) {
+        String lat = "(" + WeatherContract.LocationEntry.COLUMN_COORD_LAT + "-" + latitude + ")";
+        String lon = "(" + WeatherContract.LocationEntry.COLUMN_COORD_LONG + "-" + longitude + ")";
+        return lat + " * " + lat + " + " + lon + " * " + lon + " LIMIT 1";
+    }
+
+    private static String coordinatesKey(double latitude, double longitude) {
+        return String.format(Locale.US, "%.4f,%.4f", latitude, longitude);
+    }
+}
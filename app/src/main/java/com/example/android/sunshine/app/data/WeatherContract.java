@@ -43,12 +43,26 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_SYNC_LOG = "sync_log";
+    public static final String PATH_SUMMARY = "summary";
+    public static final String PATH_HOURLY = "hourly";
+
+    // ContentResolver.call() method that checkpoints the database's write-ahead log, for a sync
+    // to call once it is done writing
+    public static final String METHOD_CHECKPOINT = "checkpoint";
 
     // To make it easy to query for the exact date, we normalize all dates that go into
     // the database to the start of the the Julian day at UTC.
     public static long normalizeDate(long startDate) {
+        return normalizeDate(new Time(), startDate);
+    }
+
+    /**
+     * Same as {@link #normalizeDate(long)}, reusing the given Time instead of allocating one,
+     * for normalizing many dates in a row.
+     */
+    public static long normalizeDate(Time time, long startDate) {
         // normalize the start date to the beginning of the (UTC) day
-        Time time = new Time();
         time.set(startDate);
         int julianDay = Time.getJulianDay(startDate, time.gmtoff);
         return time.setJulianDay(julianDay);
@@ -81,6 +95,25 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LAT = "coord_lat";
         public static final String COLUMN_COORD_LONG = "coord_long";
 
+        // Hex digest of the last forecast response stored for this location, together with the
+        // day it was stored for.  Lets the sync adapter tell when a response changes nothing.
+        public static final String COLUMN_FORECAST_DIGEST = "forecast_digest";
+
+        // OpenWeatherMap's id for the city, used to ask for several locations in one request.
+        // Null until the location has been synced once.
+        public static final String COLUMN_CITY_ID = "city_id";
+
+        // When the location's forecast was last known to be current, in milliseconds since the
+        // epoch: the end of the last sync that got an answer for it, whether or not that
+        // changed anything.  Null until then.  Anything showing the forecast can tell how old
+        // it is from this, see ForecastFreshness.
+        public static final String COLUMN_LAST_SYNC = "last_sync";
+
+        // When the location was last the preferred one, in milliseconds since the epoch, as of
+        // the last sync that got its forecast.  Null for locations that never were.  Decides
+        // which of the locations the user switched away from keep their forecasts.
+        public static final String COLUMN_LAST_USED = "last_used";
+
         public static Uri buildLocationUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -126,10 +159,59 @@ public class WeatherContract {
         // Degrees are meteorological degrees (e.g, 0 is north, 180 is south).  Stored as floats.
         public static final String COLUMN_DEGREES = "degrees";
 
+        // Query parameter selecting how bulkInsert treats rows that already exist
+        public static final String PARAM_INGEST = "ingest";
+        // Compare each incoming day with the stored one: insert new days, update changed ones
+        // in place (keeping their _ID) and leave identical ones alone
+        public static final String INGEST_DIFF = "diff";
+
+        // Query parameters on a change notification giving the range of dates that changed
+        public static final String PARAM_CHANGED_START = "changed_start";
+        public static final String PARAM_CHANGED_END = "changed_end";
+
+        // Query parameter on the uri a diff mode insert returns, saying what happened to the row
+        public static final String PARAM_ROW_STATUS = "row_status";
+        public static final int ROW_INSERTED = 0;
+        public static final int ROW_UPDATED = 1;
+        public static final int ROW_UNCHANGED = 2;
+
         public static Uri buildWeatherUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
 
+        public static Uri buildWeatherUri(long id, int rowStatus) {
+            return buildWeatherUri(id).buildUpon()
+                    .appendQueryParameter(PARAM_ROW_STATUS, Integer.toString(rowStatus)).build();
+        }
+
+        /**
+         * @return ROW_INSERTED, ROW_UPDATED or ROW_UNCHANGED from a diff mode insert's uri
+         */
+        public static int getRowStatusFromUri(Uri uri) {
+            String status = uri.getQueryParameter(PARAM_ROW_STATUS);
+            return status != null ? Integer.parseInt(status) : ROW_INSERTED;
+        }
+
+        /**
+         * @return the uri to bulkInsert one location's forecast through in diff mode.  Only
+         * observers of that location's weather are notified, and only if something changed.
+         */
+        public static Uri buildWeatherDiffUri(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendQueryParameter(PARAM_INGEST, INGEST_DIFF).build();
+        }
+
+        public static Uri buildWeatherLocationChanged(
+                String locationSetting, long changedStart, long changedEnd) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendQueryParameter(PARAM_CHANGED_START, Long.toString(changedStart))
+                    .appendQueryParameter(PARAM_CHANGED_END, Long.toString(changedEnd)).build();
+        }
+
+        public static boolean isDiffIngest(Uri uri) {
+            return INGEST_DIFF.equals(uri.getQueryParameter(PARAM_INGEST));
+        }
+
         /*
             Student: This is the buildWeatherLocation function you filled in.
          */
@@ -164,5 +246,172 @@ public class WeatherContract {
             else
                 return 0;
         }
+
+        /**
+         * @return the first changed date on a change notification, or 0 if it doesn't say
+         */
+        public static long getChangedStartFromUri(Uri uri) {
+            String dateString = uri.getQueryParameter(PARAM_CHANGED_START);
+            return dateString != null ? Long.parseLong(dateString) : 0;
+        }
+
+        /**
+         * @return the last changed date on a change notification, or 0 if it doesn't say
+         */
+        public static long getChangedEndFromUri(Uri uri) {
+            String dateString = uri.getQueryParameter(PARAM_CHANGED_END);
+            return dateString != null ? Long.parseLong(dateString) : 0;
+        }
+    }
+
+    /*
+        Inner class that defines the table contents of the 3-hourly forecast table.  The table is
+        keyed and ordered by (location, time) and has no _ID: nothing refers to a single point,
+        and leaving the rowid out keeps the points of one location next to each other on disk.
+     */
+    public static final class HourlyEntry {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_HOURLY).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOURLY;
+
+        public static final String TABLE_NAME = "hourly";
+
+        // Column with the foreign key into the location table.
+        public static final String COLUMN_LOC_KEY = "location_id";
+        // Start of the 3 hour period, in milliseconds since the epoch
+        public static final String COLUMN_TIME = "time";
+        // Temperature in hundredths of a degree Celsius, see encodeTemperature
+        public static final String COLUMN_TEMP = "temp";
+        // Weather id as returned by API, to identify the icon to be used
+        public static final String COLUMN_WEATHER_ID = "weather_id";
+        // Rain and snow over the 3 hours, in hundredths of a millimetre, see encodePrecipitation
+        public static final String COLUMN_PRECIPITATION = "precipitation";
+
+        // Fixed point scales of the integer columns
+        public static final int TEMP_SCALE = 100;
+        public static final int PRECIPITATION_SCALE = 100;
+
+        // A sync stores at most this many points per location, 5 days of 3 hour periods.
+        // Points before the first one of a sync are deleted, so this bounds the table too.
+        public static final int MAX_POINTS_PER_LOCATION = 40;
+
+        // Query parameters bounding the time of the points, start inclusive and end exclusive
+        public static final String PARAM_START = "start";
+        public static final String PARAM_END = "end";
+
+        public static long encodeTemperature(double celsius) {
+            return Math.round(celsius * TEMP_SCALE);
+        }
+
+        public static double decodeTemperature(long encoded) {
+            return (double) encoded / TEMP_SCALE;
+        }
+
+        public static long encodePrecipitation(double millimetres) {
+            return Math.round(millimetres * PRECIPITATION_SCALE);
+        }
+
+        public static double decodePrecipitation(long encoded) {
+            return (double) encoded / PRECIPITATION_SCALE;
+        }
+
+        /**
+         * @return the uri of all of a location's points.  bulkInsert through it replaces them.
+         */
+        public static Uri buildHourlyLocation(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
+        }
+
+        /**
+         * @return the uri of a location's points with start <= time < end
+         */
+        public static Uri buildHourlyLocationWithRange(
+                String locationSetting, long start, long end) {
+            return buildHourlyLocation(locationSetting).buildUpon()
+                    .appendQueryParameter(PARAM_START, Long.toString(start))
+                    .appendQueryParameter(PARAM_END, Long.toString(end)).build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        /**
+         * @return the start of the range, or Long.MIN_VALUE if the uri doesn't bound it
+         */
+        public static long getStartTimeFromUri(Uri uri) {
+            String timeString = uri.getQueryParameter(PARAM_START);
+            return timeString != null ? Long.parseLong(timeString) : Long.MIN_VALUE;
+        }
+
+        /**
+         * @return the end of the range, or Long.MAX_VALUE if the uri doesn't bound it
+         */
+        public static long getEndTimeFromUri(Uri uri) {
+            String timeString = uri.getQueryParameter(PARAM_END);
+            return timeString != null ? Long.parseLong(timeString) : Long.MAX_VALUE;
+        }
+    }
+
+    /* Inner class that defines the table contents of the sync journal, one row per sync */
+    public static final class SyncLogEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_SYNC_LOG).build();
+
+        // p50 and p95 of every stage over the rows in the journal
+        public static final Uri SUMMARY_URI =
+                CONTENT_URI.buildUpon().appendPath(PATH_SUMMARY).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SYNC_LOG;
+
+        public static final String TABLE_NAME = "sync_log";
+
+        // Only the most recent syncs are kept
+        public static final int MAX_ROWS = 200;
+
+        // Wall clock time the sync started, in milliseconds
+        public static final String COLUMN_START = "start";
+
+        // How long each stage took, in milliseconds.  Stages that ran once per location, which
+        // may have been in parallel, are summed over the locations.
+        public static final String COLUMN_TOTAL_MS = "total_ms";
+        // Up to the response headers
+        public static final String COLUMN_FETCH_MS = "fetch_ms";
+        // Reading and parsing the body, which arrive together
+        public static final String COLUMN_PARSE_MS = "parse_ms";
+        public static final String COLUMN_WRITE_MS = "write_ms";
+        // Removing days before today
+        public static final String COLUMN_DELETE_MS = "delete_ms";
+        // Widgets, Muzei and the notification, which run side by side after the sync.  Like the
+        // watch, filled in once they are done, and null if the sync didn't change the weather.
+        public static final String COLUMN_FANOUT_MS = "fanout_ms";
+        public static final String COLUMN_WATCH_MS = "watch_ms";
+
+        public static final String COLUMN_BYTES = "bytes";
+        public static final String COLUMN_ROWS_CHANGED = "rows_changed";
+        public static final String COLUMN_LOCATIONS = "locations";
+        // The preferred location's SunshineSyncAdapter.LocationStatus
+        public static final String COLUMN_OUTCOME = "outcome";
+
+        // The stage columns the summary reports on, in order
+        public static final String[] STAGE_COLUMNS = {
+                COLUMN_TOTAL_MS, COLUMN_FETCH_MS, COLUMN_PARSE_MS, COLUMN_WRITE_MS,
+                COLUMN_DELETE_MS, COLUMN_FANOUT_MS, COLUMN_WATCH_MS
+        };
+
+        // Columns of the summary, one row per stage
+        public static final String COLUMN_STAGE = "stage";
+        public static final String COLUMN_SAMPLES = "samples";
+        public static final String COLUMN_P50 = "p50";
+        public static final String COLUMN_P95 = "p95";
+
+        public static Uri buildSyncLogUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id);
+        }
     }
 }
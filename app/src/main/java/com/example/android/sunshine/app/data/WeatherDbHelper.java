@@ -15,25 +15,83 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.os.Build;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncLogEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
 /**
  * Manages a local database for weather data.
+ *
+ * From Honeycomb on the database runs in write-ahead log mode: a sync's write transaction no
+ * longer locks out the loaders, widgets and watch, which read the last committed forecast from
+ * a pool of reader connections the platform keeps next to the one writer.  Gingerbread has no
+ * WAL and keeps the rollback journal, where readers wait for the writer.
  */
 public class WeatherDbHelper extends SQLiteOpenHelper {
 
     // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 9;
 
     static final String DATABASE_NAME = "weather.db";
 
+    // Index on one location's days in date order, see onCreate
+    static final String WEATHER_LOCATION_DATE_INDEX = "weather_location_date";
+
+    // How many pages the write-ahead log may grow to before a commit copies it back into the
+    // database.  The platform sets 100, which a sync of a few locations crosses, making some
+    // location's commit pay for the checkpoint.  This lets a whole sync fit, and the sync
+    // checkpoints once it is done instead, see checkpoint().  Only reached if that fails.
+    static final int WAL_AUTOCHECKPOINT_PAGES = 1000;
+
     public WeatherDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB || db.isReadOnly()) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            // Before Jelly Bean the helper can't be asked to; this also sets up the readers
+            db.enableWriteAheadLogging();
+        }
+        // Applies to the writer's connection, the only one that commits
+        DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint=" + WAL_AUTOCHECKPOINT_PAGES,
+                null);
+    }
+
+    /**
+     * Copies what the write-ahead log holds back into the database, as far as it can without
+     * waiting for readers.  Meant for when a batch of writes is done and nobody is waiting.
+     * @return true if readers still needed part of the log, so it couldn't all be copied
+     */
+    boolean checkpoint() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return false;
+        }
+        // One row: whether it was blocked, which a passive checkpoint never is, then the pages
+        // in the log and how many of them were copied back
+        Cursor cursor = getWritableDatabase().rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+        try {
+            return cursor.moveToFirst() && cursor.getLong(2) < cursor.getLong(1);
+        } finally {
+            cursor.close();
+        }
     }
 
     @Override
@@ -45,7 +103,11 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
                 LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
                 LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL " +
+                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
+                LocationEntry.COLUMN_FORECAST_DIGEST + " TEXT, " +
+                LocationEntry.COLUMN_CITY_ID + " INTEGER, " +
+                LocationEntry.COLUMN_LAST_SYNC + " INTEGER, " +
+                LocationEntry.COLUMN_LAST_USED + " INTEGER " +
                 " );";
 
         final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
@@ -79,8 +141,62 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
                 WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
 
+        // The forecast list, widgets, notification, Muzei and the watch all read one location's
+        // days from a date onwards, in date order, which the UNIQUE constraint above can't find
+        // without going through every location's days.  This index can, and it holds every
+        // weather column those reads use, so SQLite answers them from the index alone.  The
+        // UNIQUE index still serves single days and the deletes of days gone by.
+        final String SQL_CREATE_WEATHER_LOCATION_DATE_INDEX = "CREATE INDEX " +
+                WEATHER_LOCATION_DATE_INDEX + " ON " + WeatherEntry.TABLE_NAME + " (" +
+                WeatherEntry.COLUMN_LOC_KEY + ", " +
+                WeatherEntry.COLUMN_DATE + ", " +
+                WeatherEntry.COLUMN_WEATHER_ID + ", " +
+                WeatherEntry.COLUMN_MAX_TEMP + ", " +
+                WeatherEntry.COLUMN_MIN_TEMP + ", " +
+                WeatherEntry.COLUMN_SHORT_DESC + ");";
+
+        // One row per sync.  The stages are nullable so a sync that stopped early, or hasn't
+        // reached the watch yet, leaves them out of the percentiles rather than counting as 0.
+        final String SQL_CREATE_SYNC_LOG_TABLE = "CREATE TABLE " + SyncLogEntry.TABLE_NAME + " (" +
+                SyncLogEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                SyncLogEntry.COLUMN_START + " INTEGER NOT NULL, " +
+                SyncLogEntry.COLUMN_TOTAL_MS + " INTEGER NOT NULL, " +
+                SyncLogEntry.COLUMN_FETCH_MS + " INTEGER, " +
+                SyncLogEntry.COLUMN_PARSE_MS + " INTEGER, " +
+                SyncLogEntry.COLUMN_WRITE_MS + " INTEGER, " +
+                SyncLogEntry.COLUMN_DELETE_MS + " INTEGER, " +
+                SyncLogEntry.COLUMN_FANOUT_MS + " INTEGER, " +
+                SyncLogEntry.COLUMN_WATCH_MS + " INTEGER, " +
+                SyncLogEntry.COLUMN_BYTES + " INTEGER NOT NULL DEFAULT 0, " +
+                SyncLogEntry.COLUMN_ROWS_CHANGED + " INTEGER NOT NULL DEFAULT 0, " +
+                SyncLogEntry.COLUMN_LOCATIONS + " INTEGER NOT NULL DEFAULT 0, " +
+                SyncLogEntry.COLUMN_OUTCOME + " INTEGER NOT NULL);";
+
+        // 3-hourly points, all integers.  The primary key keeps them ordered by location and
+        // time, which is how they are read.  From Lollipop on, SQLite (3.8.2+) can make that key
+        // the table itself rather than an index beside a rowid table, so each point is stored once.
+        String SQL_CREATE_HOURLY_TABLE = "CREATE TABLE " + HourlyEntry.TABLE_NAME + " (" +
+                HourlyEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_TIME + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_TEMP + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_PRECIPITATION + " INTEGER NOT NULL DEFAULT 0, " +
+
+                " FOREIGN KEY (" + HourlyEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+
+                " PRIMARY KEY (" + HourlyEntry.COLUMN_LOC_KEY + ", " +
+                HourlyEntry.COLUMN_TIME + "))";
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            SQL_CREATE_HOURLY_TABLE += " WITHOUT ROWID";
+        }
+        SQL_CREATE_HOURLY_TABLE += ";";
+
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_SYNC_LOG_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_HOURLY_TABLE);
     }
 
     @Override
@@ -93,6 +209,8 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
         // should be your top priority before modifying this method.
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + SyncLogEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + HourlyEntry.TABLE_NAME);
         onCreate(sqLiteDatabase);
     }
 }
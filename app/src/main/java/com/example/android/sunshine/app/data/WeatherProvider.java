@@ -17,12 +17,22 @@ package com.example.android.sunshine.app.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
+import android.text.format.Time;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class WeatherProvider extends ContentProvider {
 
@@ -30,12 +40,69 @@ public class WeatherProvider extends ContentProvider {
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
 
+    // Set while applyBatch runs, collecting the notifications to send once it commits
+    private final ThreadLocal<List<Uri>> mPendingNotifications = new ThreadLocal<List<Uri>>();
+
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
     static final int LOCATION = 300;
-
-    private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    static final int SYNC_LOG = 400;
+    static final int SYNC_LOG_SUMMARY = 401;
+    static final int HOURLY = 500;
+    static final int HOURLY_WITH_LOCATION = 501;
+
+    // The compiled INSERTs bulkInsert uses, one per table.  Their columns follow the schema in
+    // WeatherDbHelper, so they change with DATABASE_VERSION.
+    static final BulkInserter.Table WEATHER_INSERT = new BulkInserter.Table(
+            WeatherContract.WeatherEntry.TABLE_NAME,
+            new String[]{
+                    WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+                    WeatherContract.WeatherEntry.COLUMN_DATE,
+                    WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+                    WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+                    WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+                    WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+                    WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+                    WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+                    WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+                    WeatherContract.WeatherEntry.COLUMN_DEGREES},
+            new int[]{
+                    BulkInserter.TYPE_INTEGER,
+                    BulkInserter.TYPE_INTEGER,
+                    BulkInserter.TYPE_TEXT,
+                    BulkInserter.TYPE_INTEGER,
+                    BulkInserter.TYPE_REAL,
+                    BulkInserter.TYPE_REAL,
+                    BulkInserter.TYPE_REAL,
+                    BulkInserter.TYPE_REAL,
+                    BulkInserter.TYPE_REAL,
+                    BulkInserter.TYPE_REAL},
+            false);
+    private static final int WEATHER_INSERT_DATE =
+            WEATHER_INSERT.indexOf(WeatherContract.WeatherEntry.COLUMN_DATE);
+
+    static final BulkInserter.Table HOURLY_INSERT = new BulkInserter.Table(
+            WeatherContract.HourlyEntry.TABLE_NAME,
+            new String[]{
+                    WeatherContract.HourlyEntry.COLUMN_LOC_KEY,
+                    WeatherContract.HourlyEntry.COLUMN_TIME,
+                    WeatherContract.HourlyEntry.COLUMN_TEMP,
+                    WeatherContract.HourlyEntry.COLUMN_WEATHER_ID,
+                    WeatherContract.HourlyEntry.COLUMN_PRECIPITATION},
+            new int[]{
+                    BulkInserter.TYPE_INTEGER,
+                    BulkInserter.TYPE_INTEGER,
+                    BulkInserter.TYPE_INTEGER,
+                    BulkInserter.TYPE_INTEGER,
+                    BulkInserter.TYPE_INTEGER},
+            true);
+    private static final int HOURLY_INSERT_LOC_KEY =
+            HOURLY_INSERT.indexOf(WeatherContract.HourlyEntry.COLUMN_LOC_KEY);
+
+    // The joins and selections are package private so TestQueryPlans can check the plans of
+    // the exact queries this runs
+    static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
 
     static{
         sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
@@ -51,19 +118,34 @@ public class WeatherProvider extends ContentProvider {
                         "." + WeatherContract.LocationEntry._ID);
     }
 
+    static final SQLiteQueryBuilder sHourlyByLocationSettingQueryBuilder;
+
+    static{
+        sHourlyByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
+
+        //hourly INNER JOIN location ON hourly.location_id = location._id
+        sHourlyByLocationSettingQueryBuilder.setTables(
+                WeatherContract.HourlyEntry.TABLE_NAME + " INNER JOIN " +
+                        WeatherContract.LocationEntry.TABLE_NAME +
+                        " ON " + WeatherContract.HourlyEntry.TABLE_NAME +
+                        "." + WeatherContract.HourlyEntry.COLUMN_LOC_KEY +
+                        " = " + WeatherContract.LocationEntry.TABLE_NAME +
+                        "." + WeatherContract.LocationEntry._ID);
+    }
+
     //location.location_setting = ?
-    private static final String sLocationSettingSelection =
+    static final String sLocationSettingSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
 
     //location.location_setting = ? AND date >= ?
-    private static final String sLocationSettingWithStartDateSelection =
+    static final String sLocationSettingWithStartDateSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
 
     //location.location_setting = ? AND date = ?
-    private static final String sLocationSettingAndDaySelection =
+    static final String sLocationSettingAndDaySelection =
             WeatherContract.LocationEntry.TABLE_NAME +
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
@@ -108,6 +190,32 @@ public class WeatherProvider extends ContentProvider {
         );
     }
 
+    //location.location_setting = ? AND time >= ? AND time < ?
+    static final String sLocationSettingWithTimeRangeSelection =
+            WeatherContract.LocationEntry.TABLE_NAME +
+                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+                    WeatherContract.HourlyEntry.COLUMN_TIME + " >= ? AND " +
+                    WeatherContract.HourlyEntry.COLUMN_TIME + " < ? ";
+
+    private Cursor getHourlyByLocationSetting(Uri uri, String[] projection, String sortOrder) {
+        String locationSetting = WeatherContract.HourlyEntry.getLocationSettingFromUri(uri);
+        long start = WeatherContract.HourlyEntry.getStartTimeFromUri(uri);
+        long end = WeatherContract.HourlyEntry.getEndTimeFromUri(uri);
+        if (sortOrder == null) {
+            // The order of the primary key, so SQLite reads the points straight off it
+            sortOrder = WeatherContract.HourlyEntry.COLUMN_TIME + " ASC";
+        }
+
+        return sHourlyByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+                projection,
+                sLocationSettingWithTimeRangeSelection,
+                new String[]{locationSetting, Long.toString(start), Long.toString(end)},
+                null,
+                null,
+                sortOrder
+        );
+    }
+
     /*
         Students: Here is where you need to create the UriMatcher. This UriMatcher will
         match each URI to the WEATHER, WEATHER_WITH_LOCATION, WEATHER_WITH_LOCATION_AND_DATE,
@@ -130,6 +238,13 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_LOG, SYNC_LOG);
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_LOG + "/" +
+                WeatherContract.PATH_SUMMARY, SYNC_LOG_SUMMARY);
+
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY, HOURLY);
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY + "/*", HOURLY_WITH_LOCATION);
         return matcher;
     }
 
@@ -164,6 +279,12 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case SYNC_LOG:
+            case SYNC_LOG_SUMMARY:
+                return WeatherContract.SyncLogEntry.CONTENT_TYPE;
+            case HOURLY:
+            case HOURLY_WITH_LOCATION:
+                return WeatherContract.HourlyEntry.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -213,6 +334,42 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "sync_log"
+            case SYNC_LOG: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.SyncLogEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "sync_log/summary"
+            case SYNC_LOG_SUMMARY: {
+                retCursor = getSyncLogSummary(selection, selectionArgs);
+                break;
+            }
+            // "hourly/*"
+            case HOURLY_WITH_LOCATION: {
+                retCursor = getHourlyByLocationSetting(uri, projection, sortOrder);
+                break;
+            }
+            // "hourly"
+            case HOURLY: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.HourlyEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -240,7 +397,32 @@ public class WeatherProvider extends ContentProvider {
                     throw new android.database.SQLException("Failed to insert row into " + uri);
                 break;
             }
+            case WEATHER_WITH_LOCATION: {
+                if (!WeatherContract.WeatherEntry.isDiffIngest(uri)) {
+                    throw new UnsupportedOperationException("Unknown uri: " + uri);
+                }
+                // The single row version of diffInsert, for use in applyBatch
+                normalizeDate(values);
+                RowResult result = upsertRow(db, values);
+                if (result.id <= 0)
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                returnUri = WeatherContract.WeatherEntry.buildWeatherUri(result.id, result.status);
+                if (result.status != ROW_UNCHANGED) {
+                    long date = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+                    notifyChange(WeatherContract.WeatherEntry.buildWeatherLocationChanged(
+                            WeatherContract.WeatherEntry.getLocationSettingFromUri(uri),
+                            date, date));
+                }
+                return returnUri;
+            }
             case LOCATION: {
+                // Inserting a location that's already there hands back the existing row, so a
+                // batch can always insert the location and back-reference its id
+                long existingId = findLocation(db,
+                        values.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING));
+                if (existingId > 0) {
+                    return WeatherContract.LocationEntry.buildLocationUri(existingId);
+                }
                 long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
                 if ( _id > 0 )
                     returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
@@ -248,10 +430,22 @@ public class WeatherProvider extends ContentProvider {
                     throw new android.database.SQLException("Failed to insert row into " + uri);
                 break;
             }
+            case SYNC_LOG: {
+                long _id = db.insert(WeatherContract.SyncLogEntry.TABLE_NAME, null, values);
+                if ( _id > 0 )
+                    returnUri = WeatherContract.SyncLogEntry.buildSyncLogUri(_id);
+                else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                // Ids only go up, so this keeps the journal to the newest MAX_ROWS syncs
+                db.delete(WeatherContract.SyncLogEntry.TABLE_NAME,
+                        WeatherContract.SyncLogEntry._ID + " <= ?",
+                        new String[]{Long.toString(_id - WeatherContract.SyncLogEntry.MAX_ROWS)});
+                break;
+            }
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         return returnUri;
     }
 
@@ -271,12 +465,20 @@ public class WeatherProvider extends ContentProvider {
                 rowsDeleted = db.delete(
                         WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
                 break;
+            case SYNC_LOG:
+                rowsDeleted = db.delete(
+                        WeatherContract.SyncLogEntry.TABLE_NAME, selection, selectionArgs);
+                break;
+            case HOURLY:
+                rowsDeleted = db.delete(
+                        WeatherContract.HourlyEntry.TABLE_NAME, selection, selectionArgs);
+                break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         // Because a null deletes all rows
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return rowsDeleted;
     }
@@ -306,11 +508,17 @@ public class WeatherProvider extends ContentProvider {
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
                         selectionArgs);
                 break;
+            case SYNC_LOG:
+                rowsUpdated = db.update(WeatherContract.SyncLogEntry.TABLE_NAME, values, selection,
+                        selectionArgs);
+                break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+        // The forecast digest and the last sync and use times are sync bookkeeping that nothing
+        // redraws for, so changing only those isn't worth waking every location observer for
+        if (rowsUpdated != 0 && !isBookkeepingOnly(values)) {
+            notifyChange(uri);
         }
         return rowsUpdated;
     }
@@ -321,27 +529,379 @@ public class WeatherProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case WEATHER:
-                db.beginTransaction();
-                int returnCount = 0;
-                try {
-                    for (ContentValues value : values) {
-                        normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
-                        if (_id != -1) {
-                            returnCount++;
-                        }
-                    }
-                    db.setTransactionSuccessful();
-                } finally {
-                    db.endTransaction();
-                }
-                getContext().getContentResolver().notifyChange(uri, null);
+                int returnCount = insertWeather(db, values);
+                notifyChange(uri);
                 return returnCount;
+            case WEATHER_WITH_LOCATION:
+                if (WeatherContract.WeatherEntry.isDiffIngest(uri)) {
+                    return diffInsert(db, uri, values);
+                }
+                return super.bulkInsert(uri, values);
+            case HOURLY_WITH_LOCATION:
+                return replaceHourly(db, uri, values);
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    /**
+     * Inserts the rows in one transaction, through one compiled statement.
+     * @return the number of rows inserted
+     */
+    private int insertWeather(SQLiteDatabase db, ContentValues[] values) {
+        int returnCount = 0;
+        db.beginTransaction();
+        try {
+            BulkInserter inserter = new BulkInserter(db, WEATHER_INSERT);
+            try {
+                Time time = new Time();
+                for (ContentValues value : values) {
+                    long _id;
+                    if (inserter.canBind(value)) {
+                        inserter.bind(value);
+                        Long date = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+                        if (date != null) {
+                            inserter.bindLong(WEATHER_INSERT_DATE,
+                                    WeatherContract.normalizeDate(time, date));
+                        }
+                        _id = inserter.executeInsert();
+                    } else {
+                        normalizeDate(value);
+                        _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
+                    }
+                    if (_id != -1) {
+                        returnCount++;
+                    }
+                }
+            } finally {
+                inserter.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return returnCount;
+    }
+
+    /**
+     * Replaces one location's 3-hourly points with the given ones, in one transaction and with
+     * one notification.  The points don't need a location key; only the first
+     * {@link WeatherContract.HourlyEntry#MAX_POINTS_PER_LOCATION} are kept, so however often
+     * a location is synced it never holds more than that.
+     * @return the number of points stored, 0 if the location isn't stored
+     */
+    private int replaceHourly(SQLiteDatabase db, Uri uri, ContentValues[] values) {
+        String locationSetting = WeatherContract.HourlyEntry.getLocationSettingFromUri(uri);
+        int count = Math.min(values.length, WeatherContract.HourlyEntry.MAX_POINTS_PER_LOCATION);
+        int returnCount = 0;
+        db.beginTransaction();
+        try {
+            long locationId = findLocation(db, locationSetting);
+            if (locationId == -1) {
+                return 0;
+            }
+            db.delete(WeatherContract.HourlyEntry.TABLE_NAME,
+                    WeatherContract.HourlyEntry.COLUMN_LOC_KEY + " = ?",
+                    new String[]{Long.toString(locationId)});
+            // Two points for the same time would be a server bug; both ways keep the later one
+            BulkInserter inserter = new BulkInserter(db, HOURLY_INSERT);
+            try {
+                for (int i = 0; i < count; i++) {
+                    long _id;
+                    // Only insert() gives a point without precipitation the column's default
+                    if (inserter.canBind(values[i]) && values[i].containsKey(
+                            WeatherContract.HourlyEntry.COLUMN_PRECIPITATION)) {
+                        inserter.bind(values[i]);
+                        inserter.bindLong(HOURLY_INSERT_LOC_KEY, locationId);
+                        _id = inserter.executeInsert();
+                    } else {
+                        values[i].put(WeatherContract.HourlyEntry.COLUMN_LOC_KEY, locationId);
+                        _id = db.insertWithOnConflict(WeatherContract.HourlyEntry.TABLE_NAME,
+                                null, values[i], SQLiteDatabase.CONFLICT_REPLACE);
+                    }
+                    if (_id != -1) {
+                        returnCount++;
+                    }
+                }
+            } finally {
+                inserter.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        notifyChange(WeatherContract.HourlyEntry.buildHourlyLocation(locationSetting));
+        return returnCount;
+    }
+
+    // What upsertRow did with a row
+    static final int ROW_INSERTED = WeatherContract.WeatherEntry.ROW_INSERTED;
+    static final int ROW_UPDATED = WeatherContract.WeatherEntry.ROW_UPDATED;
+    static final int ROW_UNCHANGED = WeatherContract.WeatherEntry.ROW_UNCHANGED;
+
+    static class RowResult {
+        final long id;
+        final int status;
+
+        RowResult(long id, int status) {
+            this.id = id;
+            this.status = status;
+        }
+    }
+
+    /**
+     * Ingests one location's forecast, touching only the days that are new or different.
+     * Existing rows keep their _ID, and observers of that location are notified once, with the
+     * range of dates that changed, or not at all.
+     * @return the number of rows inserted or updated
+     */
+    private int diffInsert(SQLiteDatabase db, Uri uri, ContentValues[] values) {
+        int changed = 0;
+        long changedStart = Long.MAX_VALUE;
+        long changedEnd = Long.MIN_VALUE;
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                normalizeDate(value);
+                if (upsertRow(db, value).status != ROW_UNCHANGED) {
+                    long date = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+                    changedStart = Math.min(changedStart, date);
+                    changedEnd = Math.max(changedEnd, date);
+                    changed++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (changed > 0) {
+            notifyChange(WeatherContract.WeatherEntry.buildWeatherLocationChanged(
+                    WeatherContract.WeatherEntry.getLocationSettingFromUri(uri),
+                    changedStart, changedEnd));
+        }
+        return changed;
+    }
+
+    /**
+     * Inserts the day if it isn't stored yet, updates it in place if any value differs, and
+     * otherwise leaves it alone.  Must be called with a normalized date.
+     * @return the row's id, and whether it was inserted, updated or unchanged
+     */
+    static RowResult upsertRow(SQLiteDatabase db, ContentValues value) {
+        String[] columns = value.keySet().toArray(new String[value.size() + 1]);
+        columns[columns.length - 1] = WeatherContract.WeatherEntry._ID;
+        Cursor cursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                columns,
+                WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                        WeatherContract.WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{value.getAsString(WeatherContract.WeatherEntry.COLUMN_LOC_KEY),
+                        value.getAsString(WeatherContract.WeatherEntry.COLUMN_DATE)},
+                null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return new RowResult(db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value),
+                        ROW_INSERTED);
+            }
+            long id = cursor.getLong(columns.length - 1);
+            for (int i = 0; i < columns.length - 1; i++) {
+                if (!sameValue(value.get(columns[i]), cursor, i)) {
+                    db.update(WeatherContract.WeatherEntry.TABLE_NAME, value,
+                            WeatherContract.WeatherEntry._ID + " = ?",
+                            new String[]{Long.toString(id)});
+                    return new RowResult(id, ROW_UPDATED);
+                }
+            }
+            return new RowResult(id, ROW_UNCHANGED);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return whether an update only sets location columns the sync keeps for itself
+     */
+    private static boolean isBookkeepingOnly(ContentValues values) {
+        for (String key : values.keySet()) {
+            if (!WeatherContract.LocationEntry.COLUMN_FORECAST_DIGEST.equals(key)
+                    && !WeatherContract.LocationEntry.COLUMN_LAST_SYNC.equals(key)
+                    && !WeatherContract.LocationEntry.COLUMN_LAST_USED.equals(key)) {
+                return false;
+            }
+        }
+        return values.size() > 0;
+    }
+
+    private static boolean sameValue(Object incoming, Cursor cursor, int index) {
+        if (incoming == null || cursor.isNull(index)) {
+            return incoming == null && cursor.isNull(index);
+        }
+        if (incoming instanceof Double || incoming instanceof Float) {
+            return ((Number) incoming).doubleValue() == cursor.getDouble(index);
+        }
+        if (incoming instanceof Number) {
+            return ((Number) incoming).longValue() == cursor.getLong(index);
+        }
+        return incoming.toString().equals(cursor.getString(index));
+    }
+
+    /**
+     * Applies the whole batch in one transaction.  Notifications raised by the individual
+     * operations are held back and sent as a single notifyChange once the transaction commits,
+     * so observers reload once per batch rather than once per operation.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        ArrayList<Uri> pending = new ArrayList<Uri>();
+        mPendingNotifications.set(pending);
+        ContentProviderResult[] results;
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mPendingNotifications.remove();
+        }
+        if (!pending.isEmpty()) {
+            getContext().getContentResolver().notifyChange(mergeNotifications(pending), null);
+        }
+        return results;
+    }
+
+    private void notifyChange(Uri uri) {
+        List<Uri> pending = mPendingNotifications.get();
+        if (pending != null) {
+            pending.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Folds a batch's notifications into one uri that reaches every observer any of them would
+     * have reached.  Changes to a single location's weather keep their combined date range;
+     * anything wider falls back to the closest common parent path.
+     */
+    static Uri mergeNotifications(List<Uri> uris) {
+        Uri first = uris.get(0);
+        List<String> common = new ArrayList<String>(first.getPathSegments());
+        long changedStart = Long.MAX_VALUE;
+        long changedEnd = Long.MIN_VALUE;
+        boolean haveRange = true;
+        for (Uri uri : uris) {
+            List<String> segments = uri.getPathSegments();
+            int i = 0;
+            while (i < common.size() && i < segments.size() && common.get(i).equals(segments.get(i))) {
+                i++;
+            }
+            if (i < common.size() || segments.size() != common.size()) {
+                haveRange = false;
+            }
+            common = common.subList(0, i);
+
+            long start = WeatherContract.WeatherEntry.getChangedStartFromUri(uri);
+            long end = WeatherContract.WeatherEntry.getChangedEndFromUri(uri);
+            if (start == 0 || end == 0) {
+                haveRange = false;
+            } else {
+                changedStart = Math.min(changedStart, start);
+                changedEnd = Math.max(changedEnd, end);
+            }
+        }
+        if (haveRange && common.size() == 2
+                && WeatherContract.PATH_WEATHER.equals(common.get(0))) {
+            return WeatherContract.WeatherEntry.buildWeatherLocationChanged(
+                    common.get(1), changedStart, changedEnd);
+        }
+        Uri.Builder builder = WeatherContract.BASE_CONTENT_URI.buildUpon();
+        for (String segment : common) {
+            builder.appendPath(segment);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Works out the median and 95th percentile of every stage in the journal, using the nearest
+     * rank.  Syncs that never reached a stage are left out of that stage rather than counted as 0.
+     * @param selection Narrows down the journal rows, e.g. to one outcome
+     * @return one row per {@link WeatherContract.SyncLogEntry#STAGE_COLUMNS} column
+     */
+    private Cursor getSyncLogSummary(String selection, String[] selectionArgs) {
+        final String[] stages = WeatherContract.SyncLogEntry.STAGE_COLUMNS;
+        MatrixCursor summary = new MatrixCursor(new String[]{
+                WeatherContract.SyncLogEntry.COLUMN_STAGE,
+                WeatherContract.SyncLogEntry.COLUMN_SAMPLES,
+                WeatherContract.SyncLogEntry.COLUMN_P50,
+                WeatherContract.SyncLogEntry.COLUMN_P95});
+        Cursor cursor = mOpenHelper.getReadableDatabase().query(
+                WeatherContract.SyncLogEntry.TABLE_NAME, stages, selection, selectionArgs,
+                null, null, null);
+        try {
+            long[][] samples = new long[stages.length][cursor.getCount()];
+            int[] counts = new int[stages.length];
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < stages.length; i++) {
+                    if (!cursor.isNull(i)) {
+                        samples[i][counts[i]++] = cursor.getLong(i);
+                    }
+                }
+            }
+            for (int i = 0; i < stages.length; i++) {
+                long[] values = Arrays.copyOf(samples[i], counts[i]);
+                Arrays.sort(values);
+                summary.addRow(new Object[]{stages[i], values.length,
+                        percentile(values, 50), percentile(values, 95)});
+            }
+        } finally {
+            cursor.close();
+        }
+        return summary;
+    }
+
+    /**
+     * @param sorted Samples in ascending order
+     * @return the nearest rank percentile, or null if there are no samples
+     */
+    static Long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return null;
+        }
+        // ceil(percent / 100 * n), without floating point rounding a rank up
+        int rank = (percent * sorted.length + 99) / 100;
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+    /**
+     * @return the _id of the location with this setting, or -1 if there isn't one
+     */
+    private static long findLocation(SQLiteDatabase db, String locationSetting) {
+        if (locationSetting == null) {
+            return -1;
+        }
+        Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry._ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    @TargetApi(11)
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (WeatherContract.METHOD_CHECKPOINT.equals(method)) {
+            mOpenHelper.checkpoint();
+            return null;
+        }
+        return super.call(method, arg, extras);
+    }
+
     // You do not need to call this method. This is a method specifically to assist the testing
     // framework in running smoothly. You can read more at:
     // http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()
@@ -21,7 +21,6 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Bundle;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
@@ -29,6 +28,7 @@ import android.widget.Toast;
 
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.notification.NotificationArtCache;
 import com.google.android.gms.gcm.GcmListenerService;
 
 import org.json.JSONException;
@@ -43,6 +43,8 @@ public class MyGcmListenerService extends GcmListenerService {
     private static final String EXTRA_LOCATION = "location";
 
     public static final int NOTIFICATION_ID = 1;
+    // Any thunderstorm, for the bundled storm art
+    private static final int STORM_WEATHER_ID = 200;
 
     /**
      * Called when message is received.
@@ -95,7 +97,10 @@ public class MyGcmListenerService extends GcmListenerService {
         // icon as a bitmap. So we need to create that here from the resource ID, and pass the
         // object along in our notification builder. Generally, you want to use the app icon as the
         // small icon, so that users understand what app is triggering this notification.
-        Bitmap largeIcon = BitmapFactory.decodeResource(this.getResources(), R.drawable.art_storm);
+        // The storm art comes ready sized from the cache; an alert that finds it missing goes
+        // without rather than be held up decoding it.
+        Bitmap largeIcon = NotificationArtCache.getInstance(this)
+                .getLargeIcon(STORM_WEATHER_ID, NotificationArtCache.PACK_BUNDLED);
         NotificationCompat.Builder mBuilder =
                 new NotificationCompat.Builder(this)
                         .setSmallIcon(R.drawable.art_clear)
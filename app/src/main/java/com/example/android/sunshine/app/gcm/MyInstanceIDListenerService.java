@@ -16,7 +16,7 @@
 
 package com.example.android.sunshine.app.gcm;
 
-import android.content.Intent;
+import com.example.android.sunshine.app.sync.NetworkBatcher;
 import com.google.android.gms.iid.InstanceIDListenerService;
 
 public class MyInstanceIDListenerService extends InstanceIDListenerService {
@@ -29,8 +29,7 @@ public class MyInstanceIDListenerService extends InstanceIDListenerService {
      */
     @Override
     public void onTokenRefresh() {
-        // Fetch updated Instance ID token.
-        Intent intent = new Intent(this, RegistrationIntentService.class);
-        startService(intent);
+        // Fetch updated Instance ID token, along with the app's other network work.
+        NetworkBatcher.defer(this, NetworkBatcher.WORK_GCM_REGISTRATION);
     }
 }
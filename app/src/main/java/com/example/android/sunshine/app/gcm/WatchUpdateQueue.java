@@ -0,0 +1,197 @@
+package com.example.android.sunshine.app.gcm;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+import android.util.Log;
+
+import com.example.android.sunshine.app.SunshineStats;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.MessageApi;
+import com.google.android.gms.wearable.Node;
+import com.google.android.gms.wearable.NodeApi;
+import com.google.android.gms.wearable.Wearable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persisted outbound queue for messages headed to the watch.  The queue only ever holds the
+ * latest payload for each path, since the watch face has no use for anything but the most recent
+ * weather, and it survives process death so an update made while the watch is out of range is
+ * delivered as soon as it comes back.
+ */
+public class WatchUpdateQueue {
+    private static final String TAG = "WatchUpdateQueue";
+
+    static final String PREFS_NAME = "watch_outbound_queue";
+
+    // Each queued path is stored as three keys: the payload, when it was first queued and how
+    // many delivery attempts have failed so far.
+    private static final String SUFFIX_PAYLOAD = "#payload";
+    private static final String SUFFIX_QUEUED_AT = "#queued_at";
+    private static final String SUFFIX_ATTEMPTS = "#attempts";
+
+    // After this many failed flushes we give up on an entry; the next sync will queue a fresh one.
+    static final int MAX_ATTEMPTS = 5;
+
+    // Counters and timers reported through SunshineStats
+    public static final String STAT_DEPTH = "watch_queue.depth";
+    public static final String STAT_AGE = "watch_queue.age_ms";
+    public static final String STAT_FLUSH_LATENCY = "watch_queue.flush_latency_ms";
+    public static final String STAT_DELIVERED = "watch_queue.delivered";
+    public static final String STAT_DROPPED = "watch_queue.dropped";
+
+    private static SharedPreferences getQueue(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Queues the payload for the given path, replacing anything already waiting for that path.
+     * The original queue time is kept so the reported age reflects how long the watch has been
+     * out of date, not how long this particular payload has been waiting.
+     */
+    public static synchronized void enqueue(Context context, String path, byte[] payload) {
+        SharedPreferences queue = getQueue(context);
+        long queuedAt = queue.getLong(path + SUFFIX_QUEUED_AT, System.currentTimeMillis());
+        queue.edit()
+                .putString(path + SUFFIX_PAYLOAD, Base64.encodeToString(payload, Base64.NO_WRAP))
+                .putLong(path + SUFFIX_QUEUED_AT, queuedAt)
+                .putInt(path + SUFFIX_ATTEMPTS, 0)
+                .apply();
+        SunshineStats.record(context, STAT_DEPTH, getDepth(context));
+    }
+
+    /**
+     * @return the number of paths waiting to be delivered
+     */
+    public static synchronized int getDepth(Context context) {
+        return getQueuedPaths(getQueue(context)).size();
+    }
+
+    /**
+     * @return how long, in milliseconds, the oldest queued entry has been waiting. 0 if empty.
+     */
+    public static synchronized long getOldestAge(Context context) {
+        SharedPreferences queue = getQueue(context);
+        long oldest = Long.MAX_VALUE;
+        for (String path : getQueuedPaths(queue)) {
+            oldest = Math.min(oldest, queue.getLong(path + SUFFIX_QUEUED_AT, Long.MAX_VALUE));
+        }
+        return oldest == Long.MAX_VALUE ? 0 : System.currentTimeMillis() - oldest;
+    }
+
+    /**
+     * Tries to deliver every queued entry to all connected nodes.  This blocks on the Wearable
+     * API, so it must not be called from the UI thread.
+     * @param context Context used to get the queue
+     * @param googleApiClient A connected client with the Wearable API
+     * @return the number of entries still waiting after the flush
+     */
+    public static synchronized int flush(Context context, GoogleApiClient googleApiClient) {
+        SharedPreferences queue = getQueue(context);
+        List<String> paths = getQueuedPaths(queue);
+        if (paths.isEmpty()) {
+            return 0;
+        }
+
+        SunshineStats.record(context, STAT_DEPTH, paths.size());
+        SunshineStats.record(context, STAT_AGE, getOldestAge(context));
+
+        if (!googleApiClient.isConnected()) {
+            return paths.size();
+        }
+
+        NodeApi.GetConnectedNodesResult nodesResult =
+                Wearable.NodeApi.getConnectedNodes(googleApiClient).await();
+        List<Node> nodes = nodesResult.getNodes();
+        if (nodes == null || nodes.isEmpty()) {
+            // Nobody to talk to. This isn't a failed attempt, so leave the retry count alone.
+            Log.d(TAG, "No connected nodes, keeping " + paths.size() + " queued updates");
+            return paths.size();
+        }
+
+        SharedPreferences.Editor editor = queue.edit();
+        int remaining = 0;
+        for (String path : paths) {
+            byte[] payload = Base64.decode(queue.getString(path + SUFFIX_PAYLOAD, ""), Base64.NO_WRAP);
+            boolean delivered = true;
+            for (Node node : nodes) {
+                MessageApi.SendMessageResult result = Wearable.MessageApi.sendMessage(
+                        googleApiClient, node.getId(), path, payload).await();
+                delivered &= result.getStatus().isSuccess();
+            }
+
+            if (recordAttempt(context, queue, editor, path, delivered)) {
+                remaining++;
+            }
+        }
+        editor.apply();
+        return remaining;
+    }
+
+    /**
+     * Records how one attempt to deliver the entry queued for the path went, as
+     * {@link #flush} does for every entry.
+     * @return true if the entry is still queued
+     */
+    static synchronized boolean recordAttempt(Context context, String path, boolean delivered) {
+        SharedPreferences queue = getQueue(context);
+        SharedPreferences.Editor editor = queue.edit();
+        boolean queued = recordAttempt(context, queue, editor, path, delivered);
+        editor.apply();
+        return queued;
+    }
+
+    /**
+     * @return the payload queued for the path, or null if there is none
+     */
+    static synchronized byte[] getPayload(Context context, String path) {
+        String payload = getQueue(context).getString(path + SUFFIX_PAYLOAD, null);
+        return payload != null ? Base64.decode(payload, Base64.NO_WRAP) : null;
+    }
+
+    /**
+     * A delivered entry leaves the queue, and so does one that has now failed
+     * {@link #MAX_ATTEMPTS} times.
+     */
+    private static boolean recordAttempt(Context context, SharedPreferences queue,
+                                         SharedPreferences.Editor editor, String path,
+                                         boolean delivered) {
+        if (delivered) {
+            long latency = System.currentTimeMillis() - queue.getLong(path + SUFFIX_QUEUED_AT,
+                    System.currentTimeMillis());
+            SunshineStats.record(context, STAT_FLUSH_LATENCY, latency);
+            SunshineStats.increment(context, STAT_DELIVERED);
+            removeEntry(editor, path);
+            return false;
+        }
+        int attempts = queue.getInt(path + SUFFIX_ATTEMPTS, 0) + 1;
+        if (attempts >= MAX_ATTEMPTS) {
+            Log.w(TAG, "Giving up on " + path + " after " + attempts + " attempts");
+            SunshineStats.increment(context, STAT_DROPPED);
+            removeEntry(editor, path);
+            return false;
+        }
+        editor.putInt(path + SUFFIX_ATTEMPTS, attempts);
+        return true;
+    }
+
+    private static void removeEntry(SharedPreferences.Editor editor, String path) {
+        editor.remove(path + SUFFIX_PAYLOAD)
+                .remove(path + SUFFIX_QUEUED_AT)
+                .remove(path + SUFFIX_ATTEMPTS);
+    }
+
+    private static List<String> getQueuedPaths(SharedPreferences queue) {
+        List<String> paths = new ArrayList<String>();
+        for (Map.Entry<String, ?> entry : queue.getAll().entrySet()) {
+            String key = entry.getKey();
+            if (key.endsWith(SUFFIX_PAYLOAD)) {
+                paths.add(key.substring(0, key.length() - SUFFIX_PAYLOAD.length()));
+            }
+        }
+        return paths;
+    }
+}
@@ -4,7 +4,6 @@ package com.example.android.sunshine.app.gcm;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.net.Uri;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -12,18 +11,22 @@ import android.util.Log;
 
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.LocationCache;
 import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.sync.ForecastFreshness;
+import com.example.android.sunshine.app.sync.SyncScheduler;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.CapabilityInfo;
 import com.google.android.gms.wearable.MessageEvent;
 import com.google.android.gms.wearable.Node;
-import com.google.android.gms.wearable.NodeApi;
 import com.google.android.gms.wearable.Wearable;
 import com.google.android.gms.wearable.WearableListenerService;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
 
 public class WatchWeatherService extends WearableListenerService
         implements GoogleApiClient.ConnectionCallbacks, GoogleApiClient.OnConnectionFailedListener {
@@ -52,28 +55,49 @@ public class WatchWeatherService extends WearableListenerService
 
     private static final String TAG = "WatchWeatherService";
 
+    // How long a flush waits for the Wearable API to connect before leaving the queue for later
+    private static final long CONNECT_TIMEOUT_SECONDS = 30;
+
     @Override
     public void onMessageReceived(MessageEvent messageEvent) {
         if (messageEvent.getPath().equals(WATCH_WEATHER_MSG_PATH)) {
-            if (new String(messageEvent.getData()).equals(WATCH_WEATHER_MSG_PATH)) {
+            if (new String(messageEvent.getData()).equals(WATCH_WEATHER_READY)) {
                 new Thread() {
                     @Override
                     public void run() {
                         try {
                             byte[][] byteArrayMsgHolder = getTodaysForecastData();
+                            if (byteArrayMsgHolder == null) {
+                                return;
+                            }
                             byte[] serializedByteArrayMsgHolder = serialize(byteArrayMsgHolder);
                             sendWeatherToWatch(serializedByteArrayMsgHolder);
                         } catch (IOException e) {
                             Log.e(TAG, Log.getStackTraceString(e));
                         }
                     }
-                };
+                }.start();
             }
         } else {
             super.onMessageReceived(messageEvent);
         }
     }
 
+    @Override
+    public void onPeerConnected(Node peer) {
+        // A watch just came back in range, hand it whatever it missed while it was away.
+        // Listener callbacks are already delivered on a background thread.
+        SyncScheduler.noteActive(this, SyncScheduler.SOURCE_WATCH);
+        flushQueue();
+    }
+
+    @Override
+    public void onCapabilityChanged(CapabilityInfo capabilityInfo) {
+        if (!capabilityInfo.getNodes().isEmpty()) {
+            flushQueue();
+        }
+    }
+
     private static final String[] FORECAST_COLUMNS = {
             WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
             WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
@@ -85,10 +109,13 @@ public class WatchWeatherService extends WearableListenerService
     private static final int INDEX_MIN_TEMP = 2;
 
     private byte[][] getTodaysForecastData() {
-        String location = Utility.getPreferredLocation(this);
-        Uri weatherForLocationUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
-                location, System.currentTimeMillis());
-        Cursor data = getContentResolver().query(weatherForLocationUri, FORECAST_COLUMNS, null, null,
+        long locationId = LocationCache.getInstance(this).getPreferredLocationId();
+        if (locationId == -1) {
+            return null;
+        }
+        Cursor data = getContentResolver().query(WeatherContract.WeatherEntry.CONTENT_URI,
+                FORECAST_COLUMNS, LocationCache.WEATHER_FROM_DATE_SELECTION,
+                LocationCache.weatherSelectionArgs(locationId, System.currentTimeMillis()),
                 WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
         if (data == null) {
             return null;
@@ -108,6 +135,9 @@ public class WatchWeatherService extends WearableListenerService
         String formattedMinTemperature = Utility.formatTemperature(this, minTemp);
         data.close();
 
+        // Answer the watch with what is stored; if that is old, the sync pushes it a newer one
+        ForecastFreshness.revalidateLocation(this, locationId, SyncScheduler.SOURCE_WATCH);
+
         Bitmap forecastBitmap = BitmapFactory.decodeResource(getResources(), weatherArtResourceId);
 
         forecastBitmap = Bitmap.createScaledBitmap(
@@ -149,18 +179,20 @@ public class WatchWeatherService extends WearableListenerService
 //                    }
 //                });
 
-        if (mGoogleApiClient.isConnected()) {
-            NodeApi.GetConnectedNodesResult nodesResult =
-                    Wearable.NodeApi.getConnectedNodes(mGoogleApiClient).await();
-
-            for (Node node : nodesResult.getNodes()) {
-                Wearable.MessageApi.sendMessage(
-                        mGoogleApiClient,
-                        node.getId(),
-                        WATCH_WEATHER_MSG_PATH,
-                        message
-                ).await();
-            }
+        // Always go through the queue, so an update made while no watch is connected is kept
+        // until one shows up instead of being dropped.
+        WatchUpdateQueue.enqueue(this, WATCH_WEATHER_MSG_PATH, message);
+        flushQueue();
+    }
+
+    private void flushQueue() {
+        if (!mGoogleApiClient.isConnected()) {
+            mGoogleApiClient.blockingConnect(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        int remaining = WatchUpdateQueue.flush(this, mGoogleApiClient);
+        if (remaining > 0) {
+            Log.d(TAG, remaining + " watch updates still queued, oldest is "
+                    + WatchUpdateQueue.getOldestAge(this) + "ms old");
         }
     }
 
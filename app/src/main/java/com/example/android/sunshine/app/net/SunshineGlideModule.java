@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.net;
+
+import android.content.Context;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.GlideBuilder;
+import com.bumptech.glide.Priority;
+import com.bumptech.glide.load.data.DataFetcher;
+import com.bumptech.glide.load.model.GenericLoaderFactory;
+import com.bumptech.glide.load.model.GlideUrl;
+import com.bumptech.glide.load.model.ModelLoader;
+import com.bumptech.glide.load.model.ModelLoaderFactory;
+import com.bumptech.glide.load.model.stream.StreamModelLoader;
+import com.bumptech.glide.module.GlideModule;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Routes Glide's network loads (the weather art) through {@link SunshineHttpClient}, so they
+ * share its timeouts, gzip handling, connection pool and timing stats.  Registered in the
+ * manifest.
+ */
+public class SunshineGlideModule implements GlideModule {
+
+    @Override
+    public void applyOptions(Context context, GlideBuilder builder) {
+    }
+
+    @Override
+    public void registerComponents(Context context, Glide glide) {
+        glide.register(GlideUrl.class, InputStream.class, new Factory());
+    }
+
+    public static class Factory implements ModelLoaderFactory<GlideUrl, InputStream> {
+        @Override
+        public ModelLoader<GlideUrl, InputStream> build(Context context,
+                                                        GenericLoaderFactory factories) {
+            return new Loader(SunshineHttpClient.getInstance(context));
+        }
+
+        @Override
+        public void teardown() {
+        }
+    }
+
+    static class Loader implements StreamModelLoader<GlideUrl> {
+        private final SunshineHttpClient mClient;
+
+        Loader(SunshineHttpClient client) {
+            mClient = client;
+        }
+
+        @Override
+        public DataFetcher<InputStream> getResourceFetcher(GlideUrl model, int width, int height) {
+            return new Fetcher(mClient, model);
+        }
+    }
+
+    static class Fetcher implements DataFetcher<InputStream> {
+        private final SunshineHttpClient mClient;
+        private final GlideUrl mUrl;
+        private SunshineHttpClient.Response mResponse;
+        private volatile boolean mCancelled;
+
+        Fetcher(SunshineHttpClient client, GlideUrl url) {
+            mClient = client;
+            mUrl = url;
+        }
+
+        @Override
+        public InputStream loadData(Priority priority) throws Exception {
+            if (mCancelled) {
+                return null;
+            }
+            mResponse = mClient.execute(mClient.open(mUrl.toURL()), SunshineHttpClient.TAG_ART);
+            if (mResponse.getCode() / 100 != 2) {
+                throw new IOException("Request failed " + mResponse.getCode() + " for " + mUrl);
+            }
+            return mResponse.getBody();
+        }
+
+        @Override
+        public void cleanup() {
+            if (mResponse != null) {
+                mResponse.close();
+            }
+        }
+
+        @Override
+        public String getId() {
+            return mUrl.toString();
+        }
+
+        @Override
+        public void cancel() {
+            // The request can't be interrupted once sent, but we can avoid starting it
+            mCancelled = true;
+        }
+    }
+}
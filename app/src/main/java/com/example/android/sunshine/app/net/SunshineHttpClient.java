@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.net;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.sunshine.app.SunshineStats;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The one place Sunshine talks HTTP, used by the forecast sync and, through
+ * {@link SunshineGlideModule}, by Glide for weather art.
+ *
+ * Every connection gets connect and read timeouts and asks for a gzipped response, which is
+ * decoded here.  Connections are never disconnect()ed; instead the body is always read to the end
+ * and closed, which hands the socket back to HttpURLConnection's keep-alive pool for the next
+ * request to the same host.  Each request records how long DNS, connect, time to first byte and
+ * the body took, and how many bytes the body was on the wire, under "http.&lt;tag&gt;.*" in
+ * {@link SunshineStats}.
+ */
+public class SunshineHttpClient {
+    private static final String LOG_TAG = SunshineHttpClient.class.getSimpleName();
+
+    static final int CONNECT_TIMEOUT_MS = 15 * 1000;
+    static final int READ_TIMEOUT_MS = 20 * 1000;
+
+    // Anything left of a body beyond this isn't worth reading just to save a socket
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    // Timers reported through SunshineStats, prefixed with "http.<tag>"
+    public static final String STAT_DNS = ".dns_ms";
+    public static final String STAT_CONNECT = ".connect_ms";
+    public static final String STAT_TTFB = ".ttfb_ms";
+    public static final String STAT_BODY = ".body_ms";
+    public static final String STAT_BYTES = ".bytes";
+
+    public static final String TAG_FORECAST = "forecast";
+    public static final String TAG_FORECAST_GROUP = "forecast_group";
+    public static final String TAG_FORECAST_HOURLY = "forecast_hourly";
+    public static final String TAG_ART = "art";
+
+    private static SunshineHttpClient sInstance;
+
+    private final Context mContext;
+    private final int mConnectTimeoutMs;
+    private final int mReadTimeoutMs;
+
+    public static synchronized SunshineHttpClient getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SunshineHttpClient(context.getApplicationContext(),
+                    CONNECT_TIMEOUT_MS, READ_TIMEOUT_MS);
+        }
+        return sInstance;
+    }
+
+    SunshineHttpClient(Context context, int connectTimeoutMs, int readTimeoutMs) {
+        mContext = context;
+        mConnectTimeoutMs = connectTimeoutMs;
+        mReadTimeoutMs = readTimeoutMs;
+        // On by default, but make it explicit since the whole class relies on it
+        System.setProperty("http.keepAlive", "true");
+    }
+
+    /**
+     * Opens, but doesn't send, a GET request.  Callers can add their own headers before handing
+     * it to {@link #execute}.
+     */
+    public HttpURLConnection open(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("GET");
+        connection.setConnectTimeout(mConnectTimeoutMs);
+        connection.setReadTimeout(mReadTimeoutMs);
+        // Setting this ourselves turns off the platform's transparent gzip handling, which lets
+        // us see the real size on the wire. Response.getBody() counts the bytes and then does
+        // the decoding.
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        return connection;
+    }
+
+    /**
+     * Sends the request and waits for the status line and headers.
+     * @param connection A connection from {@link #open}
+     * @param tag Short name used to group the timing stats, e.g. {@link #TAG_FORECAST}
+     * @return the response, which must be closed
+     */
+    public Response execute(HttpURLConnection connection, String tag) throws IOException {
+        String statPrefix = "http." + tag;
+
+        // Resolve up front so name lookup shows up separately from connect. The result lands
+        // in the platform's DNS cache, so connect() won't look it up again.
+        long start = SystemClock.elapsedRealtime();
+        InetAddress.getByName(connection.getURL().getHost());
+        long resolved = SystemClock.elapsedRealtime();
+        SunshineStats.record(mContext, statPrefix + STAT_DNS, resolved - start);
+
+        // A pooled connection makes this close to free
+        connection.connect();
+        long connected = SystemClock.elapsedRealtime();
+        SunshineStats.record(mContext, statPrefix + STAT_CONNECT, connected - resolved);
+
+        int code = connection.getResponseCode();
+        long firstByte = SystemClock.elapsedRealtime();
+        SunshineStats.record(mContext, statPrefix + STAT_TTFB, firstByte - connected);
+
+        return new Response(connection, code, statPrefix);
+    }
+
+    /**
+     * A response whose headers have arrived.  Closing it drains and closes the body so the
+     * connection can be reused.
+     */
+    public class Response {
+        private final HttpURLConnection mConnection;
+        private final int mCode;
+        private final String mStatPrefix;
+        private CountingInputStream mWire;
+        private TimedInputStream mBody;
+
+        Response(HttpURLConnection connection, int code, String statPrefix) {
+            mConnection = connection;
+            mCode = code;
+            mStatPrefix = statPrefix;
+        }
+
+        public int getCode() {
+            return mCode;
+        }
+
+        public String getHeader(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        /**
+         * @return the underlying connection, for anything that needs the raw headers
+         */
+        public HttpURLConnection getConnection() {
+            return mConnection;
+        }
+
+        /**
+         * @return the decoded body.  Like HttpURLConnection.getInputStream(), this throws for
+         * error responses.
+         */
+        public InputStream getBody() throws IOException {
+            if (mBody == null) {
+                // Counted before decoding, so the sizes are what came over the network
+                mWire = new CountingInputStream(mConnection.getInputStream());
+                mBody = new TimedInputStream(decode(mWire), SystemClock.elapsedRealtime());
+            }
+            return mBody;
+        }
+
+        /**
+         * @return how many bytes of the body, as sent, possibly gzipped, have been read so far
+         */
+        public long getBodyBytes() {
+            return mWire == null ? 0 : mWire.mBytes;
+        }
+
+        public void close() {
+            try {
+                if (mBody == null) {
+                    // Nobody wanted the body (a 304, or an error), but it still has to be
+                    // consumed for the connection to go back in the pool
+                    InputStream raw = mCode >= HttpURLConnection.HTTP_BAD_REQUEST
+                            ? mConnection.getErrorStream() : mConnection.getInputStream();
+                    if (raw != null) {
+                        drainAndClose(raw);
+                    }
+                } else {
+                    mBody.close();
+                }
+            } catch (IOException e) {
+                // The connection is broken; HttpURLConnection won't pool it
+                Log.v(LOG_TAG, "Failed to release connection", e);
+            }
+        }
+
+        private InputStream decode(InputStream raw) throws IOException {
+            String encoding = mConnection.getContentEncoding();
+            if (encoding != null && encoding.equalsIgnoreCase("gzip")) {
+                return new GZIPInputStream(raw);
+            }
+            return raw;
+        }
+
+        private class TimedInputStream extends FilterInputStream {
+            private final long mStart;
+            private boolean mClosed;
+
+            TimedInputStream(InputStream in, long start) {
+                super(in);
+                mStart = start;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+                try {
+                    drainAndClose(in);
+                } finally {
+                    SunshineStats.record(mContext, mStatPrefix + STAT_BODY,
+                            SystemClock.elapsedRealtime() - mStart);
+                    SunshineStats.record(mContext, mStatPrefix + STAT_BYTES, mWire.mBytes);
+                }
+            }
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private long mBytes;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mBytes++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mBytes += read;
+            }
+            return read;
+        }
+    }
+
+    private static void drainAndClose(InputStream in) throws IOException {
+        try {
+            byte[] buffer = new byte[4096];
+            int drained = 0;
+            int read;
+            while (drained < MAX_DRAIN_BYTES && (read = in.read(buffer)) != -1) {
+                drained += read;
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
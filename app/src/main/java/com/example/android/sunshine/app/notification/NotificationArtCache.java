@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.notification;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Build;
+import android.support.annotation.Nullable;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import com.bumptech.glide.Glide;
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.SunshineStats;
+import com.example.android.sunshine.app.Utility;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Large icons for weather notifications, already sized for the notification, so building one
+ * never waits on the network or on decoding an image.
+ *
+ * Entries are keyed by art pack, the artwork a weather condition maps to, and size.  They live
+ * in memory and on disk, where they are kept as raw pixels rather than PNGs: loading one is a
+ * plain read of a few tens of KB.  {@link NotificationArtService} fills the cache in the
+ * background, with every artwork of the current art pack, whenever the pack changes or
+ * {@link #getLargeIcon} finds something missing.
+ */
+public class NotificationArtCache {
+    private static final String LOG_TAG = NotificationArtCache.class.getSimpleName();
+
+    private static final String CACHE_DIR = "notification_art";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // Plenty for every artwork of two packs at the largest notification icon size
+    private static final int MEMORY_MAX_BYTES = 4 * 1024 * 1024;
+
+    // The art bundled with the app, as opposed to a pack from the web
+    public static final String PACK_BUNDLED = "bundled";
+
+    // A condition for each artwork, so warming these covers every artwork of a pack
+    private static final int[] ART_CONDITIONS = {200, 300, 500, 600, 701, 800, 801, 802};
+
+    // Counters reported through SunshineStats
+    public static final String STAT_MEMORY_HIT = "notification_art.memory_hit";
+    public static final String STAT_DISK_HIT = "notification_art.disk_hit";
+    public static final String STAT_MISS = "notification_art.miss";
+    public static final String STAT_WARMED = "notification_art.warmed";
+
+    private static NotificationArtCache sInstance;
+
+    private final Context mContext;
+    private final File mDirectory;
+    private final int mWidth;
+    private final int mHeight;
+    private final LruCache<String, Bitmap> mMemory;
+
+    public static synchronized NotificationArtCache getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            Resources resources = appContext.getResources();
+            // On Honeycomb and higher devices, we can retrieve the size of the large icon
+            // Prior to that, we use a fixed size
+            @SuppressLint("InlinedApi")
+            int width = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                    ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width)
+                    : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
+            @SuppressLint("InlinedApi")
+            int height = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                    ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height)
+                    : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
+            sInstance = new NotificationArtCache(appContext,
+                    new File(appContext.getCacheDir(), CACHE_DIR), width, height);
+        }
+        return sInstance;
+    }
+
+    NotificationArtCache(Context context, File directory, int width, int height) {
+        mContext = context;
+        mDirectory = directory;
+        mWidth = width;
+        mHeight = height;
+        mMemory = new LruCache<String, Bitmap>(MEMORY_MAX_BYTES) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+    }
+
+    /**
+     * @return the pack whose art is shown: {@link #PACK_BUNDLED} while the app uses its own
+     * graphics, as it does for the default pack, otherwise the art pack preference
+     */
+    public static String getCurrentPack(Context context) {
+        return Utility.usingLocalGraphics(context) ? PACK_BUNDLED : Utility.getArtPack(context);
+    }
+
+    /**
+     * Never touches the network or decodes an image, so it is fine to call while building a
+     * notification.  A miss starts {@link NotificationArtService} so the next call will hit.
+     *
+     * @param artPack The pack, usually {@link #getCurrentPack}
+     * @return the notification's large icon for the condition, or null if it isn't cached yet
+     */
+    @Nullable
+    public Bitmap getLargeIcon(int weatherId, String artPack) {
+        String key = keyFor(weatherId, artPack);
+        if (key == null) {
+            return null;
+        }
+        Bitmap bitmap = mMemory.get(key);
+        if (bitmap != null) {
+            SunshineStats.increment(mContext, STAT_MEMORY_HIT);
+            return bitmap;
+        }
+        bitmap = load(key);
+        if (bitmap != null) {
+            SunshineStats.increment(mContext, STAT_DISK_HIT);
+            mMemory.put(key, bitmap);
+            return bitmap;
+        }
+        SunshineStats.increment(mContext, STAT_MISS);
+        Log.d(LOG_TAG, "No notification art for " + weatherId + " yet");
+        NotificationArtService.startWarmUp(mContext);
+        return null;
+    }
+
+    /**
+     * Makes sure every artwork of the current art pack, and of the bundled art, is cached, and
+     * drops any other pack's.  Blocks on the network and on decoding, so only call it from a
+     * background thread.
+     */
+    void warm() {
+        Collection<String> keep = new HashSet<String>();
+        warm(getCurrentPack(mContext), keep);
+        warm(PACK_BUNDLED, keep);
+        retainOnly(keep);
+    }
+
+    /**
+     * Makes sure every artwork of the bundled art is cached, leaving any other pack's alone.
+     * Only decodes, never touches the network, but still only call it from a background thread.
+     */
+    void warmBundled() {
+        warm(PACK_BUNDLED, new HashSet<String>());
+    }
+
+    private void warm(String artPack, Collection<String> keys) {
+        for (int weatherId : ART_CONDITIONS) {
+            String key = keyFor(weatherId, artPack);
+            if (key == null || !keys.add(key) || mMemory.get(key) != null) {
+                continue;
+            }
+            Bitmap bitmap = load(key);
+            if (bitmap == null) {
+                bitmap = fetch(weatherId, artPack);
+                if (bitmap == null) {
+                    continue;
+                }
+                bitmap = store(key, bitmap);
+                SunshineStats.increment(mContext, STAT_WARMED);
+            }
+            mMemory.put(key, bitmap);
+        }
+    }
+
+    /**
+     * Loads and fit-centers the artwork, falling back to the bundled art if the pack's can't
+     * be downloaded.
+     */
+    @Nullable
+    private Bitmap fetch(int weatherId, String artPack) {
+        int artResourceId = Utility.getArtResourceForWeatherCondition(weatherId);
+        try {
+            if (PACK_BUNDLED.equals(artPack)) {
+                return Glide.with(mContext)
+                        .load(artResourceId)
+                        .asBitmap()
+                        .fitCenter()
+                        .into(mWidth, mHeight).get();
+            }
+            return Glide.with(mContext)
+                    .load(Utility.getArtUrlForWeatherCondition(mContext, weatherId))
+                    .asBitmap()
+                    .error(artResourceId)
+                    .fitCenter()
+                    .into(mWidth, mHeight).get();
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(LOG_TAG, "Error retrieving notification art for " + weatherId, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the cache key for the condition's artwork in the pack at our size, or null if
+     * there is no artwork for the condition
+     */
+    @Nullable
+    private String keyFor(int weatherId, String artPack) {
+        String art;
+        if (PACK_BUNDLED.equals(artPack)) {
+            int artResourceId = Utility.getArtResourceForWeatherCondition(weatherId);
+            // Resource ids change from build to build, entry names don't
+            art = artResourceId != -1
+                    ? mContext.getResources().getResourceEntryName(artResourceId) : null;
+        } else {
+            // The url already names both the pack and the artwork
+            art = Utility.getArtUrlForWeatherCondition(mContext, weatherId);
+        }
+        return art != null ? hash(art + "@" + mWidth + "x" + mHeight) : null;
+    }
+
+    /**
+     * Writes the bitmap's pixels to disk, replacing the entry all at once.
+     * @return the bitmap as stored, centered on our full size
+     */
+    synchronized Bitmap store(String key, Bitmap bitmap) {
+        if (bitmap.getWidth() != mWidth || bitmap.getHeight() != mHeight
+                || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            // Fit-center can leave one side short; pad it so every entry has the same layout
+            Bitmap padded = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+            new Canvas(padded).drawBitmap(bitmap,
+                    (mWidth - bitmap.getWidth()) / 2f, (mHeight - bitmap.getHeight()) / 2f, null);
+            bitmap = padded;
+        }
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(LOG_TAG, "Can't create " + mDirectory);
+            return bitmap;
+        }
+        ByteBuffer pixels = ByteBuffer.allocate(bitmap.getRowBytes() * bitmap.getHeight());
+        bitmap.copyPixelsToBuffer(pixels);
+        File temp = new File(mDirectory, key + TEMP_SUFFIX);
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            out.write(pixels.array());
+            out.close();
+            out = null;
+            if (!temp.renameTo(new File(mDirectory, key))) {
+                throw new IOException("Rename failed");
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to cache notification art", e);
+            temp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+        return bitmap;
+    }
+
+    /**
+     * @return the stored bitmap, or null if there isn't one
+     */
+    @Nullable
+    synchronized Bitmap load(String key) {
+        File file = new File(mDirectory, key);
+        int size = mWidth * mHeight * 4;
+        if (file.length() != size) {
+            return null;
+        }
+        byte[] pixels = new byte[size];
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            int read = 0;
+            while (read < size) {
+                int count = in.read(pixels, read, size - read);
+                if (count == -1) {
+                    throw new IOException("Truncated");
+                }
+                read += count;
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Dropping unreadable notification art", e);
+            file.delete();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+        Bitmap bitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+        bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(pixels));
+        return bitmap;
+    }
+
+    /**
+     * Deletes every stored entry but these, e.g. those of an art pack no longer in use.
+     */
+    synchronized void retainOnly(Collection<String> keys) {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!keys.contains(file.getName())) {
+                mMemory.remove(file.getName());
+                file.delete();
+            }
+        }
+    }
+
+    private static String hash(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest(value.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(String.format(Locale.US, "%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            // MD5 and UTF-8 are always there, but fall back to something file-name safe anyway
+            return Integer.toHexString(value.hashCode());
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
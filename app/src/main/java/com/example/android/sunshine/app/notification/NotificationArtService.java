@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.notification;
+
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.sync.NetworkBatcher;
+
+/**
+ * IntentService which fills the {@link NotificationArtCache} with the current art pack, so
+ * notifications find their large icons ready.  Requests queue up behind each other, and every
+ * one after the first finds most of the work already done.  A pack that has to be downloaded
+ * waits for a good time to use the network; see {@link NetworkBatcher}.  The bundled art, which
+ * only needs decoding, doesn't wait for it.
+ */
+public class NotificationArtService extends IntentService {
+
+    // Set on a request to warm only the bundled art
+    private static final String EXTRA_BUNDLED_ONLY = "bundled_only";
+
+    public NotificationArtService() {
+        super("NotificationArtService");
+    }
+
+    public static void startWarmUp(Context context) {
+        if (Utility.usingLocalGraphics(context)) {
+            context.startService(new Intent(context, NotificationArtService.class));
+        } else {
+            // Weather alerts always use the bundled art, so it can't wait hours for the pack
+            context.startService(new Intent(context, NotificationArtService.class)
+                    .putExtra(EXTRA_BUNDLED_ONLY, true));
+            NetworkBatcher.defer(context, NetworkBatcher.WORK_ART_WARM_UP);
+        }
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (intent != null && intent.getBooleanExtra(EXTRA_BUNDLED_ONLY, false)) {
+            NotificationArtCache.getInstance(this).warmBundled();
+            return;
+        }
+        if (!Utility.usingLocalGraphics(this)) {
+            NetworkBatcher.noteRadioUse(this);
+        }
+        NotificationArtCache.getInstance(this).warm();
+    }
+}
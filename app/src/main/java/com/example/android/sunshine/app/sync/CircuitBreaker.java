@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import java.util.Random;
+
+/**
+ * Keeps the sync from hammering a forecast server that is down or sending junk.
+ *
+ * While closed, every request goes through.  After {@link #FAILURE_THRESHOLD} failed syncs in a
+ * row the breaker opens and turns requests away for a backoff period, which doubles, up to
+ * {@link #MAX_BACKOFF_MILLIS}, every time it has to open again.  A random jitter of up to
+ * {@link #JITTER_FRACTION} either way keeps many devices that saw the same outage from all
+ * coming back at once.  Once the period is over the breaker is half open: a single probe is let
+ * through, and its outcome decides between closing again and another, longer, backoff.
+ *
+ * Time is passed in rather than read, and the state is plain fields, so this can be tested on
+ * the JVM and saved anywhere; {@link CircuitBreakerStore} keeps it in SharedPreferences.
+ */
+class CircuitBreaker {
+
+    static final int STATE_CLOSED = 0;
+    static final int STATE_OPEN = 1;
+    static final int STATE_HALF_OPEN = 2;
+
+    static final int FAILURE_THRESHOLD = 3;
+    static final long BASE_BACKOFF_MILLIS = 1000 * 60 * 5;
+    static final long MAX_BACKOFF_MILLIS = 1000 * 60 * 60 * 6;
+    static final double JITTER_FRACTION = 0.2;
+    // A probe that hasn't reported back by then was lost, e.g. with the process
+    static final long PROBE_TIMEOUT_MILLIS = 1000 * 60 * 2;
+
+    private final Random mRandom;
+
+    int state = STATE_CLOSED;
+    // Failed syncs in a row while closed
+    int failures;
+    // How many times the breaker has opened without closing in between
+    int openCount;
+    // When an open breaker lets a probe through, or when a half open one gives up on its probe
+    long retryAt;
+    // Whether the half open probe has been handed out
+    boolean probing;
+
+    CircuitBreaker(Random random) {
+        mRandom = random;
+    }
+
+    /**
+     * @return true if a request may go out now.  Moves an open breaker whose backoff is over to
+     * half open, and hands out its one probe.
+     */
+    boolean allowRequest(long now) {
+        switch (state) {
+            case STATE_OPEN:
+                if (now < retryAt) {
+                    return false;
+                }
+                state = STATE_HALF_OPEN;
+                probing = true;
+                retryAt = now + PROBE_TIMEOUT_MILLIS;
+                return true;
+            case STATE_HALF_OPEN:
+                if (probing && now < retryAt) {
+                    return false;
+                }
+                probing = true;
+                retryAt = now + PROBE_TIMEOUT_MILLIS;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * @return true if {@link #allowRequest} would turn a request away at this time, without
+     * changing any state
+     */
+    boolean isOpen(long now) {
+        return (state == STATE_OPEN || (state == STATE_HALF_OPEN && probing)) && now < retryAt;
+    }
+
+    /**
+     * Lets the next request through as a probe, rather than wait out the backoff or the probe
+     * already out.  For when what is synced has changed, since the old settings may have been
+     * what failed.
+     */
+    void probeNow(long now) {
+        if (state != STATE_CLOSED) {
+            retryAt = now;
+        }
+    }
+
+    void onSuccess() {
+        state = STATE_CLOSED;
+        failures = 0;
+        openCount = 0;
+        probing = false;
+    }
+
+    void onFailure(long now) {
+        if (state == STATE_CLOSED) {
+            failures++;
+            if (failures >= FAILURE_THRESHOLD) {
+                open(now);
+            }
+        } else {
+            // The probe failed, or a request that got out before the breaker opened
+            open(now);
+        }
+    }
+
+    /**
+     * @return how long the breaker stays open the next time it opens, before jitter
+     */
+    long nextBackoffMillis() {
+        long backoff = BASE_BACKOFF_MILLIS;
+        for (int i = 0; i < openCount && backoff < MAX_BACKOFF_MILLIS; i++) {
+            backoff *= 2;
+        }
+        return Math.min(backoff, MAX_BACKOFF_MILLIS);
+    }
+
+    private void open(long now) {
+        long backoff = nextBackoffMillis();
+        double jitter = (mRandom.nextDouble() * 2 - 1) * JITTER_FRACTION;
+        state = STATE_OPEN;
+        openCount++;
+        failures = 0;
+        probing = false;
+        retryAt = now + (long) (backoff * (1 + jitter));
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.example.android.sunshine.app.SunshineStats;
+
+import java.util.Random;
+
+/**
+ * The forecast server's {@link CircuitBreaker}, kept in SharedPreferences so an outage is still
+ * remembered after the process dies, and a reboot doesn't cut a backoff short.  Times are wall
+ * clock times for the same reason.
+ */
+class CircuitBreakerStore {
+    private static final String LOG_TAG = CircuitBreakerStore.class.getSimpleName();
+
+    static final String PREFS_NAME = "circuit_breaker";
+    private static final String KEY_STATE = "state";
+    private static final String KEY_FAILURES = "failures";
+    private static final String KEY_OPEN_COUNT = "open_count";
+    private static final String KEY_RETRY_AT = "retry_at";
+    private static final String KEY_PROBING = "probing";
+
+    // What acquire() allows
+    static final int PERMIT_NONE = 0;
+    static final int PERMIT_ALL = 1;
+    static final int PERMIT_PROBE = 2;
+
+    // Reported through SunshineStats
+    public static final String STAT_OPENED = "circuit.opened";
+    public static final String STAT_REJECTED = "circuit.rejected";
+    public static final String STAT_PROBES = "circuit.probes";
+    public static final String STAT_FAST_FAILED = "circuit.fast_failed";
+
+    private static final Random sRandom = new Random();
+
+    /**
+     * Asks whether a sync may contact the forecast server now.
+     *
+     * @return {@link #PERMIT_ALL} normally, {@link #PERMIT_PROBE} if this sync is the one probe
+     * a half open breaker lets through, or {@link #PERMIT_NONE} while the server is backed off
+     */
+    static synchronized int acquire(Context context) {
+        CircuitBreaker breaker = load(context);
+        int stateBefore = breaker.state;
+        if (!breaker.allowRequest(System.currentTimeMillis())) {
+            SunshineStats.increment(context, STAT_REJECTED);
+            return PERMIT_NONE;
+        }
+        if (breaker.state == CircuitBreaker.STATE_CLOSED) {
+            return PERMIT_ALL;
+        }
+        if (stateBefore != breaker.state) {
+            Log.d(LOG_TAG, "Backoff over, probing the forecast server");
+        }
+        SunshineStats.increment(context, STAT_PROBES);
+        save(context, breaker);
+        return PERMIT_PROBE;
+    }
+
+    /**
+     * @return true if a sync requested now would be turned away.  Doesn't change any state, so
+     * it's fine to call from the UI thread.
+     */
+    static synchronized boolean isOpen(Context context) {
+        return load(context).isOpen(System.currentTimeMillis());
+    }
+
+    /**
+     * Lets the next sync through as a probe; see {@link CircuitBreaker#probeNow}.  Only writes
+     * the retry time, and doesn't wait for it to be saved, so it's fine to call from the UI
+     * thread.
+     */
+    static synchronized void probeNow(Context context) {
+        CircuitBreaker breaker = load(context);
+        breaker.probeNow(System.currentTimeMillis());
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putLong(KEY_RETRY_AT, breaker.retryAt)
+                .apply();
+    }
+
+    /**
+     * Reports how the forecast server behaved during a sync.
+     */
+    static synchronized void onServerSuccess(Context context) {
+        CircuitBreaker breaker = load(context);
+        if (breaker.state == CircuitBreaker.STATE_CLOSED && breaker.failures == 0) {
+            // The usual case; nothing to write
+            return;
+        }
+        if (breaker.state != CircuitBreaker.STATE_CLOSED) {
+            Log.d(LOG_TAG, "Forecast server is back");
+        }
+        breaker.onSuccess();
+        save(context, breaker);
+    }
+
+    /**
+     * Reports that the forecast server was unreachable or answered with junk.
+     */
+    static synchronized void onServerFailure(Context context) {
+        CircuitBreaker breaker = load(context);
+        breaker.onFailure(System.currentTimeMillis());
+        if (breaker.state == CircuitBreaker.STATE_OPEN) {
+            SunshineStats.increment(context, STAT_OPENED);
+            Log.d(LOG_TAG, "Backing off the forecast server for "
+                    + (breaker.retryAt - System.currentTimeMillis()) / 1000 + "s");
+        }
+        save(context, breaker);
+    }
+
+    private static CircuitBreaker load(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        CircuitBreaker breaker = new CircuitBreaker(sRandom);
+        breaker.state = prefs.getInt(KEY_STATE, CircuitBreaker.STATE_CLOSED);
+        breaker.failures = prefs.getInt(KEY_FAILURES, 0);
+        breaker.openCount = prefs.getInt(KEY_OPEN_COUNT, 0);
+        breaker.retryAt = prefs.getLong(KEY_RETRY_AT, 0);
+        breaker.probing = prefs.getBoolean(KEY_PROBING, false);
+        return breaker;
+    }
+
+    private static void save(Context context, CircuitBreaker breaker) {
+        // commit() rather than apply(): the state has to be on disk before the process can go
+        // away, and this only runs on the sync thread
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putInt(KEY_STATE, breaker.state)
+                .putInt(KEY_FAILURES, breaker.failures)
+                .putInt(KEY_OPEN_COUNT, breaker.openCount)
+                .putLong(KEY_RETRY_AT, breaker.retryAt)
+                .putBoolean(KEY_PROBING, breaker.probing)
+                .commit();
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+import com.example.android.sunshine.app.SunshineStats;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+/**
+ * Stale-while-revalidate for everything that shows the forecast: whatever is stored is shown
+ * right away, and if its location's last sync is older than {@link #STALE_AFTER_MILLIS} a sync
+ * is asked for in the background.  What it stores reaches the screen through the usual content
+ * observers.  Requests go through {@link SunshineSyncAdapter#syncImmediately(Context)}, so the
+ * app, widgets and the watch all finding the same data stale still cost one sync.
+ *
+ * The age comes from {@link WeatherContract.LocationEntry#COLUMN_LAST_SYNC}, which any query
+ * joining the location table can select directly.
+ */
+public class ForecastFreshness {
+    private static final String LOG_TAG = ForecastFreshness.class.getSimpleName();
+
+    // The periodic sync runs this often unless it has been stretched, so older data means
+    // at least one was skipped
+    public static final long STALE_AFTER_MILLIS = SunshineSyncAdapter.SYNC_INTERVAL * 1000L;
+
+    // What getLastSync() returns for a location that was never synced
+    public static final long NEVER = -1;
+
+    // Reported through SunshineStats every time a consumer checks: how often the data was
+    // fresh or stale, and how old, in minutes, it was
+    public static final String STAT_FRESH = "freshness.fresh";
+    public static final String STAT_STALE = "freshness.stale";
+    public static final String STAT_AGE_MINUTES = "freshness.age_min";
+
+    /**
+     * @return when the location's forecast was last known to be current, or {@link #NEVER}
+     */
+    public static long getLastSync(Context context, long locationId) {
+        Cursor cursor = context.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry.COLUMN_LAST_SYNC},
+                WeatherContract.LocationEntry._ID + " = ?",
+                new String[]{Long.toString(locationId)}, null);
+        if (cursor == null) {
+            return NEVER;
+        }
+        try {
+            return cursor.moveToFirst() ? getLastSync(cursor, 0) : NEVER;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the last sync time in the cursor's current row, or {@link #NEVER}
+     */
+    public static long getLastSync(Cursor cursor, int columnIndex) {
+        return cursor.isNull(columnIndex) ? NEVER : cursor.getLong(columnIndex);
+    }
+
+    /**
+     * @return how old the forecast is, in milliseconds, or -1 if it was never synced
+     */
+    public static long getAgeMillis(long lastSync, long now) {
+        return lastSync == NEVER ? -1 : now - lastSync;
+    }
+
+    static boolean isStale(long lastSync, long now) {
+        long age = getAgeMillis(lastSync, now);
+        // A negative age means the clock was turned back; don't trust it
+        return age < 0 || age >= STALE_AFTER_MILLIS;
+    }
+
+    /**
+     * Called by anything that has just shown the forecast, with the last sync time of the
+     * location it showed.  Never blocks on the sync.
+     *
+     * @param source Who, e.g. {@link SyncScheduler#SOURCE_APP}; only used for logging
+     * @return true if a sync was asked for
+     */
+    public static boolean revalidate(Context context, long lastSync, String source) {
+        long now = System.currentTimeMillis();
+        long age = getAgeMillis(lastSync, now);
+        if (age >= 0) {
+            SunshineStats.record(context, STAT_AGE_MINUTES, age / (1000 * 60));
+        }
+        if (!isStale(lastSync, now)) {
+            SunshineStats.increment(context, STAT_FRESH);
+            return false;
+        }
+        SunshineStats.increment(context, STAT_STALE);
+        Log.d(LOG_TAG, "Forecast shown by " + source + " is stale ("
+                + (lastSync != NEVER ? age / 1000 + "s old" : "never synced") + "), refreshing");
+        SunshineSyncAdapter.syncImmediately(context);
+        return true;
+    }
+
+    /**
+     * Like {@link #revalidate}, for consumers that have the location id rather than a row
+     * joined with the location.  Queries the provider, so keep it off the main thread.
+     */
+    public static boolean revalidateLocation(Context context, long locationId, String source) {
+        return revalidate(context, getLastSync(context, locationId), source);
+    }
+}
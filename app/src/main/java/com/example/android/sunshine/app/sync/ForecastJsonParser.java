@@ -0,0 +1,561 @@
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.os.Build;
+import android.text.format.Time;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+
+/**
+ * Turns an OpenWeatherMap daily forecast response into rows for the weather table.
+ *
+ * There are two ways in: {@link #parseStream} pulls tokens straight off the HTTP stream and
+ * builds each day's ContentValues as it goes, without ever holding the body or a JSON tree in
+ * memory.  It relies on {@link JsonReader}, which only exists on Honeycomb and up, so
+ * {@link #parseTree} keeps the original JSONObject approach around for older devices.
+ *
+ * A group response, from asking for several cities at once, is an object whose "list" holds one
+ * complete forecast response per city; {@link #parseGroupStream} and {@link #parseGroupTree}
+ * read those.
+ *
+ * The 3-hourly forecast response has the same shape, but its "list" holds one entry per 3 hours
+ * with the temperature in "main" and the precipitation in optional "rain" and "snow" objects.
+ * {@link #parseHourlyStream} and {@link #parseHourlyTree} turn it into rows for the hourly
+ * table.
+ */
+class ForecastJsonParser {
+
+    // These are the names of the JSON objects that need to be extracted.
+
+    // Location information
+    static final String OWM_CITY = "city";
+    static final String OWM_CITY_ID = "id";
+    static final String OWM_CITY_NAME = "name";
+    static final String OWM_COORD = "coord";
+
+    // Location coordinate
+    static final String OWM_LATITUDE = "lat";
+    static final String OWM_LONGITUDE = "lon";
+
+    // Weather information.  Each day's forecast info is an element of the "list" array.
+    static final String OWM_LIST = "list";
+
+    static final String OWM_PRESSURE = "pressure";
+    static final String OWM_HUMIDITY = "humidity";
+    static final String OWM_WINDSPEED = "speed";
+    static final String OWM_WIND_DIRECTION = "deg";
+
+    // All temperatures are children of the "temp" object.
+    static final String OWM_TEMPERATURE = "temp";
+    static final String OWM_MAX = "max";
+    static final String OWM_MIN = "min";
+
+    static final String OWM_WEATHER = "weather";
+    static final String OWM_DESCRIPTION = "main";
+    static final String OWM_WEATHER_ID = "id";
+
+    static final String OWM_MESSAGE_CODE = "cod";
+
+    // 3-hourly forecast information.  "dt" is the start of the 3 hours, in seconds since the
+    // epoch, and the temperature is a child of "main".  "rain" and "snow" are left out when
+    // none is expected; when present, "3h" holds the millimetres over the 3 hours.
+    static final String OWM_DATE_TIME = "dt";
+    static final String OWM_MAIN = "main";
+    static final String OWM_RAIN = "rain";
+    static final String OWM_SNOW = "snow";
+    static final String OWM_THREE_HOURS = "3h";
+
+    // Number of values every day row carries before the location key is added
+    private static final int DAY_VALUE_COUNT = 9;
+    // Number of values every 3-hourly point carries before the location key is added
+    private static final int HOURLY_VALUE_COUNT = 4;
+
+    /**
+     * Everything we keep from a forecast response.  The day rows have every weather column
+     * filled in except the location key, which the caller only knows once the city is stored.
+     */
+    static class Forecast {
+        int code = HttpURLConnection.HTTP_OK;
+        // 0 if the response didn't say
+        long cityId;
+        String cityName;
+        double cityLatitude;
+        double cityLongitude;
+        final ArrayList<ContentValues> days = new ArrayList<ContentValues>();
+    }
+
+    /**
+     * Everything we keep from a 3-hourly forecast response.  The points have every hourly
+     * column filled in except the location key, which the provider adds.
+     */
+    static class HourlyForecast {
+        int code = HttpURLConnection.HTTP_OK;
+        final ArrayList<ContentValues> points = new ArrayList<ContentValues>();
+    }
+
+    /**
+     * Parses the response as it comes off the stream.
+     *
+     * @param in The response body. It is consumed but not closed.
+     * @param julianStartDay The julian day of the first forecast entry
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    static Forecast parseStream(InputStream in, int julianStartDay)
+            throws IOException, JSONException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            return readForecast(reader, julianStartDay);
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            // These all mean the server sent us something that isn't the forecast we expect,
+            // which is a different problem from the connection going away.
+            throw new JSONException(e.getMessage());
+        }
+    }
+
+    /**
+     * Parses a group response as it comes off the stream.
+     *
+     * @param in The response body. It is consumed but not closed.
+     * @param julianStartDay The julian day of the first forecast entry
+     * @return one forecast per city, in the order the server sent them
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    static ArrayList<Forecast> parseGroupStream(InputStream in, int julianStartDay)
+            throws IOException, JSONException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        ArrayList<Forecast> forecasts = new ArrayList<Forecast>();
+        boolean hasList = false;
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_LIST.equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        forecasts.add(readForecast(reader, julianStartDay));
+                    }
+                    reader.endArray();
+                    hasList = true;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            throw new JSONException(e.getMessage());
+        }
+        if (!hasList) {
+            throw new JSONException("No value for " + OWM_LIST);
+        }
+        return forecasts;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static Forecast readForecast(JsonReader reader, int julianStartDay)
+            throws IOException, JSONException {
+        Forecast forecast = new Forecast();
+        boolean hasList = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_MESSAGE_CODE.equals(name)) {
+                forecast.code = reader.nextInt();
+            } else if (OWM_CITY.equals(name)) {
+                readCity(reader, forecast);
+            } else if (OWM_LIST.equals(name)) {
+                // now we work exclusively in UTC
+                Time dayTime = new Time();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    // Cheating to convert this to UTC time, which is what we want anyhow
+                    long dateTime = dayTime.setJulianDay(julianStartDay + forecast.days.size());
+                    forecast.days.add(readDay(reader, dateTime));
+                }
+                reader.endArray();
+                hasList = true;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (forecast.code == HttpURLConnection.HTTP_OK) {
+            // The tree parser fails the same way on either
+            if (!hasList) {
+                throw new JSONException("No value for " + OWM_LIST);
+            }
+            if (forecast.cityName == null) {
+                throw new JSONException("No value for " + OWM_CITY);
+            }
+        }
+        return forecast;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readCity(JsonReader reader, Forecast forecast)
+            throws IOException, JSONException {
+        boolean hasCoord = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY_ID.equals(name)) {
+                forecast.cityId = reader.nextLong();
+            } else if (OWM_CITY_NAME.equals(name)) {
+                forecast.cityName = reader.nextString();
+            } else if (OWM_COORD.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coordName = reader.nextName();
+                    if (OWM_LATITUDE.equals(coordName)) {
+                        forecast.cityLatitude = reader.nextDouble();
+                    } else if (OWM_LONGITUDE.equals(coordName)) {
+                        forecast.cityLongitude = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                hasCoord = true;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (forecast.cityName == null || !hasCoord) {
+            throw new JSONException("Incomplete " + OWM_CITY + " object");
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static ContentValues readDay(JsonReader reader, long dateTime)
+            throws IOException, JSONException {
+        ContentValues weatherValues = new ContentValues(DAY_VALUE_COUNT + 1);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_PRESSURE.equals(name)) {
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, reader.nextDouble());
+            } else if (OWM_HUMIDITY.equals(name)) {
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, reader.nextInt());
+            } else if (OWM_WINDSPEED.equals(name)) {
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, reader.nextDouble());
+            } else if (OWM_WIND_DIRECTION.equals(name)) {
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, reader.nextDouble());
+            } else if (OWM_TEMPERATURE.equals(name)) {
+                // Temperatures are in a child object called "temp".  Try not to name variables
+                // "temp" when working with temperature.  It confuses everybody.
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String tempName = reader.nextName();
+                    if (OWM_MAX.equals(tempName)) {
+                        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, reader.nextDouble());
+                    } else if (OWM_MIN.equals(tempName)) {
+                        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, reader.nextDouble());
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name)) {
+                // Description is in a child array called "weather", which is 1 element long.
+                // That element also contains a weather code.
+                reader.beginArray();
+                if (reader.hasNext() && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String weatherName = reader.nextName();
+                        if (OWM_DESCRIPTION.equals(weatherName)) {
+                            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, reader.nextString());
+                        } else if (OWM_WEATHER_ID.equals(weatherName)) {
+                            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, reader.nextInt());
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                while (reader.hasNext()) {
+                    reader.skipValue();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        // Same contract as the JSONObject path: a day missing any of these is invalid data.
+        if (weatherValues.size() != DAY_VALUE_COUNT) {
+            throw new JSONException("Incomplete forecast day: " + weatherValues);
+        }
+        return weatherValues;
+    }
+
+    /**
+     * Parses a 3-hourly forecast response as it comes off the stream.
+     *
+     * @param in The response body. It is consumed but not closed.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    static HourlyForecast parseHourlyStream(InputStream in) throws IOException, JSONException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        HourlyForecast forecast = new HourlyForecast();
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_MESSAGE_CODE.equals(name)) {
+                    forecast.code = reader.nextInt();
+                } else if (OWM_LIST.equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        forecast.points.add(readPoint(reader));
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            throw new JSONException(e.getMessage());
+        }
+        return forecast;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static ContentValues readPoint(JsonReader reader) throws IOException, JSONException {
+        ContentValues pointValues = new ContentValues(HOURLY_VALUE_COUNT + 1);
+        long precipitation = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_DATE_TIME.equals(name)) {
+                pointValues.put(WeatherContract.HourlyEntry.COLUMN_TIME, reader.nextLong() * 1000);
+            } else if (OWM_MAIN.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (OWM_TEMPERATURE.equals(reader.nextName())) {
+                        pointValues.put(WeatherContract.HourlyEntry.COLUMN_TEMP,
+                                WeatherContract.HourlyEntry.encodeTemperature(reader.nextDouble()));
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name)) {
+                reader.beginArray();
+                if (reader.hasNext() && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if (OWM_WEATHER_ID.equals(reader.nextName())) {
+                            pointValues.put(WeatherContract.HourlyEntry.COLUMN_WEATHER_ID,
+                                    reader.nextInt());
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                while (reader.hasNext()) {
+                    reader.skipValue();
+                }
+                reader.endArray();
+            } else if (OWM_RAIN.equals(name) || OWM_SNOW.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (OWM_THREE_HOURS.equals(reader.nextName())) {
+                        precipitation += WeatherContract.HourlyEntry.encodePrecipitation(
+                                reader.nextDouble());
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        pointValues.put(WeatherContract.HourlyEntry.COLUMN_PRECIPITATION, precipitation);
+        if (pointValues.size() != HOURLY_VALUE_COUNT) {
+            throw new JSONException("Incomplete forecast point: " + pointValues);
+        }
+        return pointValues;
+    }
+
+    /**
+     * Reads the whole response into memory and parses it with JSONObject.  Used on devices
+     * without JsonReader.
+     */
+    static Forecast parseTree(InputStream in, int julianStartDay)
+            throws IOException, JSONException {
+        return parseTree(readFully(in), julianStartDay);
+    }
+
+    /**
+     * Reads a whole group response into memory and parses it with JSONObject.  Used on devices
+     * without JsonReader.
+     */
+    static ArrayList<Forecast> parseGroupTree(InputStream in, int julianStartDay)
+            throws IOException, JSONException {
+        JSONArray forecastsJson = new JSONObject(readFully(in)).getJSONArray(OWM_LIST);
+        ArrayList<Forecast> forecasts = new ArrayList<Forecast>(forecastsJson.length());
+        for (int i = 0; i < forecastsJson.length(); i++) {
+            forecasts.add(readForecast(forecastsJson.getJSONObject(i), julianStartDay));
+        }
+        return forecasts;
+    }
+
+    /**
+     * Reads a whole 3-hourly forecast response into memory and parses it with JSONObject.  Used
+     * on devices without JsonReader.
+     */
+    static HourlyForecast parseHourlyTree(InputStream in) throws IOException, JSONException {
+        JSONObject forecastJson = new JSONObject(readFully(in));
+        HourlyForecast forecast = new HourlyForecast();
+        if (forecastJson.has(OWM_MESSAGE_CODE)) {
+            forecast.code = forecastJson.getInt(OWM_MESSAGE_CODE);
+            if (forecast.code != HttpURLConnection.HTTP_OK) {
+                return forecast;
+            }
+        }
+
+        JSONArray pointArray = forecastJson.getJSONArray(OWM_LIST);
+        for (int i = 0; i < pointArray.length(); i++) {
+            JSONObject pointForecast = pointArray.getJSONObject(i);
+            JSONObject weatherObject = pointForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
+
+            long precipitation = 0;
+            JSONObject rain = pointForecast.optJSONObject(OWM_RAIN);
+            if (rain != null && rain.has(OWM_THREE_HOURS)) {
+                precipitation += WeatherContract.HourlyEntry.encodePrecipitation(
+                        rain.getDouble(OWM_THREE_HOURS));
+            }
+            JSONObject snow = pointForecast.optJSONObject(OWM_SNOW);
+            if (snow != null && snow.has(OWM_THREE_HOURS)) {
+                precipitation += WeatherContract.HourlyEntry.encodePrecipitation(
+                        snow.getDouble(OWM_THREE_HOURS));
+            }
+
+            ContentValues pointValues = new ContentValues(HOURLY_VALUE_COUNT + 1);
+            pointValues.put(WeatherContract.HourlyEntry.COLUMN_TIME,
+                    pointForecast.getLong(OWM_DATE_TIME) * 1000);
+            pointValues.put(WeatherContract.HourlyEntry.COLUMN_TEMP,
+                    WeatherContract.HourlyEntry.encodeTemperature(
+                            pointForecast.getJSONObject(OWM_MAIN).getDouble(OWM_TEMPERATURE)));
+            pointValues.put(WeatherContract.HourlyEntry.COLUMN_WEATHER_ID,
+                    weatherObject.getInt(OWM_WEATHER_ID));
+            pointValues.put(WeatherContract.HourlyEntry.COLUMN_PRECIPITATION, precipitation);
+            forecast.points.add(pointValues);
+        }
+        return forecast;
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        StringBuilder buffer = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            buffer.append(line).append('\n');
+        }
+        if (buffer.length() == 0) {
+            // Stream was empty.  No point in parsing.
+            throw new IOException("Empty forecast response");
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Take the String representing the complete forecast in JSON Format and
+     * pull out the data we need.
+     *
+     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
+     * into an Object hierarchy for us.
+     */
+    static Forecast parseTree(String forecastJsonStr, int julianStartDay) throws JSONException {
+        return readForecast(new JSONObject(forecastJsonStr), julianStartDay);
+    }
+
+    private static Forecast readForecast(JSONObject forecastJson, int julianStartDay)
+            throws JSONException {
+        Forecast forecast = new Forecast();
+
+        // do we have an error?
+        if (forecastJson.has(OWM_MESSAGE_CODE)) {
+            forecast.code = forecastJson.getInt(OWM_MESSAGE_CODE);
+            if (forecast.code != HttpURLConnection.HTTP_OK) {
+                return forecast;
+            }
+        }
+
+        JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
+
+        JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
+        forecast.cityId = cityJson.optLong(OWM_CITY_ID);
+        forecast.cityName = cityJson.getString(OWM_CITY_NAME);
+
+        JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
+        forecast.cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
+        forecast.cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
+
+        // now we work exclusively in UTC
+        Time dayTime = new Time();
+
+        for (int i = 0; i < weatherArray.length(); i++) {
+            // Get the JSON object representing the day
+            JSONObject dayForecast = weatherArray.getJSONObject(i);
+
+            // Description is in a child array called "weather", which is 1 element long.
+            // That element also contains a weather code.
+            JSONObject weatherObject =
+                    dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
+
+            // Temperatures are in a child object called "temp".
+            JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
+
+            ContentValues weatherValues = new ContentValues(DAY_VALUE_COUNT + 1);
+            // Cheating to convert this to UTC time, which is what we want anyhow
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                    dayTime.setJulianDay(julianStartDay + i));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+                    dayForecast.getInt(OWM_HUMIDITY));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+                    dayForecast.getDouble(OWM_PRESSURE));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+                    dayForecast.getDouble(OWM_WINDSPEED));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES,
+                    dayForecast.getDouble(OWM_WIND_DIRECTION));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+                    temperatureObject.getDouble(OWM_MAX));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+                    temperatureObject.getDouble(OWM_MIN));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+                    weatherObject.getString(OWM_DESCRIPTION));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+                    weatherObject.getInt(OWM_WEATHER_ID));
+
+            forecast.days.add(weatherValues);
+        }
+        return forecast;
+    }
+}
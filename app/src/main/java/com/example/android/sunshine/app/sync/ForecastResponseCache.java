@@ -0,0 +1,399 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.example.android.sunshine.app.SunshineStats;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * A small, bounded, on-disk HTTP cache for forecast responses.
+ *
+ * For every query URL we remember the validators the server gave us (ETag and Last-Modified),
+ * how long the response may be used without asking again (Cache-Control max-age) and the body
+ * itself.  That lets the sync adapter skip the request entirely while a response is fresh, send
+ * a conditional request once it isn't, and treat a 304 as "nothing to parse, nothing to write".
+ * The body is kept so the forecast can still be restored if the database lost it meanwhile.
+ *
+ * Entries are evicted least-recently-used first once the cache grows past its size limit.
+ */
+public class ForecastResponseCache {
+    private static final String LOG_TAG = ForecastResponseCache.class.getSimpleName();
+
+    private static final String CACHE_DIR = "forecast_http";
+    // A 14 day forecast is around 6KB, so this holds plenty of locations
+    private static final long DEFAULT_MAX_BYTES = 512 * 1024;
+
+    private static final String META_SUFFIX = ".meta";
+    private static final String BODY_SUFFIX = ".body";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final String META_URL = "url";
+    private static final String META_ETAG = "etag";
+    private static final String META_LAST_MODIFIED = "last_modified";
+    private static final String META_EXPIRES = "expires";
+
+    // Counters reported through SunshineStats
+    public static final String STAT_FRESH_HIT = "forecast_cache.fresh_hit";
+    public static final String STAT_NOT_MODIFIED = "forecast_cache.not_modified";
+    public static final String STAT_MISS = "forecast_cache.miss";
+
+    private static ForecastResponseCache sInstance;
+
+    private final Context mContext;
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    /**
+     * What we know about a previously cached response.
+     */
+    public static class Entry {
+        final String url;
+        final String etag;
+        final String lastModified;
+        final long expires;
+        final File body;
+
+        Entry(String url, String etag, String lastModified, long expires, File body) {
+            this.url = url;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expires = expires;
+            this.body = body;
+        }
+
+        /**
+         * @return true if the server said this response can still be used without asking again
+         */
+        public boolean isFresh() {
+            return System.currentTimeMillis() < expires;
+        }
+    }
+
+    public static synchronized ForecastResponseCache getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            sInstance = new ForecastResponseCache(appContext,
+                    new File(appContext.getCacheDir(), CACHE_DIR), DEFAULT_MAX_BYTES);
+        }
+        return sInstance;
+    }
+
+    ForecastResponseCache(Context context, File directory, long maxBytes) {
+        mContext = context;
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return the cached entry for the url, or null if we have nothing usable
+     */
+    public synchronized Entry get(String url) {
+        String key = keyFor(url);
+        File meta = new File(mDirectory, key + META_SUFFIX);
+        File body = new File(mDirectory, key + BODY_SUFFIX);
+        if (!meta.exists() || !body.exists()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(meta);
+            properties.load(in);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Dropping unreadable cache entry for " + url, e);
+            remove(key);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+        // guard against the (unlikely) hash collision
+        if (!url.equals(properties.getProperty(META_URL))) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        meta.setLastModified(now);
+        body.setLastModified(now);
+        return new Entry(url,
+                properties.getProperty(META_ETAG),
+                properties.getProperty(META_LAST_MODIFIED),
+                Long.parseLong(properties.getProperty(META_EXPIRES, "0")),
+                body);
+    }
+
+    /**
+     * Adds If-None-Match and If-Modified-Since to a request that hasn't been sent yet.
+     */
+    public void addConditionalHeaders(HttpURLConnection connection, Entry entry) {
+        if (entry.etag != null) {
+            connection.setRequestProperty("If-None-Match", entry.etag);
+        }
+        if (entry.lastModified != null) {
+            connection.setRequestProperty("If-Modified-Since", entry.lastModified);
+        }
+    }
+
+    /**
+     * Records that a cached entry was served without going to the network.
+     */
+    public void recordFreshHit() {
+        SunshineStats.increment(mContext, STAT_FRESH_HIT);
+    }
+
+    /**
+     * Called for a 304 response: the cached body is still good, so only the validators and the
+     * expiry are refreshed.
+     */
+    public synchronized void updateNotModified(Entry entry, HttpURLConnection connection) {
+        SunshineStats.increment(mContext, STAT_NOT_MODIFIED);
+        String etag = connection.getHeaderField("ETag");
+        String lastModified = connection.getHeaderField("Last-Modified");
+        writeMeta(keyFor(entry.url), entry.url,
+                etag != null ? etag : entry.etag,
+                lastModified != null ? lastModified : entry.lastModified,
+                computeExpires(connection));
+    }
+
+    /**
+     * Wraps a 200 response body so it is written to the cache while it is being read.  The
+     * entry is only committed once the stream has been read to the end and closed; an
+     * abandoned or failed read leaves the previous entry alone.
+     */
+    public InputStream cacheWhileReading(final String url, HttpURLConnection connection,
+                                         InputStream body) {
+        SunshineStats.increment(mContext, STAT_MISS);
+
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl != null && cacheControl.toLowerCase(Locale.US).contains("no-store")) {
+            return body;
+        }
+
+        final String key = keyFor(url);
+        final String etag = connection.getHeaderField("ETag");
+        final String lastModified = connection.getHeaderField("Last-Modified");
+        final long expires = computeExpires(connection);
+        final File temp = new File(mDirectory, key + BODY_SUFFIX + TEMP_SUFFIX);
+        final OutputStream out;
+        try {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                return body;
+            }
+            out = new FileOutputStream(temp);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Can't write to the forecast cache", e);
+            return body;
+        }
+
+        return new FilterInputStream(body) {
+            private boolean mReachedEnd;
+            private boolean mFailed;
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b == -1) {
+                    mReachedEnd = true;
+                } else {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                int read = super.read(buffer, offset, count);
+                if (read == -1) {
+                    mReachedEnd = true;
+                } else {
+                    write(buffer, offset, read);
+                }
+                return read;
+            }
+
+            private void write(byte[] buffer, int offset, int count) {
+                if (mFailed) {
+                    return;
+                }
+                try {
+                    out.write(buffer, offset, count);
+                } catch (IOException e) {
+                    mFailed = true;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    closeQuietly(out);
+                    if (mReachedEnd && !mFailed) {
+                        commit(key, url, etag, lastModified, expires, temp);
+                    } else {
+                        temp.delete();
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Opens the cached body, for when the database no longer has what the server may say is
+     * unchanged.  Open it before sending the conditional request: once open it stays readable
+     * even if trimming the cache deletes the file meanwhile.
+     * @return the body, or null if it is gone, in which case the entry is dropped and the
+     * request shouldn't be conditional
+     */
+    public synchronized InputStream openBody(Entry entry) {
+        try {
+            return new FileInputStream(entry.body);
+        } catch (FileNotFoundException e) {
+            Log.w(LOG_TAG, "Dropping cache entry without a body for " + entry.url);
+            remove(keyFor(entry.url));
+            return null;
+        }
+    }
+
+    /**
+     * @return the fraction of lookups, fresh hits and 304s together, that avoided a full download
+     */
+    public static float getHitRate(Context context) {
+        long hits = SunshineStats.getCounter(context, STAT_FRESH_HIT)
+                + SunshineStats.getCounter(context, STAT_NOT_MODIFIED);
+        long total = hits + SunshineStats.getCounter(context, STAT_MISS);
+        return total == 0 ? 0f : (float) hits / total;
+    }
+
+    private synchronized void commit(String key, String url, String etag, String lastModified,
+                                     long expires, File temp) {
+        File body = new File(mDirectory, key + BODY_SUFFIX);
+        if (!temp.renameTo(body)) {
+            temp.delete();
+            return;
+        }
+        writeMeta(key, url, etag, lastModified, expires);
+        trimToSize();
+    }
+
+    private void writeMeta(String key, String url, String etag, String lastModified, long expires) {
+        Properties properties = new Properties();
+        properties.setProperty(META_URL, url);
+        if (etag != null) {
+            properties.setProperty(META_ETAG, etag);
+        }
+        if (lastModified != null) {
+            properties.setProperty(META_LAST_MODIFIED, lastModified);
+        }
+        properties.setProperty(META_EXPIRES, Long.toString(expires));
+
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(new File(mDirectory, key + META_SUFFIX));
+            properties.store(out, null);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to write cache metadata for " + url, e);
+            remove(key);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private void trimToSize() {
+        File[] bodies = mDirectory.listFiles();
+        if (bodies == null) {
+            return;
+        }
+        long size = 0;
+        for (File file : bodies) {
+            size += file.length();
+        }
+        if (size <= mMaxBytes) {
+            return;
+        }
+        // Oldest access first
+        Arrays.sort(bodies, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long diff = lhs.lastModified() - rhs.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File file : bodies) {
+            if (size <= mMaxBytes) {
+                break;
+            }
+            String name = file.getName();
+            if (name.endsWith(BODY_SUFFIX)) {
+                String key = name.substring(0, name.length() - BODY_SUFFIX.length());
+                size -= file.length() + new File(mDirectory, key + META_SUFFIX).length();
+                remove(key);
+            }
+        }
+    }
+
+    private void remove(String key) {
+        new File(mDirectory, key + META_SUFFIX).delete();
+        new File(mDirectory, key + BODY_SUFFIX).delete();
+    }
+
+    private static long computeExpires(HttpURLConnection connection) {
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl == null) {
+            return 0;
+        }
+        long maxAgeSeconds = 0;
+        for (String directive : cacheControl.toLowerCase(Locale.US).split(",")) {
+            directive = directive.trim();
+            if (directive.equals("no-cache") || directive.equals("no-store")) {
+                return 0;
+            }
+            if (directive.startsWith("max-age=")) {
+                try {
+                    maxAgeSeconds = Long.parseLong(directive.substring("max-age=".length()));
+                } catch (NumberFormatException e) {
+                    maxAgeSeconds = 0;
+                }
+            }
+        }
+        return System.currentTimeMillis() + maxAgeSeconds * 1000;
+    }
+
+    private static String keyFor(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest(url.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(String.format(Locale.US, "%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            // MD5 and UTF-8 are always there, but fall back to something file-name safe anyway
+            return Integer.toHexString(url.hashCode());
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,827 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.BuildConfig;
+import com.example.android.sunshine.app.SunshineStats;
+import com.example.android.sunshine.app.data.LocationCache;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.net.SunshineHttpClient;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Fetches and stores the forecast for one location.  Holds no per-location state, so a single
+ * instance can serve several worker threads at once; every failure is turned into a
+ * {@link SunshineSyncAdapter.LocationStatus} instead of being thrown, so one bad location can't
+ * take the others down with it.
+ *
+ * Locations that have been synced before have an OpenWeatherMap city id, and
+ * {@link #syncInGroups} asks for up to {@link #MAX_GROUP_SIZE} of those in a single request.
+ * Upstreams without a group endpoint answer that with an error; group requests are then left
+ * alone for a day and every location gets its own request as before.
+ *
+ * {@link #syncHourly} fetches a location's 3-hourly forecast, a separate request to a separate
+ * endpoint, into the hourly table.
+ */
+class LocationSyncer {
+    private static final String LOG_TAG = LocationSyncer.class.getSimpleName();
+
+    static final String OWM_BASE_URL = "http://api.openweathermap.org/data/2.5/";
+    private static final String FORECAST_PATH = "forecast/daily";
+    private static final String GROUP_PATH = "forecast/daily/group";
+    private static final String HOURLY_PATH = "forecast";
+
+    // Most cities a group request may ask for
+    static final int MAX_GROUP_SIZE = 20;
+    // How long to stick to single requests once the upstream turned a group request down
+    private static final long GROUP_RETRY_MILLIS = 1000 * 60 * 60 * 24;
+    static final String GROUP_PREFS = "forecast_group";
+    private static final String KEY_GROUP_UNSUPPORTED_UNTIL = "unsupported_until";
+
+    // Reported through SunshineStats: requests sent, and the time and bytes each location cost.
+    // A group request's time and bytes are split evenly between its locations.
+    public static final String STAT_REQUESTS = "sync.requests";
+    public static final String STAT_LOCATION_MS = "sync.location_ms";
+    public static final String STAT_LOCATION_BYTES = "sync.location_bytes";
+    public static final String STAT_GROUP_FALLBACKS = "sync.group_fallbacks";
+    // The 3-hourly forecast: how long each took to fetch and store, and how many points it had
+    public static final String STAT_HOURLY_MS = "sync.hourly_ms";
+    public static final String STAT_HOURLY_POINTS = "sync.hourly_points";
+
+    /**
+     * A location to sync: its setting and, for Place Picker results, the picked coordinates.
+     */
+    static class Target {
+        final String locationSetting;
+        final boolean useCoordinates;
+        final double latitude;
+        final double longitude;
+
+        Target(String locationSetting) {
+            this(locationSetting, false, 0, 0);
+        }
+
+        Target(String locationSetting, boolean useCoordinates, double latitude, double longitude) {
+            this.locationSetting = locationSetting;
+            this.useCoordinates = useCoordinates;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+    }
+
+    /**
+     * How long syncing one location spent in each stage, and what it downloaded.  Stages the
+     * location never got to stay at 0.  A group request's fetch, parse and bytes are split
+     * evenly between its locations.
+     */
+    static class Stages {
+        // Up to the response headers
+        long fetchMillis;
+        // Reading and parsing the body, which arrive together
+        long parseMillis;
+        // Storing the forecast
+        long writeMillis;
+        long bytes;
+    }
+
+    /**
+     * How syncing one location went.
+     */
+    static class Result {
+        @SunshineSyncAdapter.LocationStatus
+        final int status;
+        // Number of days inserted or updated
+        final int changedDays;
+        final Stages stages;
+
+        Result(@SunshineSyncAdapter.LocationStatus int status, int changedDays) {
+            this(status, changedDays, new Stages());
+        }
+
+        Result(@SunshineSyncAdapter.LocationStatus int status, int changedDays, Stages stages) {
+            this.status = status;
+            this.changedDays = changedDays;
+            this.stages = stages;
+        }
+    }
+
+    private final Context mContext;
+    private final int mJulianStartDay;
+    private final String mBaseUrl;
+
+    /**
+     * @param julianStartDay The julian day of the first forecast entry, shared by every
+     *                       location in a sync so they all agree on what "today" is
+     */
+    LocationSyncer(Context context, int julianStartDay) {
+        this(context, julianStartDay, OWM_BASE_URL);
+    }
+
+    /**
+     * @param baseUrl Where the forecast API lives, so tests can point it at a local server
+     */
+    LocationSyncer(Context context, int julianStartDay, String baseUrl) {
+        mContext = context;
+        mJulianStartDay = julianStartDay;
+        mBaseUrl = baseUrl;
+    }
+
+    String buildForecastUrl(Target target) {
+        return buildLocationUrl(FORECAST_PATH, target, SunshineSyncAdapter.FORECAST_DAYS);
+    }
+
+    String buildHourlyUrl(Target target) {
+        return buildLocationUrl(HOURLY_PATH, target,
+                WeatherContract.HourlyEntry.MAX_POINTS_PER_LOCATION);
+    }
+
+    /**
+     * @param count How many days, or points, to ask for
+     */
+    private String buildLocationUrl(String path, Target target, int count) {
+        // Construct the URL for the OpenWeatherMap query
+        // Possible parameters are avaiable at OWM's forecast API page, at
+        // http://openweathermap.org/API#forecast
+        final String QUERY_PARAM = "q";
+        final String LAT_PARAM = "lat";
+        final String LON_PARAM = "lon";
+
+        Uri.Builder uriBuilder = Uri.parse(mBaseUrl + path).buildUpon();
+
+        // Instead of always building the query based off of the location string, we want to
+        // potentially build a query using a lat/lon value. This will be the case when we are
+        // syncing based off of a new location from the Place Picker API. So we need to check
+        // if we have a lat/lon to work with, and use those when we do. Otherwise, the weather
+        // service may not understand the location address provided by the Place Picker API
+        // and the user could end up with no weather! The horror!
+        if (target.useCoordinates) {
+            uriBuilder.appendQueryParameter(LAT_PARAM, String.valueOf(target.latitude))
+                    .appendQueryParameter(LON_PARAM, String.valueOf(target.longitude));
+        } else {
+            uriBuilder.appendQueryParameter(QUERY_PARAM, target.locationSetting);
+        }
+        return appendForecastParameters(uriBuilder, count);
+    }
+
+    /**
+     * @param cityIds OpenWeatherMap city ids, at most {@link #MAX_GROUP_SIZE}
+     */
+    String buildGroupUrl(List<Long> cityIds) {
+        final String ID_PARAM = "id";
+
+        return appendForecastParameters(Uri.parse(mBaseUrl + GROUP_PATH).buildUpon()
+                .appendQueryParameter(ID_PARAM, TextUtils.join(",", cityIds)),
+                SunshineSyncAdapter.FORECAST_DAYS);
+    }
+
+    private static String appendForecastParameters(Uri.Builder uriBuilder, int count) {
+        String format = "json";
+        String units = "metric";
+
+        final String FORMAT_PARAM = "mode";
+        final String UNITS_PARAM = "units";
+        final String DAYS_PARAM = "cnt";
+        final String APPID_PARAM = "APPID";
+
+        return uriBuilder.appendQueryParameter(FORMAT_PARAM, format)
+                .appendQueryParameter(UNITS_PARAM, units)
+                .appendQueryParameter(DAYS_PARAM, Integer.toString(count))
+                .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+                .build().toString();
+    }
+
+    /**
+     * Fetches and stores the forecast for one location.  Never throws.
+     */
+    Result sync(Target target) {
+        // This needs to be declared outside the try/catch
+        // so that it can be closed in the finally block.
+        SunshineHttpClient.Response response = null;
+        InputStream cachedBody = null;
+        String locationSetting = target.locationSetting;
+        long start = SystemClock.elapsedRealtime();
+        // Filled in as the sync goes, including after the result has been handed back
+        Stages stages = new Stages();
+
+        try {
+            String queryUrl = buildForecastUrl(target);
+            URL url = new URL(queryUrl);
+
+            // If the server told us the last response is still good and we still have it stored,
+            // there is no reason to ask again.
+            ForecastResponseCache cache = ForecastResponseCache.getInstance(mContext);
+            ForecastResponseCache.Entry cached = cache.get(queryUrl);
+            boolean haveForecast = hasForecast(locationSetting);
+            if (cached != null && cached.isFresh() && haveForecast) {
+                cache.recordFreshHit();
+                Log.d(LOG_TAG, locationSetting + ": skipped, cached forecast is still fresh");
+                return new Result(SunshineSyncAdapter.LOCATION_STATUS_OK, 0, stages);
+            }
+            if (cached != null && !haveForecast) {
+                // A 304 would mean restoring the forecast from the cached body, so only ask for
+                // one while the body can be read
+                cachedBody = cache.openBody(cached);
+                if (cachedBody == null) {
+                    cached = null;
+                }
+            }
+
+            // Create the request to OpenWeatherMap, and send it
+            SunshineHttpClient httpClient = SunshineHttpClient.getInstance(mContext);
+            HttpURLConnection urlConnection = httpClient.open(url);
+            if (cached != null) {
+                cache.addConditionalHeaders(urlConnection, cached);
+            }
+            response = httpClient.execute(urlConnection, SunshineHttpClient.TAG_FORECAST);
+            long fetched = SystemClock.elapsedRealtime();
+            stages.fetchMillis = fetched - start;
+            SunshineStats.increment(mContext, STAT_REQUESTS);
+            if (response.getCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                // OpenWeatherMap's answer for a city it doesn't know.  The server is fine, and
+                // getBody() would throw for it as if it weren't.
+                Log.d(LOG_TAG, locationSetting + ": no such location");
+                return new Result(SunshineSyncAdapter.LOCATION_STATUS_INVALID, 0, stages);
+            }
+
+            InputStream inputStream;
+            if (cached != null && response.getCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                cache.updateNotModified(cached, urlConnection);
+                if (haveForecast) {
+                    // Nothing changed since the last sync: no parsing, no writes, no fan-out.
+                    Log.d(LOG_TAG, locationSetting + ": forecast not modified");
+                    return new Result(SunshineSyncAdapter.LOCATION_STATUS_OK, 0, stages);
+                }
+                // The database lost the forecast in the meantime, restore it from the cache
+                inputStream = cachedBody;
+                cachedBody = null;
+            } else {
+                inputStream = cache.cacheWhileReading(queryUrl, urlConnection, response.getBody());
+            }
+
+            // Hash the response as it is read, so an unchanged forecast can be recognised
+            // without keeping the previous one around
+            MessageDigest digest = newForecastDigest();
+            if (digest != null) {
+                inputStream = new DigestInputStream(inputStream, digest);
+            }
+
+            // Parse straight off the stream where we can, so neither the body nor a JSON tree
+            // ever has to be held in memory.
+            ForecastJsonParser.Forecast forecast;
+            try {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                    forecast = ForecastJsonParser.parseStream(inputStream, mJulianStartDay);
+                } else {
+                    forecast = ForecastJsonParser.parseTree(inputStream, mJulianStartDay);
+                }
+                // The parser stops at the closing brace; read whatever follows so the digest
+                // covers the whole body and the response cache sees the end of it
+                drain(inputStream);
+            } finally {
+                inputStream.close();
+            }
+            stages.parseMillis = SystemClock.elapsedRealtime() - fetched;
+            return storeForecast(forecast, locationSetting,
+                    digest != null ? toHex(digest.digest()) : null, stages);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, locationSetting + ": error ", e);
+            // If the code didn't successfully get the weather data, there's no point in attempting
+            // to parse it.
+            return new Result(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN, 0, stages);
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, locationSetting + ": " + e.getMessage(), e);
+            return new Result(SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID, 0, stages);
+        } catch (RuntimeException e) {
+            // Most likely the database; keep it to this location
+            Log.e(LOG_TAG, locationSetting + ": failed to sync", e);
+            return new Result(SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN, 0, stages);
+        } finally {
+            closeQuietly(cachedBody);
+            // Closing rather than disconnecting leaves the connection in the keep-alive pool
+            if (response != null) {
+                response.close();
+                stages.bytes = response.getBodyBytes();
+                recordLocationCost(SystemClock.elapsedRealtime() - start, response.getBodyBytes());
+            }
+        }
+    }
+
+    /**
+     * Fetches the location's 3-hourly forecast and replaces its stored points with it, in one
+     * transaction.  Never throws: the daily forecast is what the location's status is about,
+     * so a failure here is only logged.
+     * @return the number of points stored, or -1 if the sync failed
+     */
+    int syncHourly(Target target) {
+        SunshineHttpClient.Response response = null;
+        InputStream cachedBody = null;
+        String locationSetting = target.locationSetting;
+        long start = SystemClock.elapsedRealtime();
+        try {
+            String queryUrl = buildHourlyUrl(target);
+            ForecastResponseCache cache = ForecastResponseCache.getInstance(mContext);
+            ForecastResponseCache.Entry cached = cache.get(queryUrl);
+            boolean havePoints = hasHourlyForecast(locationSetting);
+            if (cached != null && cached.isFresh() && havePoints) {
+                cache.recordFreshHit();
+                return 0;
+            }
+            if (cached != null && !havePoints) {
+                cachedBody = cache.openBody(cached);
+                if (cachedBody == null) {
+                    cached = null;
+                }
+            }
+
+            SunshineHttpClient httpClient = SunshineHttpClient.getInstance(mContext);
+            HttpURLConnection urlConnection = httpClient.open(new URL(queryUrl));
+            if (cached != null) {
+                cache.addConditionalHeaders(urlConnection, cached);
+            }
+            response = httpClient.execute(urlConnection, SunshineHttpClient.TAG_FORECAST_HOURLY);
+            SunshineStats.increment(mContext, STAT_REQUESTS);
+            if (response.getCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                Log.d(LOG_TAG, locationSetting + ": no 3-hourly forecast, no such location");
+                return -1;
+            }
+
+            InputStream inputStream;
+            if (cached != null && response.getCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                cache.updateNotModified(cached, urlConnection);
+                if (havePoints) {
+                    return 0;
+                }
+                inputStream = cachedBody;
+                cachedBody = null;
+            } else {
+                inputStream = cache.cacheWhileReading(queryUrl, urlConnection, response.getBody());
+            }
+
+            ForecastJsonParser.HourlyForecast forecast;
+            try {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                    forecast = ForecastJsonParser.parseHourlyStream(inputStream);
+                } else {
+                    forecast = ForecastJsonParser.parseHourlyTree(inputStream);
+                }
+                drain(inputStream);
+            } finally {
+                inputStream.close();
+            }
+            if (forecast.code != HttpURLConnection.HTTP_OK) {
+                Log.d(LOG_TAG, locationSetting + ": no 3-hourly forecast, " + forecast.code);
+                return -1;
+            }
+
+            ArrayList<ContentValues> points = forecast.points;
+            int stored = mContext.getContentResolver().bulkInsert(
+                    WeatherContract.HourlyEntry.buildHourlyLocation(locationSetting),
+                    points.toArray(new ContentValues[points.size()]));
+            SunshineStats.record(mContext, STAT_HOURLY_POINTS, stored);
+            Log.d(LOG_TAG, locationSetting + ": " + stored + " 3-hourly points stored");
+            return stored;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, locationSetting + ": 3-hourly forecast error ", e);
+            return -1;
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, locationSetting + ": " + e.getMessage(), e);
+            return -1;
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, locationSetting + ": failed to store 3-hourly forecast", e);
+            return -1;
+        } finally {
+            closeQuietly(cachedBody);
+            if (response != null) {
+                response.close();
+                SunshineStats.record(mContext, STAT_HOURLY_MS,
+                        SystemClock.elapsedRealtime() - start);
+            }
+        }
+    }
+
+    /**
+     * Syncs as many of the targets as possible with group requests.
+     *
+     * @return a result for each target a group request took care of, and null for every target
+     * that still needs {@link #sync}: those never synced before, those missing from the group
+     * response, and all of them when the upstream doesn't do group requests
+     */
+    Result[] syncInGroups(List<Target> targets) {
+        Result[] results = new Result[targets.size()];
+        if (targets.size() < 2 || !isGroupFetchSupported()) {
+            return results;
+        }
+
+        // Only locations synced before have a city id to ask for
+        ArrayList<Integer> indices = new ArrayList<Integer>();
+        ArrayList<Long> cityIds = new ArrayList<Long>();
+        for (int i = 0; i < targets.size(); i++) {
+            long cityId = getCityId(targets.get(i).locationSetting);
+            if (cityId > 0 && !cityIds.contains(cityId)) {
+                indices.add(i);
+                cityIds.add(cityId);
+            }
+        }
+
+        for (int from = 0; from < indices.size() && isGroupFetchSupported(); from += MAX_GROUP_SIZE) {
+            int to = Math.min(from + MAX_GROUP_SIZE, indices.size());
+            if (to - from < 2) {
+                // A group of one is just a single request with a less cacheable URL
+                break;
+            }
+            syncGroup(targets, indices.subList(from, to), cityIds.subList(from, to), results);
+        }
+
+        int fallbacks = 0;
+        for (int index : indices) {
+            if (results[index] == null) {
+                fallbacks++;
+            }
+        }
+        if (fallbacks > 0) {
+            SunshineStats.incrementBy(mContext, STAT_GROUP_FALLBACKS, fallbacks);
+        }
+        return results;
+    }
+
+    private void syncGroup(List<Target> targets, List<Integer> indices, List<Long> cityIds,
+                           Result[] results) {
+        SunshineHttpClient.Response response = null;
+        long start = SystemClock.elapsedRealtime();
+        long fetchMillis = 0;
+        long parseMillis = 0;
+        // One per location stored from the response
+        ArrayList<Stages> stored = new ArrayList<Stages>();
+
+        try {
+            SunshineHttpClient httpClient = SunshineHttpClient.getInstance(mContext);
+            response = httpClient.execute(httpClient.open(new URL(buildGroupUrl(cityIds))),
+                    SunshineHttpClient.TAG_FORECAST_GROUP);
+            fetchMillis = SystemClock.elapsedRealtime() - start;
+            SunshineStats.increment(mContext, STAT_REQUESTS);
+            if (response.getCode() != HttpURLConnection.HTTP_OK) {
+                // Almost certainly an upstream without a group endpoint, rather than one that
+                // is down: the single requests will tell
+                Log.d(LOG_TAG, "Group request turned down with " + response.getCode());
+                setGroupFetchUnsupported();
+                return;
+            }
+
+            ArrayList<ForecastJsonParser.Forecast> forecasts;
+            InputStream inputStream = response.getBody();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                forecasts = ForecastJsonParser.parseGroupStream(inputStream, mJulianStartDay);
+            } else {
+                forecasts = ForecastJsonParser.parseGroupTree(inputStream, mJulianStartDay);
+            }
+            parseMillis = SystemClock.elapsedRealtime() - start - fetchMillis;
+
+            HashMap<Long, ForecastJsonParser.Forecast> forecastsById =
+                    new HashMap<Long, ForecastJsonParser.Forecast>();
+            for (ForecastJsonParser.Forecast forecast : forecasts) {
+                forecastsById.put(forecast.cityId, forecast);
+            }
+            for (int i = 0; i < indices.size(); i++) {
+                ForecastJsonParser.Forecast forecast = forecastsById.get(cityIds.get(i));
+                if (forecast != null) {
+                    int index = indices.get(i);
+                    // No digest: it covers a whole response, and this one is shared. The diff
+                    // insert still leaves unchanged days alone.
+                    Stages stages = new Stages();
+                    results[index] = storeForecast(forecast, targets.get(index).locationSetting,
+                            null, stages);
+                    stored.add(stages);
+                }
+            }
+        } catch (IOException e) {
+            // The network is the problem, not the group, so asking city by city won't help
+            Log.e(LOG_TAG, "Group request failed", e);
+            for (int index : indices) {
+                results[index] = new Result(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN, 0);
+            }
+        } catch (JSONException e) {
+            // Something answered, but not with forecasts we understand
+            Log.e(LOG_TAG, "Unexpected group response", e);
+            setGroupFetchUnsupported();
+        } catch (RuntimeException e) {
+            // Leave whatever wasn't stored to the single requests
+            Log.e(LOG_TAG, "Failed to store group response", e);
+        } finally {
+            if (response != null) {
+                response.close();
+                if (!stored.isEmpty()) {
+                    int count = stored.size();
+                    long elapsed = SystemClock.elapsedRealtime() - start;
+                    for (Stages stages : stored) {
+                        stages.fetchMillis = fetchMillis / count;
+                        stages.parseMillis = parseMillis / count;
+                        stages.bytes = response.getBodyBytes() / count;
+                        recordLocationCost(elapsed / count, stages.bytes);
+                    }
+                }
+            }
+        }
+    }
+
+    private void recordLocationCost(long millis, long bytes) {
+        SunshineStats.record(mContext, STAT_LOCATION_MS, millis);
+        SunshineStats.record(mContext, STAT_LOCATION_BYTES, bytes);
+    }
+
+    private boolean isGroupFetchSupported() {
+        SharedPreferences prefs = mContext.getSharedPreferences(GROUP_PREFS, Context.MODE_PRIVATE);
+        return System.currentTimeMillis() >= prefs.getLong(KEY_GROUP_UNSUPPORTED_UNTIL, 0);
+    }
+
+    private void setGroupFetchUnsupported() {
+        mContext.getSharedPreferences(GROUP_PREFS, Context.MODE_PRIVATE).edit()
+                .putLong(KEY_GROUP_UNSUPPORTED_UNTIL, System.currentTimeMillis() + GROUP_RETRY_MILLIS)
+                .apply();
+    }
+
+    /**
+     * Takes a parsed forecast and stores it as one batch: the location first, unless it is
+     * already stored, then one weather row per day.  If the response is the same one already
+     * stored for today, nothing is written at all.  Days before today are left to
+     * {@link #deleteOldWeather}, once per sync.
+     *
+     * @param stages Where to record how long the write took; it ends up in the result
+     */
+    Result storeForecast(ForecastJsonParser.Forecast forecast, String locationSetting,
+                         @Nullable String forecastDigest, Stages stages) {
+        // do we have an error?
+        switch (forecast.code) {
+            case HttpURLConnection.HTTP_OK:
+                break;
+            case HttpURLConnection.HTTP_NOT_FOUND:
+                return new Result(SunshineSyncAdapter.LOCATION_STATUS_INVALID, 0, stages);
+            default:
+                return new Result(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN, 0, stages);
+        }
+
+        // The digest covers the start day, so a match means the rows we'd write are exactly
+        // the rows we wrote last time.
+        if (forecastDigest != null && forecastDigest.equals(getForecastDigest(locationSetting))) {
+            SunshineStats.increment(mContext, SunshineSyncAdapter.STAT_UNCHANGED_SYNCS);
+            SunshineStats.incrementBy(mContext, SunshineSyncAdapter.STAT_AVOIDED_WRITES,
+                    forecast.days.size());
+            Log.d(LOG_TAG, locationSetting + ": forecast unchanged, nothing written");
+            return new Result(SunshineSyncAdapter.LOCATION_STATUS_OK, 0, stages);
+        }
+
+        ArrayList<ContentValues> days = forecast.days;
+        if (days.size() == 0) {
+            Log.d(LOG_TAG, locationSetting + ": no days in forecast");
+            return new Result(SunshineSyncAdapter.LOCATION_STATUS_OK, 0, stages);
+        }
+
+        // Everything below goes to the provider as one batch: one transaction and one change
+        // notification, however many rows it touches.
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+
+        // A location synced before is almost always in the cache, and its id goes straight
+        // into the weather rows.  Otherwise the batch inserts it first; inserting a location
+        // that already exists returns the existing row, so the weather rows can always
+        // back-reference the location key from that operation.
+        long locationId = LocationCache.getInstance(mContext).getLocationId(locationSetting);
+        if (locationId == -1) {
+            ContentProviderOperation.Builder location =
+                    ContentProviderOperation.newInsert(WeatherContract.LocationEntry.CONTENT_URI)
+                    .withValue(WeatherContract.LocationEntry.COLUMN_CITY_NAME, forecast.cityName)
+                    .withValue(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting)
+                    .withValue(WeatherContract.LocationEntry.COLUMN_COORD_LAT, forecast.cityLatitude)
+                    .withValue(WeatherContract.LocationEntry.COLUMN_COORD_LONG, forecast.cityLongitude);
+            if (forecast.cityId > 0) {
+                location.withValue(WeatherContract.LocationEntry.COLUMN_CITY_ID, forecast.cityId);
+            }
+            operations.add(location.build());
+        }
+        int firstDay = operations.size();
+
+        // add to database, touching only the days that actually changed
+        Uri diffUri = WeatherContract.WeatherEntry.buildWeatherDiffUri(locationSetting);
+        for (ContentValues weatherValues : days) {
+            ContentProviderOperation.Builder day = ContentProviderOperation.newInsert(diffUri)
+                    .withValues(weatherValues);
+            if (locationId == -1) {
+                day.withValueBackReference(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, 0);
+            } else {
+                day.withValue(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
+            }
+            operations.add(day.build());
+        }
+
+        operations.add(ContentProviderOperation.newUpdate(WeatherContract.LocationEntry.CONTENT_URI)
+                .withValue(WeatherContract.LocationEntry.COLUMN_FORECAST_DIGEST, forecastDigest)
+                .withSelection(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                        new String[] {locationSetting})
+                .build());
+
+        ContentProviderResult[] results;
+        long writeStart = SystemClock.elapsedRealtime();
+        try {
+            results = mContext.getContentResolver().applyBatch(
+                    WeatherContract.CONTENT_AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(LOG_TAG, locationSetting + ": failed to store forecast", e);
+            return new Result(SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN, 0, stages);
+        } finally {
+            stages.writeMillis = SystemClock.elapsedRealtime() - writeStart;
+        }
+
+        int changed = 0;
+        for (int i = firstDay; i < firstDay + days.size(); i++) {
+            if (WeatherContract.WeatherEntry.getRowStatusFromUri(results[i].uri)
+                    != WeatherContract.WeatherEntry.ROW_UNCHANGED) {
+                changed++;
+            }
+        }
+        Log.d(LOG_TAG, locationSetting + ": " + changed + " of " + days.size() + " days changed");
+        return new Result(SunshineSyncAdapter.LOCATION_STATUS_OK, changed, stages);
+    }
+
+    /**
+     * Deletes every location's days, and 3-hourly points, before today, so we don't build up an
+     * endless history.
+     * @return the number of rows deleted
+     */
+    int deleteOldWeather() {
+        Time dayTime = new Time();
+        int deleted = mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
+                new String[] {Long.toString(dayTime.setJulianDay(mJulianStartDay-1))});
+        return deleted + mContext.getContentResolver().delete(
+                WeatherContract.HourlyEntry.CONTENT_URI,
+                WeatherContract.HourlyEntry.COLUMN_TIME + " < ?",
+                new String[] {Long.toString(dayTime.setJulianDay(mJulianStartDay))});
+    }
+
+    /**
+     * Stamps the locations whose forecasts are now current with the time, however little had
+     * to be written to get there, in one update.
+     * @return the number of locations stamped
+     */
+    int markSynced(List<String> locationSettings, long syncedAt) {
+        if (locationSettings.isEmpty()) {
+            return 0;
+        }
+        StringBuilder selection = new StringBuilder(
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " IN (");
+        for (int i = 0; i < locationSettings.size(); i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        selection.append(')');
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.LocationEntry.COLUMN_LAST_SYNC, syncedAt);
+        return mContext.getContentResolver().update(WeatherContract.LocationEntry.CONTENT_URI,
+                values, selection.toString(),
+                locationSettings.toArray(new String[locationSettings.size()]));
+    }
+
+    /**
+     * @return true if the database already has weather from today onwards for the location
+     */
+    private boolean hasForecast(String locationSetting) {
+        long locationId = LocationCache.getInstance(mContext).getLocationId(locationSetting);
+        if (locationId == -1) {
+            return false;
+        }
+        Time dayTime = new Time();
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                new String[]{WeatherContract.WeatherEntry._ID},
+                LocationCache.WEATHER_FROM_DATE_SELECTION,
+                LocationCache.weatherSelectionArgs(locationId, dayTime.setJulianDay(mJulianStartDay)),
+                null);
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            return cursor.getCount() > 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return true if the database has 3-hourly points for the location
+     */
+    private boolean hasHourlyForecast(String locationSetting) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.HourlyEntry.buildHourlyLocation(locationSetting),
+                new String[]{WeatherContract.HourlyEntry.COLUMN_TIME},
+                null, null, null);
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            return cursor.getCount() > 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return OpenWeatherMap's id for the location, or 0 if it hasn't been synced yet
+     */
+    private long getCityId(String locationSetting) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry.COLUMN_CITY_ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Nullable
+    private String getForecastDigest(String locationSetting) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry.COLUMN_FORECAST_DIGEST},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return a digest already seeded with the start day, or null if the platform has no SHA-1
+     */
+    @Nullable
+    private MessageDigest newForecastDigest() {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(Integer.toString(mJulianStartDay).getBytes());
+            return digest;
+        } catch (NoSuchAlgorithmException e) {
+            Log.w(LOG_TAG, "No SHA-1, unchanged forecasts will be written again", e);
+            return null;
+        }
+    }
+
+    private static void closeQuietly(InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[1024];
+        while (in.read(buffer) != -1) {
+            // just consuming
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+/**
+ * Decides when deferred network work runs, and what counts as waking the radio.  Kept free of
+ * Android so the rules can be checked on the JVM; {@link NetworkBatcher} applies them.
+ *
+ * Deferred work waits for whichever comes first:
+ * <ul>
+ * <li>a sync, which has the radio up anyway, on an unmetered network</li>
+ * <li>the device charging on an unmetered network</li>
+ * <li>the last {@link #DEADLINE_FLEX_MILLIS} before the earliest deadline, on any network, and
+ * any sync in that time</li>
+ * </ul>
+ */
+class NetworkBatchPolicy {
+
+    // How long before a deadline the work may run on any network
+    static final long DEADLINE_FLEX_MILLIS = 1000 * 60 * 30;
+
+    // How long the radio stays up after it was last used.  Network use after this long counts
+    // as a fresh wakeup.
+    static final long RADIO_TAIL_MILLIS = 1000 * 30;
+
+    static final long DAY_MILLIS = 1000 * 60 * 60 * 24;
+
+    /**
+     * @param earliestDeadline When the most urgent pending work has to run by
+     * @return whether a sync that has just used the network should take the pending work along
+     */
+    static boolean shouldRunWithSync(boolean unmetered, long earliestDeadline, long now) {
+        return unmetered || earliestDeadline - now <= DEADLINE_FLEX_MILLIS;
+    }
+
+    /**
+     * @return the window, in seconds from now, for work waiting on charging and an unmetered
+     * network: any time up to the deadline
+     */
+    static long[] getOpportunisticWindowSeconds(long earliestDeadline, long now) {
+        long end = toSeconds(earliestDeadline - now);
+        return new long[]{0, Math.max(1, end)};
+    }
+
+    /**
+     * @return the window, in seconds from now, in which the work runs on any network because
+     * its deadline is close
+     */
+    static long[] getDeadlineWindowSeconds(long earliestDeadline, long now) {
+        long start = toSeconds(earliestDeadline - DEADLINE_FLEX_MILLIS - now);
+        long end = toSeconds(earliestDeadline - now);
+        return new long[]{start, Math.max(start + 1, end)};
+    }
+
+    /**
+     * @param lastUse When the network was last used, or -1 if never
+     * @return whether using it now wakes the radio up
+     */
+    static boolean isWakeup(long lastUse, long now) {
+        return lastUse < 0 || now - lastUse >= RADIO_TAIL_MILLIS || now < lastUse;
+    }
+
+    /**
+     * @return the number of the (UTC) day the time falls on, for counting wakeups per day
+     */
+    static long getDay(long millis) {
+        return millis / DAY_MILLIS;
+    }
+
+    private static long toSeconds(long millis) {
+        return Math.max(0, millis / 1000);
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import com.google.android.gms.gcm.GcmNetworkManager;
+import com.google.android.gms.gcm.GcmTaskService;
+import com.google.android.gms.gcm.TaskParams;
+
+/**
+ * Runs the work {@link NetworkBatcher} deferred when one of its tasks comes due.  The work
+ * itself runs in its own services; this only starts it.
+ */
+public class NetworkBatchService extends GcmTaskService {
+
+    @Override
+    public int onRunTask(TaskParams taskParams) {
+        NetworkBatcher.noteRadioUse(this);
+        NetworkBatcher.runPending(this, NetworkBatcher.TRIGGER_TASK);
+        return GcmNetworkManager.RESULT_SUCCESS;
+    }
+
+    @Override
+    public void onInitializeTasks() {
+        NetworkBatcher.reschedule(this);
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.support.v4.net.ConnectivityManagerCompat;
+import android.util.Log;
+
+import com.example.android.sunshine.app.SunshineStats;
+import com.example.android.sunshine.app.gcm.RegistrationIntentService;
+import com.example.android.sunshine.app.notification.NotificationArtService;
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.GoogleApiAvailability;
+import com.google.android.gms.gcm.GcmNetworkManager;
+import com.google.android.gms.gcm.OneoffTask;
+import com.google.android.gms.gcm.Task;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds network work nobody is waiting for, so it shares the radio with a sync or with other
+ * deferred work instead of waking it up on its own.  See {@link NetworkBatchPolicy} for when
+ * the work runs.
+ *
+ * Pending work survives process death.  Two {@link GcmNetworkManager} tasks, run by
+ * {@link NetworkBatchService}, cover the times no sync comes along: one waiting for charging on
+ * an unmetered network, and one close to the deadline on any network.  Whichever runs first
+ * takes all the pending work with it.  Without Google Play services the work runs right away,
+ * as it did before.
+ *
+ * Every use of the network by the app is reported through {@link #noteRadioUse}, so the radio
+ * wakeups per day can be compared before and after a change.
+ */
+public class NetworkBatcher {
+    private static final String LOG_TAG = NetworkBatcher.class.getSimpleName();
+
+    private static final String PREFS_NAME = "network_batch";
+    private static final String PREFIX_DEADLINE = "deadline.";
+    private static final String PREFIX_QUEUED_AT = "queued_at.";
+    private static final String KEY_LAST_RADIO_USE = "last_radio_use";
+    private static final String KEY_DAY = "day";
+    private static final String KEY_DAY_WAKEUPS = "day_wakeups";
+
+    // The work that can be deferred
+    public static final String WORK_GCM_REGISTRATION = "gcm_registration";
+    public static final String WORK_ART_WARM_UP = "art_warm_up";
+
+    // How long each may wait at most
+    private static final long GCM_REGISTRATION_MAX_DELAY_MILLIS = 1000 * 60 * 60 * 4;
+    private static final long ART_WARM_UP_MAX_DELAY_MILLIS = 1000 * 60 * 60 * 6;
+
+    static final String TAG_OPPORTUNISTIC = "network_batch_opportunistic";
+    static final String TAG_DEADLINE = "network_batch_deadline";
+
+    // What ran the pending work
+    static final String TRIGGER_SYNC = "sync";
+    static final String TRIGGER_TASK = "task";
+
+    // Reported through SunshineStats
+    public static final String STAT_DEFERRED = "network_batch.deferred";
+    public static final String STAT_SYNC_WINDOWS = "network_batch.sync_windows";
+    public static final String STAT_OWN_WINDOWS = "network_batch.own_windows";
+    public static final String STAT_WAIT_MINUTES = "network_batch.wait_min";
+    public static final String STAT_RADIO_WAKEUPS = "radio.wakeups";
+    public static final String STAT_RADIO_WAKEUPS_PER_DAY = "radio.wakeups_per_day";
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Queues the work to run at the next good opportunity, and before its deadline at the
+     * latest.  Work already queued keeps its earlier deadline.
+     * @param work One of the WORK_ constants
+     */
+    public static void defer(Context context, String work) {
+        if (!isGcmNetworkManagerAvailable(context)) {
+            context.startService(getWorkIntent(context, work));
+            return;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (NetworkBatcher.class) {
+            SharedPreferences prefs = getPrefs(context);
+            long deadline = now + getMaxDelayMillis(work);
+            if (prefs.contains(PREFIX_DEADLINE + work)) {
+                deadline = Math.min(deadline, prefs.getLong(PREFIX_DEADLINE + work, deadline));
+            } else {
+                SunshineStats.increment(context, STAT_DEFERRED);
+            }
+            prefs.edit()
+                    .putLong(PREFIX_DEADLINE + work, deadline)
+                    .putLong(PREFIX_QUEUED_AT + work, prefs.getLong(PREFIX_QUEUED_AT + work, now))
+                    .apply();
+            schedule(context, deadline, now);
+        }
+    }
+
+    /**
+     * Called by a sync that has just used the network.  Takes the pending work along if the
+     * network is unmetered or a deadline is close.
+     */
+    static void onSyncUsedNetwork(Context context) {
+        long earliestDeadline = getEarliestDeadline(getPrefs(context));
+        if (earliestDeadline == Long.MAX_VALUE) {
+            return;
+        }
+        ConnectivityManager cm =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        boolean unmetered = !ConnectivityManagerCompat.isActiveNetworkMetered(cm);
+        if (NetworkBatchPolicy.shouldRunWithSync(unmetered, earliestDeadline,
+                System.currentTimeMillis())) {
+            runPending(context, TRIGGER_SYNC);
+        }
+    }
+
+    /**
+     * Starts all the pending work and cancels the tasks waiting for it.
+     * @param trigger What gave the work its window, {@link #TRIGGER_SYNC} or {@link #TRIGGER_TASK}
+     * @return the number of pieces of work started
+     */
+    static int runPending(Context context, String trigger) {
+        List<String> work = new ArrayList<String>();
+        long now = System.currentTimeMillis();
+        synchronized (NetworkBatcher.class) {
+            SharedPreferences prefs = getPrefs(context);
+            SharedPreferences.Editor editor = prefs.edit();
+            for (String key : prefs.getAll().keySet()) {
+                if (key.startsWith(PREFIX_DEADLINE)) {
+                    String name = key.substring(PREFIX_DEADLINE.length());
+                    work.add(name);
+                    SunshineStats.record(context, STAT_WAIT_MINUTES,
+                            (now - prefs.getLong(PREFIX_QUEUED_AT + name, now)) / (1000 * 60));
+                    editor.remove(key).remove(PREFIX_QUEUED_AT + name);
+                }
+            }
+            editor.apply();
+            if (isGcmNetworkManagerAvailable(context)) {
+                GcmNetworkManager manager = GcmNetworkManager.getInstance(context);
+                manager.cancelTask(TAG_OPPORTUNISTIC, NetworkBatchService.class);
+                manager.cancelTask(TAG_DEADLINE, NetworkBatchService.class);
+            }
+        }
+        if (work.isEmpty()) {
+            return 0;
+        }
+
+        Log.d(LOG_TAG, "Running " + work + " in a " + trigger + " window");
+        SunshineStats.increment(context,
+                TRIGGER_SYNC.equals(trigger) ? STAT_SYNC_WINDOWS : STAT_OWN_WINDOWS);
+        for (String name : work) {
+            context.startService(getWorkIntent(context, name));
+        }
+        return work.size();
+    }
+
+    /**
+     * Puts the tasks back after they were lost, e.g. to an update of the app or of Google Play
+     * services.
+     */
+    static void reschedule(Context context) {
+        synchronized (NetworkBatcher.class) {
+            long earliestDeadline = getEarliestDeadline(getPrefs(context));
+            if (earliestDeadline != Long.MAX_VALUE) {
+                schedule(context, earliestDeadline, System.currentTimeMillis());
+            }
+        }
+    }
+
+    /**
+     * Called by everything in the app that is about to use the network.  Counts a radio wakeup
+     * unless something else used it moments ago.
+     */
+    public static synchronized void noteRadioUse(Context context) {
+        SharedPreferences prefs = getPrefs(context);
+        long now = System.currentTimeMillis();
+        SharedPreferences.Editor editor = prefs.edit().putLong(KEY_LAST_RADIO_USE, now);
+        if (NetworkBatchPolicy.isWakeup(prefs.getLong(KEY_LAST_RADIO_USE, -1), now)) {
+            SunshineStats.increment(context, STAT_RADIO_WAKEUPS);
+            long day = NetworkBatchPolicy.getDay(now);
+            long lastDay = prefs.getLong(KEY_DAY, day);
+            int wakeups = prefs.getInt(KEY_DAY_WAKEUPS, 0);
+            if (day != lastDay) {
+                // Only whole days are recorded, so the current one is left out until it's over
+                SunshineStats.record(context, STAT_RADIO_WAKEUPS_PER_DAY, wakeups);
+                wakeups = 0;
+            }
+            editor.putLong(KEY_DAY, day).putInt(KEY_DAY_WAKEUPS, wakeups + 1);
+        }
+        editor.apply();
+    }
+
+    private static void schedule(Context context, long earliestDeadline, long now) {
+        long[] opportunistic =
+                NetworkBatchPolicy.getOpportunisticWindowSeconds(earliestDeadline, now);
+        long[] deadline = NetworkBatchPolicy.getDeadlineWindowSeconds(earliestDeadline, now);
+        GcmNetworkManager manager = GcmNetworkManager.getInstance(context);
+        manager.schedule(new OneoffTask.Builder()
+                .setService(NetworkBatchService.class)
+                .setTag(TAG_OPPORTUNISTIC)
+                .setExecutionWindow(opportunistic[0], opportunistic[1])
+                .setRequiredNetwork(Task.NETWORK_STATE_UNMETERED)
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .setUpdateCurrent(true)
+                .build());
+        manager.schedule(new OneoffTask.Builder()
+                .setService(NetworkBatchService.class)
+                .setTag(TAG_DEADLINE)
+                .setExecutionWindow(deadline[0], deadline[1])
+                .setRequiredNetwork(Task.NETWORK_STATE_CONNECTED)
+                .setPersisted(true)
+                .setUpdateCurrent(true)
+                .build());
+    }
+
+    private static long getEarliestDeadline(SharedPreferences prefs) {
+        long earliest = Long.MAX_VALUE;
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            if (entry.getKey().startsWith(PREFIX_DEADLINE)) {
+                earliest = Math.min(earliest, (Long) entry.getValue());
+            }
+        }
+        return earliest;
+    }
+
+    private static long getMaxDelayMillis(String work) {
+        if (WORK_GCM_REGISTRATION.equals(work)) {
+            return GCM_REGISTRATION_MAX_DELAY_MILLIS;
+        } else if (WORK_ART_WARM_UP.equals(work)) {
+            return ART_WARM_UP_MAX_DELAY_MILLIS;
+        }
+        throw new IllegalArgumentException("Unknown work: " + work);
+    }
+
+    private static Intent getWorkIntent(Context context, String work) {
+        if (WORK_GCM_REGISTRATION.equals(work)) {
+            return new Intent(context, RegistrationIntentService.class);
+        } else if (WORK_ART_WARM_UP.equals(work)) {
+            return new Intent(context, NotificationArtService.class);
+        }
+        throw new IllegalArgumentException("Unknown work: " + work);
+    }
+
+    private static boolean isGcmNetworkManagerAvailable(Context context) {
+        return GoogleApiAvailability.getInstance().isGooglePlayServicesAvailable(context)
+                == ConnectionResult.SUCCESS;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Tells everything that shows the weather outside the app that a sync changed it, once the new
+ * data is stored.  The consumers run side by side, so a slow one, like the notification waiting
+ * on its large icon, holds up neither the others nor the sync, which has already finished by
+ * the time they run.
+ *
+ * Every consumer has its own timeout.  One that overruns is interrupted and reported as timed
+ * out; whatever it does after that is its own business.  Once every consumer has finished or
+ * timed out, the {@link Listener} hears how long each one took.
+ *
+ * Nothing here touches Android, so it can be tested on the JVM.
+ */
+class PostSyncDispatcher {
+
+    /**
+     * Something to tell about new weather.
+     */
+    abstract static class Consumer {
+        final String name;
+        final long timeoutMillis;
+
+        Consumer(String name, long timeoutMillis) {
+            this.name = name;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        abstract void run() throws Exception;
+    }
+
+    /**
+     * How one consumer did.
+     */
+    static class Outcome {
+        final String name;
+        private long mLatencyMillis;
+        private boolean mTimedOut;
+        private Throwable mError;
+        private boolean mDone;
+
+        Outcome(String name) {
+            this.name = name;
+        }
+
+        // Whichever of finish() and timeOut() comes first decides the outcome; a consumer that
+        // finally returns after timing out doesn't change it
+        synchronized void finish(long latencyMillis, Throwable error) {
+            if (!mDone) {
+                mDone = true;
+                mLatencyMillis = latencyMillis;
+                mError = error;
+            }
+        }
+
+        synchronized void timeOut(long latencyMillis) {
+            if (!mDone) {
+                mDone = true;
+                mLatencyMillis = latencyMillis;
+                mTimedOut = true;
+            }
+        }
+
+        /**
+         * @return how long the consumer ran, or until it was given up on
+         */
+        synchronized long getLatencyMillis() {
+            return mLatencyMillis;
+        }
+
+        synchronized boolean isTimedOut() {
+            return mTimedOut;
+        }
+
+        synchronized boolean isFailed() {
+            return mError != null;
+        }
+
+        /**
+         * @return what the consumer threw, or null if it didn't fail
+         */
+        synchronized Throwable getError() {
+            return mError;
+        }
+    }
+
+    interface Listener {
+        /**
+         * Called on a worker thread once every consumer has finished or timed out.
+         * @param outcomes One per consumer, in the order they were dispatched
+         */
+        void onDispatched(List<Outcome> outcomes);
+    }
+
+    private final ExecutorService mExecutor;
+
+    /**
+     * @param executor Must be able to run every consumer of a dispatch at once, plus one task
+     *                 that waits on them, e.g. a cached thread pool
+     */
+    PostSyncDispatcher(ExecutorService executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Starts every consumer and returns straight away.
+     */
+    void dispatch(List<Consumer> consumers, final Listener listener) {
+        final long start = System.nanoTime();
+        final List<Outcome> outcomes = new ArrayList<Outcome>(consumers.size());
+        final List<Future<?>> futures = new ArrayList<Future<?>>(consumers.size());
+        final List<Long> deadlines = new ArrayList<Long>(consumers.size());
+        for (final Consumer consumer : consumers) {
+            final Outcome outcome = new Outcome(consumer.name);
+            outcomes.add(outcome);
+            deadlines.add(start + TimeUnit.MILLISECONDS.toNanos(consumer.timeoutMillis));
+            futures.add(mExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    Throwable error = null;
+                    try {
+                        consumer.run();
+                    } catch (Exception e) {
+                        error = e;
+                    } catch (Error e) {
+                        // Reported like any other failure, but not swallowed
+                        error = e;
+                        throw e;
+                    } finally {
+                        outcome.finish(millisSince(start), error);
+                    }
+                }
+            }));
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < futures.size(); i++) {
+                    Future<?> future = futures.get(i);
+                    try {
+                        future.get(Math.max(0, deadlines.get(i) - System.nanoTime()),
+                                TimeUnit.NANOSECONDS);
+                    } catch (TimeoutException e) {
+                        outcomes.get(i).timeOut(millisSince(start));
+                        future.cancel(true);
+                    } catch (ExecutionException e) {
+                        // The consumer's own task already caught and recorded it
+                    } catch (InterruptedException e) {
+                        // Shutting down; don't leave consumers running unaccounted for
+                        for (int j = i; j < futures.size(); j++) {
+                            outcomes.get(j).timeOut(millisSince(start));
+                            futures.get(j).cancel(true);
+                        }
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                listener.onDispatched(outcomes);
+            }
+        });
+    }
+
+    private static long millisSince(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.text.TextUtils;
+
+import com.example.android.sunshine.app.SunshineStats;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps the forecasts of the last few locations the user switched away from, so switching back
+ * to one shows its forecast straight from the database instead of an empty list until a sync
+ * finishes.
+ *
+ * Every sync stamps the preferred location with {@link WeatherContract.LocationEntry#COLUMN_LAST_USED}.
+ * Periodic syncs refresh the most recently used locations along with the preferred and saved
+ * ones, mostly in the same group request, and every sync deletes any location beyond them
+ * together with its weather.  How many are kept is a preference.
+ */
+class RecentLocations {
+
+    // Reported through SunshineStats: locations deleted for falling out of the recent ones
+    public static final String STAT_DELETED = "recent_locations.deleted";
+
+    private static final String[] LOCATION_COLUMNS = {
+            WeatherContract.LocationEntry._ID,
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG
+    };
+    private static final int COL_ID = 0;
+    private static final int COL_LOCATION_SETTING = 1;
+    private static final int COL_COORD_LAT = 2;
+    private static final int COL_COORD_LONG = 3;
+
+    /**
+     * Records that the location is the one the user is looking at.
+     */
+    static void markUsed(Context context, String locationSetting, long now) {
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.LocationEntry.COLUMN_LAST_USED, now);
+        context.getContentResolver().update(WeatherContract.LocationEntry.CONTENT_URI, values,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting});
+    }
+
+    /**
+     * @param exclude Settings synced anyway, i.e. the preferred and saved locations
+     * @return the most recently used locations besides these, most recent first, at most count
+     */
+    static List<LocationSyncer.Target> getTargets(Context context, Collection<String> exclude,
+                                                  int count) {
+        List<LocationSyncer.Target> targets = new ArrayList<LocationSyncer.Target>();
+        if (count <= 0) {
+            return targets;
+        }
+        Cursor cursor = context.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI, LOCATION_COLUMNS,
+                WeatherContract.LocationEntry.COLUMN_LAST_USED + " IS NOT NULL", null,
+                WeatherContract.LocationEntry.COLUMN_LAST_USED + " DESC");
+        if (cursor == null) {
+            return targets;
+        }
+        try {
+            while (targets.size() < count && cursor.moveToNext()) {
+                String locationSetting = cursor.getString(COL_LOCATION_SETTING);
+                if (!exclude.contains(locationSetting)) {
+                    // A Place Picker address may mean nothing to OpenWeatherMap, but the city it
+                    // resolved to last time still does
+                    targets.add(new LocationSyncer.Target(locationSetting, true,
+                            cursor.getDouble(COL_COORD_LAT), cursor.getDouble(COL_COORD_LONG)));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return targets;
+    }
+
+    /**
+     * Deletes every location but these, along with its weather, 3-hourly points and status.
+     * @return the number of locations deleted
+     */
+    static int retainOnly(Context context, Collection<String> keep) {
+        List<String> ids = new ArrayList<String>();
+        List<String> settings = new ArrayList<String>();
+        Cursor cursor = context.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI, LOCATION_COLUMNS, null, null, null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                String locationSetting = cursor.getString(COL_LOCATION_SETTING);
+                if (!keep.contains(locationSetting)) {
+                    ids.add(Long.toString(cursor.getLong(COL_ID)));
+                    settings.add(locationSetting);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        if (ids.isEmpty()) {
+            return 0;
+        }
+
+        String[] idArgs = ids.toArray(new String[ids.size()]);
+        String placeholders = TextUtils.join(",", Collections.nCopies(ids.size(), "?"));
+        // Weather first, so no row is ever left pointing at a missing location
+        context.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " IN (" + placeholders + ")",
+                idArgs);
+        context.getContentResolver().delete(WeatherContract.HourlyEntry.CONTENT_URI,
+                WeatherContract.HourlyEntry.COLUMN_LOC_KEY + " IN (" + placeholders + ")",
+                idArgs);
+        int deleted = context.getContentResolver().delete(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                WeatherContract.LocationEntry._ID + " IN (" + placeholders + ")", idArgs);
+
+        SharedPreferences.Editor statuses = context.getSharedPreferences(
+                SunshineSyncAdapter.LOCATION_STATUS_PREFS, Context.MODE_PRIVATE).edit();
+        for (String locationSetting : settings) {
+            statuses.remove(locationSetting);
+        }
+        statuses.apply();
+        SunshineStats.incrementBy(context, STAT_DELETED, deleted);
+        return deleted;
+    }
+}
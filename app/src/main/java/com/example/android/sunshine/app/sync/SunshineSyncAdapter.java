@@ -2,7 +2,6 @@ package com.example.android.sunshine.app.sync;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
-import android.annotation.SuppressLint;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.AbstractThreadedSyncAdapter;
@@ -18,59 +17,95 @@ import android.content.SyncResult;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.annotation.IntDef;
-import android.support.annotation.NonNull;
-import android.support.annotation.Nullable;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.TaskStackBuilder;
 import android.text.format.Time;
 import android.util.Log;
 
-import com.bumptech.glide.Glide;
-import com.example.android.sunshine.app.BuildConfig;
+import com.example.android.sunshine.app.AppStateStore;
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.SunshineStats;
 import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.LocationCache;
 import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.gcm.WatchWeatherService;
 import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
+import com.example.android.sunshine.app.notification.NotificationArtCache;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.wearable.Node;
 import com.google.android.gms.wearable.NodeApi;
 import com.google.android.gms.wearable.Wearable;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
-public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements GoogleApiClient.ConnectionCallbacks, GoogleApiClient.OnConnectionFailedListener {
+public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
     public static final String ACTION_DATA_UPDATED =
             "com.example.android.sunshine.app.ACTION_DATA_UPDATED";
-    // Interval at which to sync with the weather, in seconds.
+    // Interval at which to sync with the weather, in seconds, until SyncScheduler adapts it.
     // 60 seconds (1 minute) * 180 = 3 hours
     public static final int SYNC_INTERVAL = 60 * 180;
     public static final int SYNC_FLEXTIME = SYNC_INTERVAL/3;
+    // Number of days of forecast to ask OpenWeatherMap for
+    static final int FORECAST_DAYS = 14;
     private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
     private static final int WEATHER_NOTIFICATION_ID = 3004;
 
+    // How many locations are synced at the same time
+    static final int SYNC_POOL_SIZE = 4;
+    // Per location status, keyed by location setting
+    public static final String LOCATION_STATUS_PREFS = "location_status";
+
+    // Timers reported through SunshineStats for every sync
+    public static final String STAT_SYNC_WALL = "sync.wall_ms";
+    public static final String STAT_SYNC_LOCATIONS = "sync.locations";
+    public static final String STAT_CHECKPOINT = "sync.checkpoint_ms";
+
+    // Counters reported through SunshineStats when a sync turns out to change nothing
+    public static final String STAT_UNCHANGED_SYNCS = "sync.unchanged";
+    public static final String STAT_AVOIDED_WRITES = "sync.avoided_row_writes";
+    public static final String STAT_AVOIDED_NOTIFICATIONS = "sync.avoided_notifications";
+    // Widgets, Muzei, the notification and the watch
+    private static final int UPDATE_TARGET_COUNT = 4;
+
+    // What the fan-out after a sync tells, and how long each may take before it's given up on
+    static final String CONSUMER_WIDGETS = "widgets";
+    static final String CONSUMER_MUZEI = "muzei";
+    static final String CONSUMER_NOTIFICATION = "notification";
+    static final String CONSUMER_WATCH = "watch";
+    private static final long WIDGETS_TIMEOUT_MILLIS = 1000 * 5;
+    private static final long MUZEI_TIMEOUT_MILLIS = 1000 * 5;
+    private static final long NOTIFICATION_TIMEOUT_MILLIS = 1000 * 5;
+    private static final long WATCH_TIMEOUT_MILLIS = 1000 * 30;
+
+    // Reported through SunshineStats for every consumer, e.g. "fanout.watch_ms"
+    public static final String STAT_FANOUT_PREFIX = "fanout.";
+    public static final String STAT_FANOUT_LATENCY_SUFFIX = "_ms";
+    public static final String STAT_FANOUT_TIMEOUT_SUFFIX = "_timeouts";
+    public static final String STAT_FANOUT_FAILURE_SUFFIX = "_failures";
+
+    // Idle threads go away after a minute, so this costs nothing between syncs
+    private static final PostSyncDispatcher sDispatcher =
+            new PostSyncDispatcher(Executors.newCachedThreadPool());
+
 
     private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
             WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
@@ -85,42 +120,34 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
     private static final int INDEX_MIN_TEMP = 2;
     private static final int INDEX_SHORT_DESC = 3;
 
-    @Override
-    public void onConnected(@Nullable Bundle bundle) {
-        updateWatchInfo();
-    }
-
-    private void updateWatchInfo(){
-        if (mGoogleApiClient.isConnected()){
-            new Thread(){
-                @Override
-                public void run() {
-                    NodeApi.GetLocalNodeResult getConnectedNodesResult =
-                            Wearable.NodeApi.getLocalNode(mGoogleApiClient).await();
-
-                    Node localNode = getConnectedNodesResult.getNode();
-
-                    Wearable.MessageApi.sendMessage(
-                            mGoogleApiClient,
-                            localNode.getId(),
-                            WatchWeatherService.WATCH_WEATHER_MSG_PATH,
-                            WatchWeatherService.WATCH_WEATHER_READY.getBytes()
-                    ).await();
-
-                    mGoogleApiClient.disconnect();
-                }
-            }.start();
+    /**
+     * Tells the watch face there is new weather to pick up.  Blocks, so it runs as one of the
+     * {@link PostSyncDispatcher} consumers.
+     */
+    private void pushToWatch() throws IOException {
+        GoogleApiClient googleApiClient = new GoogleApiClient.Builder(getContext())
+                .addApi(Wearable.API)
+                .build();
+        ConnectionResult connectionResult =
+                googleApiClient.blockingConnect(WATCH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        if (!connectionResult.isSuccess()) {
+            throw new IOException("Couldn't connect to Wearable: " + connectionResult);
         }
-    }
-
-    @Override
-    public void onConnectionSuspended(int i) {
-
-    }
+        try {
+            NodeApi.GetLocalNodeResult getConnectedNodesResult =
+                    Wearable.NodeApi.getLocalNode(googleApiClient).await();
 
-    @Override
-    public void onConnectionFailed(@NonNull ConnectionResult connectionResult) {
+            Node localNode = getConnectedNodesResult.getNode();
 
+            Wearable.MessageApi.sendMessage(
+                    googleApiClient,
+                    localNode.getId(),
+                    WatchWeatherService.WATCH_WEATHER_MSG_PATH,
+                    WatchWeatherService.WATCH_WEATHER_READY.getBytes()
+            ).await();
+        } finally {
+            googleApiClient.disconnect();
+        }
     }
 
     @Retention(RetentionPolicy.SOURCE)
@@ -133,306 +160,403 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
     public static final int LOCATION_STATUS_UNKNOWN = 3;
     public static final int LOCATION_STATUS_INVALID = 4;
 
-    private GoogleApiClient mGoogleApiClient;
-
     public SunshineSyncAdapter(Context context, boolean autoInitialize) {
         super(context, autoInitialize);
-
-        mGoogleApiClient = new GoogleApiClient.Builder(context)
-                .addApi(Wearable.API)
-                .addConnectionCallbacks(this)
-                .addOnConnectionFailedListener(this)
-                .build();
     }
 
     @Override
     public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
-        Log.d(LOG_TAG, "Starting sync");
+        // The front door has to hear that the sync ended even if it ended badly, or it would
+        // keep attaching requests to it
+        SyncFrontDoor.onSyncStarted();
+        @LocationStatus int status = LOCATION_STATUS_UNKNOWN;
+        try {
+            status = performSync(extras, syncResult);
+        } finally {
+            SyncFrontDoor.onSyncFinished(getContext(), status == LOCATION_STATUS_OK);
+        }
+    }
 
-        // We no longer need just the location String, but also potentially the latitude and
-        // longitude, in case we are syncing based on a new Place Picker API result.
+    /**
+     * @return the preferred location's status
+     */
+    @LocationStatus
+    private int performSync(Bundle extras, SyncResult syncResult) {
+        Log.d(LOG_TAG, "Starting sync");
         Context context = getContext();
-        String locationQuery = Utility.getPreferredLocation(context);
-        String locationLatitude = String.valueOf(Utility.getLocationLatitude(context));
-        String locationLongitude = String.valueOf(Utility.getLocationLongitude(context));
-
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
-        HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
-
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
-
-        String format = "json";
-        String units = "metric";
-        int numDays = 14;
+        long start = SystemClock.elapsedRealtime();
+        long startedAt = System.currentTimeMillis();
+
+        // OWM returns daily forecasts based upon the local time of the city that is being
+        // asked for, which means that we need to know the GMT offset to translate this data
+        // properly.
+
+        // Since this data is also sent in-order and the first day is always the
+        // current day, we're going to take advantage of that to get a nice
+        // normalized UTC date for all of our weather.
+        Time dayTime = new Time();
+        dayTime.setToNow();
+
+        // we start at the day returned by local time. Otherwise this is a mess.
+        int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+
+        // Leave a server that keeps failing alone for a while, rather than try it again on
+        // every sync
+        int permit = CircuitBreakerStore.acquire(context);
+        if (permit == CircuitBreakerStore.PERMIT_NONE) {
+            Log.d(LOG_TAG, "Sync skipped, backing off the forecast server");
+            setLocationStatus(context, LOCATION_STATUS_SERVER_DOWN);
+            SyncScheduler.onSyncFinished(context, LOCATION_STATUS_SERVER_DOWN, 0,
+                    !extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false));
+            ContentValues journal = newSyncLogValues(startedAt, start, LOCATION_STATUS_SERVER_DOWN);
+            context.getContentResolver().insert(WeatherContract.SyncLogEntry.CONTENT_URI, journal);
+            return LOCATION_STATUS_SERVER_DOWN;
+        }
 
-        try {
-            // Construct the URL for the OpenWeatherMap query
-            // Possible parameters are avaiable at OWM's forecast API page, at
-            // http://openweathermap.org/API#forecast
-            final String FORECAST_BASE_URL =
-                    "http://api.openweathermap.org/data/2.5/forecast/daily?";
-            final String QUERY_PARAM = "q";
-            final String LAT_PARAM = "lat";
-            final String LON_PARAM = "lon";
-            final String FORMAT_PARAM = "mode";
-            final String UNITS_PARAM = "units";
-            final String DAYS_PARAM = "cnt";
-            final String APPID_PARAM = "APPID";
-
-            Uri.Builder uriBuilder = Uri.parse(FORECAST_BASE_URL).buildUpon();
-
-            // Instead of always building the query based off of the location string, we want to
-            // potentially build a query using a lat/lon value. This will be the case when we are
-            // syncing based off of a new location from the Place Picker API. So we need to check
-            // if we have a lat/lon to work with, and use those when we do. Otherwise, the weather
-            // service may not understand the location address provided by the Place Picker API
-            // and the user could end up with no weather! The horror!
-            if (Utility.isLocationLatLonAvailable(context)) {
-                uriBuilder.appendQueryParameter(LAT_PARAM, locationLatitude)
-                        .appendQueryParameter(LON_PARAM, locationLongitude);
-            } else {
-                uriBuilder.appendQueryParameter(QUERY_PARAM, locationQuery);
+        // Recently used locations only come along on periodic syncs, so they never hold up one
+        // somebody is waiting for
+        boolean periodic = !extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false);
+        List<LocationSyncer.Target> targets = getSyncTargets(context, periodic);
+        if (permit == CircuitBreakerStore.PERMIT_PROBE) {
+            // One location is enough to find out whether the server is back; the others wait
+            // for the next sync
+            targets = targets.subList(0, 1);
+        }
+        NetworkBatcher.noteRadioUse(context);
+        LocationSyncer syncer = new LocationSyncer(context, julianStartDay);
+        List<LocationSyncer.Result> results = syncAll(syncer, targets);
+        reportServerHealth(context, results);
+
+        // Every location keeps its own status, so one that is misspelt or whose server is
+        // down doesn't show up as a problem with the others
+        SharedPreferences.Editor statuses =
+                context.getSharedPreferences(LOCATION_STATUS_PREFS, Context.MODE_PRIVATE).edit();
+        // The stages of every location add up in the journal, even those that ran side by side
+        long fetchMillis = 0;
+        long parseMillis = 0;
+        long writeMillis = 0;
+        long bytes = 0;
+        int rowsChanged = 0;
+        List<String> current = new ArrayList<String>();
+        for (int i = 0; i < targets.size(); i++) {
+            LocationSyncer.Result result = results.get(i);
+            fetchMillis += result.stages.fetchMillis;
+            parseMillis += result.stages.parseMillis;
+            writeMillis += result.stages.writeMillis;
+            bytes += result.stages.bytes;
+            rowsChanged += result.changedDays;
+            @LocationStatus int status = result.status;
+            if (status == LOCATION_STATUS_OK) {
+                current.add(targets.get(i).locationSetting);
+            }
+            statuses.putInt(targets.get(i).locationSetting, status);
+            if (status == LOCATION_STATUS_SERVER_DOWN) {
+                syncResult.stats.numIoExceptions++;
+            } else if (status != LOCATION_STATUS_OK) {
+                syncResult.stats.numParseExceptions++;
             }
+        }
+        statuses.apply();
+
+        ContentValues journal = newSyncLogValues(startedAt, start, results.get(0).status);
+        journal.put(WeatherContract.SyncLogEntry.COLUMN_FETCH_MS, fetchMillis);
+        journal.put(WeatherContract.SyncLogEntry.COLUMN_PARSE_MS, parseMillis);
+        journal.put(WeatherContract.SyncLogEntry.COLUMN_WRITE_MS, writeMillis);
+        journal.put(WeatherContract.SyncLogEntry.COLUMN_BYTES, bytes);
+        journal.put(WeatherContract.SyncLogEntry.COLUMN_ROWS_CHANGED, rowsChanged);
+        journal.put(WeatherContract.SyncLogEntry.COLUMN_LOCATIONS, targets.size());
+
+        if (!current.isEmpty()) {
+            long now = System.currentTimeMillis();
+            syncer.markSynced(current, now);
+            if (results.get(0).status == LOCATION_STATUS_OK) {
+                RecentLocations.markUsed(context, targets.get(0).locationSetting, now);
+                // Only the preferred location has anything that could show intraday detail,
+                // and the radio is up anyway
+                syncer.syncHourly(targets.get(0));
+            }
+            long deleteStart = SystemClock.elapsedRealtime();
+            syncer.deleteOldWeather();
+            RecentLocations.retainOnly(context, getKeptLocations(context));
+            journal.put(WeatherContract.SyncLogEntry.COLUMN_DELETE_MS,
+                    SystemClock.elapsedRealtime() - deleteStart);
+
+            // The network has just worked, so deferred work may as well use it now
+            NetworkBatcher.onSyncUsedNetwork(context);
+        }
 
-            Uri builtUri = uriBuilder.appendQueryParameter(FORMAT_PARAM, format)
-                    .appendQueryParameter(UNITS_PARAM, units)
-                    .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-                    .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
-                    .build();
+        LocationSyncer.Result preferred = results.get(0);
+        setLocationStatus(context, preferred.status);
+        SyncScheduler.onSyncFinished(context, preferred.status, preferred.changedDays, periodic);
+
+        // The data is stored, so the sync is done.  The fan-out runs after it, and fills in its
+        // own stages once it's finished.
+        journal.put(WeatherContract.SyncLogEntry.COLUMN_TOTAL_MS,
+                SystemClock.elapsedRealtime() - start);
+        Uri journalUri = context.getContentResolver().insert(
+                WeatherContract.SyncLogEntry.CONTENT_URI, journal);
+
+        // Only the preferred location is shown outside the app, so it alone decides whether
+        // widgets, Muzei, the notification and the watch need to hear about this sync
+        if (preferred.changedDays > 0) {
+            dispatchUpdates(journalUri != null ? ContentUris.parseId(journalUri) : -1);
+        } else {
+            SunshineStats.incrementBy(context, STAT_AVOIDED_NOTIFICATIONS, UPDATE_TARGET_COUNT);
+        }
 
-            URL url = new URL(builtUri.toString());
+        // All of this sync's writes are in the write-ahead log; fold them into the database now
+        // rather than during some later write.  Readers aren't held up by it.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            long checkpointStart = SystemClock.elapsedRealtime();
+            context.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                    WeatherContract.METHOD_CHECKPOINT, null, null);
+            SunshineStats.record(context, STAT_CHECKPOINT,
+                    SystemClock.elapsedRealtime() - checkpointStart);
+        }
 
-            // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
+        long wallMillis = SystemClock.elapsedRealtime() - start;
+        SunshineStats.record(context, STAT_SYNC_WALL, wallMillis);
+        SunshineStats.record(context, STAT_SYNC_LOCATIONS, targets.size());
+        Log.d(LOG_TAG, "Sync Complete. " + targets.size() + " locations in " + wallMillis + "ms");
+        return preferred.status;
+    }
 
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
-                return;
-            }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
-            }
+    /**
+     * @return the start of a sync journal row, with the stages still to be filled in
+     */
+    private static ContentValues newSyncLogValues(long startedAt, long start,
+                                                  @LocationStatus int outcome) {
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.SyncLogEntry.COLUMN_START, startedAt);
+        values.put(WeatherContract.SyncLogEntry.COLUMN_TOTAL_MS,
+                SystemClock.elapsedRealtime() - start);
+        values.put(WeatherContract.SyncLogEntry.COLUMN_OUTCOME, outcome);
+        return values;
+    }
 
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                return;
-            }
-            forecastJsonStr = buffer.toString();
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Error ", e);
-            // If the code didn't successfully get the weather data, there's no point in attempting
-            // to parse it.
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
-        } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (final IOException e) {
-                    Log.e(LOG_TAG, "Error closing stream", e);
-                }
+    /**
+     * Tells the circuit breaker how the forecast server did.  Any location it answered properly,
+     * even with "no such city", shows it is up; it has failed only if every answer was a
+     * failure.  Local problems, like a database error, don't count either way.
+     */
+    private static void reportServerHealth(Context context, List<LocationSyncer.Result> results) {
+        boolean failed = false;
+        for (LocationSyncer.Result result : results) {
+            switch (result.status) {
+                case LOCATION_STATUS_OK:
+                case LOCATION_STATUS_INVALID:
+                    CircuitBreakerStore.onServerSuccess(context);
+                    return;
+                case LOCATION_STATUS_SERVER_DOWN:
+                case LOCATION_STATUS_SERVER_INVALID:
+                    failed = true;
+                    break;
+                default:
+                    break;
             }
         }
-        return;
+        if (failed) {
+            CircuitBreakerStore.onServerFailure(context);
+        }
     }
 
     /**
-     * Take the String representing the complete forecast in JSON Format and
-     * pull out the data we need to construct the Strings needed for the wireframes.
-     *
-     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
-     * into an Object hierarchy for us.
+     * @param includeRecent Whether to refresh the recently used locations as well
+     * @return the preferred location first, then the saved ones, then the recent ones
      */
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                        String locationSetting)
-            throws JSONException {
-
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
+    private static List<LocationSyncer.Target> getSyncTargets(Context context,
+                                                              boolean includeRecent) {
+        List<LocationSyncer.Target> targets = new ArrayList<LocationSyncer.Target>();
 
-        // These are the names of the JSON objects that need to be extracted.
-
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
+        // We no longer need just the location String, but also potentially the latitude and
+        // longitude, in case we are syncing based on a new Place Picker API result.
+        String locationQuery = Utility.getPreferredLocation(context);
+        if (Utility.isLocationLatLonAvailable(context)) {
+            targets.add(new LocationSyncer.Target(locationQuery, true,
+                    Utility.getLocationLatitude(context), Utility.getLocationLongitude(context)));
+        } else {
+            targets.add(new LocationSyncer.Target(locationQuery));
+        }
 
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
+        List<String> settings = new ArrayList<String>();
+        settings.add(locationQuery);
+        for (String savedLocation : Utility.getSavedLocations(context)) {
+            targets.add(new LocationSyncer.Target(savedLocation));
+            settings.add(savedLocation);
+        }
+        if (includeRecent) {
+            targets.addAll(RecentLocations.getTargets(context, settings,
+                    Utility.getRecentLocationCount(context)));
+        }
+        return targets;
+    }
 
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
+    /**
+     * @return the settings of every location whose forecast is kept: the preferred one, the
+     * saved ones and as many recently used ones as the user wants
+     */
+    private static List<String> getKeptLocations(Context context) {
+        List<String> settings = new ArrayList<String>();
+        settings.add(Utility.getPreferredLocation(context));
+        settings.addAll(Utility.getSavedLocations(context));
+        for (LocationSyncer.Target target : RecentLocations.getTargets(context, settings,
+                Utility.getRecentLocationCount(context))) {
+            settings.add(target.locationSetting);
+        }
+        return settings;
+    }
 
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
+    /**
+     * Syncs every target: as many as possible through group requests, the rest one by one.
+     *
+     * @return one result per target, in the same order
+     */
+    static List<LocationSyncer.Result> syncAll(LocationSyncer syncer,
+                                               List<LocationSyncer.Target> targets) {
+        LocationSyncer.Result[] grouped = syncer.syncInGroups(targets);
+
+        List<LocationSyncer.Target> remaining = new ArrayList<LocationSyncer.Target>();
+        for (int i = 0; i < targets.size(); i++) {
+            if (grouped[i] == null) {
+                remaining.add(targets.get(i));
+            }
+        }
+        List<LocationSyncer.Result> individual = syncEach(syncer, remaining);
 
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
+        List<LocationSyncer.Result> results = new ArrayList<LocationSyncer.Result>(targets.size());
+        int next = 0;
+        for (LocationSyncer.Result result : grouped) {
+            results.add(result != null ? result : individual.get(next++));
+        }
+        return results;
+    }
 
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
+    /**
+     * Syncs every target with its own request, at most {@link #SYNC_POOL_SIZE} at a time.
+     * Almost all of a location's sync is spent waiting on the network, so running them side by
+     * side keeps the total close to that of the slowest one rather than the sum of all of them.
+     *
+     * @return one result per target, in the same order
+     */
+    static List<LocationSyncer.Result> syncEach(final LocationSyncer syncer,
+                                                List<LocationSyncer.Target> targets) {
+        List<LocationSyncer.Result> results = new ArrayList<LocationSyncer.Result>(targets.size());
+        if (targets.isEmpty()) {
+            return results;
+        }
+        if (targets.size() == 1) {
+            // No point starting a thread to wait on it
+            results.add(syncer.sync(targets.get(0)));
+            return results;
+        }
 
-        final String OWM_MESSAGE_CODE = "cod";
+        List<Callable<LocationSyncer.Result>> tasks =
+                new ArrayList<Callable<LocationSyncer.Result>>(targets.size());
+        for (final LocationSyncer.Target target : targets) {
+            tasks.add(new Callable<LocationSyncer.Result>() {
+                @Override
+                public LocationSyncer.Result call() {
+                    return syncer.sync(target);
+                }
+            });
+        }
 
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(SYNC_POOL_SIZE, targets.size()));
         try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
-            Context context = getContext();
-
-            // do we have an error?
-            if ( forecastJson.has(OWM_MESSAGE_CODE) ) {
-                int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
-
-                switch (errorCode) {
-                    case HttpURLConnection.HTTP_OK:
-                        break;
-                    case HttpURLConnection.HTTP_NOT_FOUND:
-                        setLocationStatus(getContext(), LOCATION_STATUS_INVALID);
-                        return;
-                    default:
-                        setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                        return;
+            for (Future<LocationSyncer.Result> future : pool.invokeAll(tasks)) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    // sync() catches what it expects to go wrong; anything else ends up here
+                    Log.e(SunshineSyncAdapter.class.getSimpleName(), "Location sync failed", e);
+                    results.add(new LocationSyncer.Result(LOCATION_STATUS_UNKNOWN, 0));
                 }
             }
+        } catch (InterruptedException e) {
+            // The sync was cancelled; invokeAll has already cancelled whatever was still running
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+        while (results.size() < targets.size()) {
+            results.add(new LocationSyncer.Result(LOCATION_STATUS_UNKNOWN, 0));
+        }
+        return results;
+    }
 
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
-
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
-
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
-
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
-
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
-
-            // OWM returns daily forecasts based upon the local time of the city that is being
-            // asked for, which means that we need to know the GMT offset to translate this data
-            // properly.
-
-            // Since this data is also sent in-order and the first day is always the
-            // current day, we're going to take advantage of that to get a nice
-            // normalized UTC date for all of our weather.
-
-            Time dayTime = new Time();
-            dayTime.setToNow();
-
-            // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
-
-            // now we work exclusively in UTC
-            dayTime = new Time();
-
-            for(int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
-
-                double high;
-                double low;
-
-                String description;
-                int weatherId;
-
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
-
-                // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay+i);
-
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
-
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
-
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
-
-                ContentValues weatherValues = new ContentValues();
-
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
-
-                cVVector.add(weatherValues);
-            }
-
-            int inserted = 0;
-            // add to database
-            if ( cVVector.size() > 0 ) {
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                cVVector.toArray(cvArray);
-                getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
-
-                // delete old data so we don't build up an endless history
-                getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
-                        new String[] {Long.toString(dayTime.setJulianDay(julianStartDay-1))});
-
+    /**
+     * Starts telling widgets, Muzei, the notification and the watch about the new weather, all
+     * at once, and returns without waiting for them.
+     * @param journalId The sync's journal row, to fill the fan-out stages into; -1 for none
+     */
+    private void dispatchUpdates(final long journalId) {
+        List<PostSyncDispatcher.Consumer> consumers = new ArrayList<PostSyncDispatcher.Consumer>();
+        consumers.add(new PostSyncDispatcher.Consumer(CONSUMER_WIDGETS, WIDGETS_TIMEOUT_MILLIS) {
+            @Override
+            void run() {
                 updateWidgets();
+            }
+        });
+        consumers.add(new PostSyncDispatcher.Consumer(CONSUMER_MUZEI, MUZEI_TIMEOUT_MILLIS) {
+            @Override
+            void run() {
                 updateMuzei();
+            }
+        });
+        consumers.add(new PostSyncDispatcher.Consumer(CONSUMER_NOTIFICATION,
+                NOTIFICATION_TIMEOUT_MILLIS) {
+            @Override
+            void run() {
                 notifyWeather();
+            }
+        });
+        consumers.add(new PostSyncDispatcher.Consumer(CONSUMER_WATCH, WATCH_TIMEOUT_MILLIS) {
+            @Override
+            void run() throws IOException {
+                pushToWatch();
+            }
+        });
 
-                mGoogleApiClient.connect();
+        sDispatcher.dispatch(consumers, new PostSyncDispatcher.Listener() {
+            @Override
+            public void onDispatched(List<PostSyncDispatcher.Outcome> outcomes) {
+                onUpdatesDispatched(journalId, outcomes);
             }
-            Log.d(LOG_TAG, "Sync Complete. " + cVVector.size() + " Inserted");
-            setLocationStatus(getContext(), LOCATION_STATUS_OK);
+        });
+    }
 
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+    /**
+     * Records how long each consumer took, and fills the fan-out stages into the journal: the
+     * watch on its own, and the others together, which is the longest of them since they ran
+     * side by side.
+     */
+    private void onUpdatesDispatched(long journalId, List<PostSyncDispatcher.Outcome> outcomes) {
+        Context context = getContext();
+        long fanoutMillis = 0;
+        ContentValues values = new ContentValues();
+        for (PostSyncDispatcher.Outcome outcome : outcomes) {
+            String stat = STAT_FANOUT_PREFIX + outcome.name;
+            SunshineStats.record(context, stat + STAT_FANOUT_LATENCY_SUFFIX,
+                    outcome.getLatencyMillis());
+            if (outcome.isTimedOut()) {
+                Log.w(LOG_TAG, "Gave up on " + outcome.name + " after "
+                        + outcome.getLatencyMillis() + "ms");
+                SunshineStats.increment(context, stat + STAT_FANOUT_TIMEOUT_SUFFIX);
+            } else if (outcome.isFailed()) {
+                Log.w(LOG_TAG, "Couldn't update " + outcome.name, outcome.getError());
+                SunshineStats.increment(context, stat + STAT_FANOUT_FAILURE_SUFFIX);
+            }
+            if (CONSUMER_WATCH.equals(outcome.name)) {
+                values.put(WeatherContract.SyncLogEntry.COLUMN_WATCH_MS, outcome.getLatencyMillis());
+            } else {
+                fanoutMillis = Math.max(fanoutMillis, outcome.getLatencyMillis());
+            }
+        }
+        values.put(WeatherContract.SyncLogEntry.COLUMN_FANOUT_MS, fanoutMillis);
+        if (journalId != -1) {
+            context.getContentResolver().update(WeatherContract.SyncLogEntry.CONTENT_URI, values,
+                    WeatherContract.SyncLogEntry._ID + " = ?",
+                    new String[]{Long.toString(journalId)});
         }
     }
 
@@ -464,17 +588,18 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
 
         if ( displayNotifications ) {
 
-            String lastNotificationKey = context.getString(R.string.pref_last_notification);
-            long lastSync = prefs.getLong(lastNotificationKey, 0);
+            long lastSync = AppStateStore.getInstance(context).getLastNotification();
 
             if (System.currentTimeMillis() - lastSync >= DAY_IN_MILLIS) {
                 // Last sync was more than 1 day ago, let's send a notification with the weather.
-                String locationQuery = Utility.getPreferredLocation(context);
-
-                Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
+                long locationId = LocationCache.getInstance(context).getPreferredLocationId();
 
                 // we'll query our contentProvider, as always
-                Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
+                Cursor cursor = context.getContentResolver().query(
+                        WeatherContract.WeatherEntry.CONTENT_URI, NOTIFY_WEATHER_PROJECTION,
+                        LocationCache.WEATHER_ON_DATE_SELECTION,
+                        LocationCache.weatherSelectionArgs(locationId, System.currentTimeMillis()),
+                        null);
 
                 if (cursor.moveToFirst()) {
                     int weatherId = cursor.getInt(INDEX_WEATHER_ID);
@@ -484,33 +609,11 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
 
                     int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
                     Resources resources = context.getResources();
-                    int artResourceId = Utility.getArtResourceForWeatherCondition(weatherId);
-                    String artUrl = Utility.getArtUrlForWeatherCondition(context, weatherId);
-
-                    // On Honeycomb and higher devices, we can retrieve the size of the large icon
-                    // Prior to that, we use a fixed size
-                    @SuppressLint("InlinedApi")
-                    int largeIconWidth = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
-                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width)
-                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
-                    @SuppressLint("InlinedApi")
-                    int largeIconHeight = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
-                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height)
-                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
-
-                    // Retrieve the large icon
-                    Bitmap largeIcon;
-                    try {
-                        largeIcon = Glide.with(context)
-                                .load(artUrl)
-                                .asBitmap()
-                                .error(artResourceId)
-                                .fitCenter()
-                                .into(largeIconWidth, largeIconHeight).get();
-                    } catch (InterruptedException | ExecutionException e) {
-                        Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
-                        largeIcon = BitmapFactory.decodeResource(resources, artResourceId);
-                    }
+
+                    // Ready sized and in memory, or on disk as raw pixels. If it isn't cached
+                    // yet this notification goes without, rather than wait on the network.
+                    Bitmap largeIcon = NotificationArtCache.getInstance(context)
+                            .getLargeIcon(weatherId, NotificationArtCache.getCurrentPack(context));
                     String title = context.getString(R.string.app_name);
 
                     // Define the text of the forecast.
@@ -552,65 +655,14 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
                     mNotificationManager.notify(WEATHER_NOTIFICATION_ID, mBuilder.build());
 
                     //refreshing last sync
-                    SharedPreferences.Editor editor = prefs.edit();
-                    editor.putLong(lastNotificationKey, System.currentTimeMillis());
-                    editor.commit();
+                    AppStateStore.getInstance(context).setLastNotification(
+                            System.currentTimeMillis());
                 }
                 cursor.close();
             }
         }
     }
 
-    /**
-     * Helper method to handle insertion of a new location in the weather database.
-     *
-     * @param locationSetting The location string used to request updates from the server.
-     * @param cityName A human-readable city name, e.g "Mountain View"
-     * @param lat the latitude of the city
-     * @param lon the longitude of the city
-     * @return the row ID of the added location.
-     */
-    long addLocation(String locationSetting, String cityName, double lat, double lon) {
-        long locationId;
-
-        // First, check if the location with this city name exists in the db
-        Cursor locationCursor = getContext().getContentResolver().query(
-                WeatherContract.LocationEntry.CONTENT_URI,
-                new String[]{WeatherContract.LocationEntry._ID},
-                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
-                new String[]{locationSetting},
-                null);
-
-        if (locationCursor.moveToFirst()) {
-            int locationIdIndex = locationCursor.getColumnIndex(WeatherContract.LocationEntry._ID);
-            locationId = locationCursor.getLong(locationIdIndex);
-        } else {
-            // Now that the content provider is set up, inserting rows of data is pretty simple.
-            // First create a ContentValues object to hold the data you want to insert.
-            ContentValues locationValues = new ContentValues();
-
-            // Then add the data, along with the corresponding name of the data type,
-            // so the content provider knows what kind of value is being inserted.
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
-
-            // Finally, insert location data into the database.
-            Uri insertedUri = getContext().getContentResolver().insert(
-                    WeatherContract.LocationEntry.CONTENT_URI,
-                    locationValues
-            );
-
-            // The resulting URI contains the ID for the row.  Extract the locationId from the Uri.
-            locationId = ContentUris.parseId(insertedUri);
-        }
-
-        locationCursor.close();
-        // Wait, that worked?  Yes!
-        return locationId;
-    }
-
     /**
      * Helper method to schedule the sync adapter periodic execution
      */
@@ -631,10 +683,40 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
     }
 
     /**
-     * Helper method to have the sync adapter sync immediately
+     * Helper method to have the sync adapter sync immediately.  Requests close together share
+     * a sync, and one that comes in while the forecast was synced only minutes ago is answered
+     * by the database; see {@link SyncCoalescer}.  While the forecast server is being backed
+     * off this fails fast instead: no sync is queued, and the location status says the server
+     * is down.  A request for new settings still goes through, as the breaker's probe.
      * @param context The context used to access the account service
      */
     public static void syncImmediately(Context context) {
+        syncImmediately(context, false);
+    }
+
+    /**
+     * Like {@link #syncImmediately(Context)}, for when what is synced has changed, e.g. the
+     * location: fresh data for the old settings doesn't count, and a sync that is already
+     * running gets one more after it.
+     */
+    public static void syncImmediately(Context context, boolean settingsChanged) {
+        if (CircuitBreakerStore.isOpen(context)) {
+            if (!settingsChanged) {
+                SunshineStats.increment(context, CircuitBreakerStore.STAT_FAST_FAILED);
+                setLocationStatus(context, LOCATION_STATUS_SERVER_DOWN);
+                return;
+            }
+            // The failures may have been down to the old settings, e.g. a misspelt location.
+            // The probe syncs the preferred location, so it tries the new one.
+            CircuitBreakerStore.probeNow(context);
+        }
+        SyncFrontDoor.request(context, settingsChanged);
+    }
+
+    /**
+     * Asks the framework for a sync right away, bypassing the {@link SyncFrontDoor}.
+     */
+    static void requestSync(Context context) {
         Bundle bundle = new Bundle();
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
@@ -703,15 +785,12 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
     }
 
     /**
-     * Sets the location status into shared preference.  This function should not be called from
-     * the UI thread because it uses commit to write to the shared preferences.
-     * @param c Context to get the PreferenceManager from.
+     * Sets the location status in the app state, which writes it to the shared preferences in
+     * the background, and not at all if it hasn't changed.
+     * @param c Context to get the AppStateStore from.
      * @param locationStatus The IntDef value to set
      */
     static private void setLocationStatus(Context c, @LocationStatus int locationStatus){
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(c);
-        SharedPreferences.Editor spe = sp.edit();
-        spe.putInt(c.getString(R.string.pref_location_status_key), locationStatus);
-        spe.commit();
+        AppStateStore.getInstance(c).setLocationStatus(locationStatus);
     }
 }
\ No newline at end of file
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+/**
+ * Decides what to do with a request for an immediate sync, so that a burst of them costs one
+ * fetch rather than one each.
+ *
+ * A request is merged into one that was made within {@link #MERGE_WINDOW_MILLIS} and hasn't
+ * started yet, and attached to a sync that is already running.  If the last successful sync
+ * finished less than {@link #MIN_FRESH_MILLIS} ago the request is answered by what it stored.
+ * A forced request, one made because what should be synced has changed (e.g. the location),
+ * skips the freshness check; if it arrives while a sync is running, which may have read the old
+ * settings, exactly one more sync follows it.
+ *
+ * Time is passed in rather than read, so this can be tested on the JVM;
+ * {@link SyncFrontDoor} holds the one instance.
+ */
+class SyncCoalescer {
+
+    // What onRequest() decided
+    static final int EXECUTE = 0;
+    static final int MERGED = 1;
+    static final int ATTACHED = 2;
+    static final int FRESH = 3;
+    static final int QUEUED = 4;
+
+    static final long MERGE_WINDOW_MILLIS = 1000 * 10;
+    static final long MIN_FRESH_MILLIS = 1000 * 60 * 5;
+    // A sync that hasn't reported back by then is assumed to have died with its thread
+    static final long IN_FLIGHT_EXPIRY_MILLIS = 1000 * 60 * 10;
+
+    boolean pending;
+    long requestedAt;
+    boolean inFlight;
+    long startedAt;
+    boolean rerunQueued;
+    long lastSuccessAt = -1;
+
+    /**
+     * @param force Whether what should be synced changed since the last sync
+     * @return {@link #EXECUTE} if the caller should request a sync, or why it needn't
+     */
+    int onRequest(long now, boolean force) {
+        if (inFlight && now - startedAt < IN_FLIGHT_EXPIRY_MILLIS) {
+            if (force) {
+                rerunQueued = true;
+                return QUEUED;
+            }
+            return ATTACHED;
+        }
+        if (pending && now - requestedAt < MERGE_WINDOW_MILLIS) {
+            // Hasn't started, so it will see whatever changed
+            return MERGED;
+        }
+        if (!force && lastSuccessAt != -1 && now - lastSuccessAt < MIN_FRESH_MILLIS) {
+            return FRESH;
+        }
+        pending = true;
+        requestedAt = now;
+        return EXECUTE;
+    }
+
+    /**
+     * Called for every sync, periodic or requested, as it starts.  It takes care of anything
+     * pending or queued up to now.
+     */
+    void onSyncStarted(long now) {
+        pending = false;
+        rerunQueued = false;
+        inFlight = true;
+        startedAt = now;
+    }
+
+    /**
+     * @return true if a forced request came in while the sync ran, and the caller should
+     * request one more
+     */
+    boolean onSyncFinished(long now, boolean success) {
+        inFlight = false;
+        if (success) {
+            lastSuccessAt = now;
+        }
+        if (rerunQueued) {
+            rerunQueued = false;
+            pending = true;
+            requestedAt = now;
+            return true;
+        }
+        return false;
+    }
+}
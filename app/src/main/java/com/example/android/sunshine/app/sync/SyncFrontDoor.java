@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.sunshine.app.SunshineStats;
+
+/**
+ * Where every request for an immediate sync comes in.  The {@link SyncCoalescer} decides
+ * whether it needs a sync of its own; if not, the sync it was merged into, or the data already
+ * in the database, answers it.
+ *
+ * The state only lives as long as the process, which is also how long a pending or running
+ * sync does.  The clock is elapsedRealtime, so changing the time can't confuse it.
+ */
+class SyncFrontDoor {
+    private static final String LOG_TAG = SyncFrontDoor.class.getSimpleName();
+
+    // Reported through SunshineStats.  Every request ends up either executed or merged; the
+    // merged ones are broken down further.
+    public static final String STAT_REQUESTS = "front_door.requests";
+    public static final String STAT_EXECUTED = "front_door.executed";
+    public static final String STAT_MERGED = "front_door.merged";
+    public static final String STAT_ATTACHED = "front_door.attached";
+    public static final String STAT_FRESH = "front_door.fresh";
+    public static final String STAT_RERUNS = "front_door.reruns";
+
+    private static final SyncCoalescer sCoalescer = new SyncCoalescer();
+
+    /**
+     * @param force Whether what should be synced changed, e.g. the location, so data that is
+     *              still fresh doesn't answer the request
+     */
+    static void request(Context context, boolean force) {
+        int decision;
+        synchronized (sCoalescer) {
+            decision = sCoalescer.onRequest(SystemClock.elapsedRealtime(), force);
+        }
+        SunshineStats.increment(context, STAT_REQUESTS);
+        if (decision == SyncCoalescer.EXECUTE) {
+            SunshineStats.increment(context, STAT_EXECUTED);
+            SunshineSyncAdapter.requestSync(context);
+            return;
+        }
+
+        SunshineStats.increment(context, STAT_MERGED);
+        switch (decision) {
+            case SyncCoalescer.ATTACHED:
+                Log.d(LOG_TAG, "Sync already running");
+                SunshineStats.increment(context, STAT_ATTACHED);
+                break;
+            case SyncCoalescer.FRESH:
+                Log.d(LOG_TAG, "Forecast is fresh, no sync needed");
+                SunshineStats.increment(context, STAT_FRESH);
+                break;
+            case SyncCoalescer.QUEUED:
+                Log.d(LOG_TAG, "Sync already running, another follows it");
+                break;
+            default:
+                Log.d(LOG_TAG, "Sync already requested");
+                break;
+        }
+    }
+
+    /**
+     * Called by every sync, periodic or requested, as it starts.
+     */
+    static void onSyncStarted() {
+        synchronized (sCoalescer) {
+            sCoalescer.onSyncStarted(SystemClock.elapsedRealtime());
+        }
+    }
+
+    /**
+     * Called by every sync as it finishes, however it went.
+     * @param success Whether the data it stored may answer requests for a while
+     */
+    static void onSyncFinished(Context context, boolean success) {
+        boolean rerun;
+        synchronized (sCoalescer) {
+            rerun = sCoalescer.onSyncFinished(SystemClock.elapsedRealtime(), success);
+        }
+        if (rerun) {
+            SunshineStats.increment(context, STAT_RERUNS);
+            SunshineStats.increment(context, STAT_EXECUTED);
+            SunshineSyncAdapter.requestSync(context);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+/**
+ * Decides how long to wait before the next periodic sync.  Kept free of Android so the rules
+ * can be checked on the JVM; {@link SyncScheduler} gathers the inputs and applies the result.
+ *
+ * Starting from the default interval:
+ * <ul>
+ * <li>a run of syncs that changed nothing doubles it, and a longer run doubles it again</li>
+ * <li>a device nobody has used in a while, with no widgets to keep current, doubles it</li>
+ * <li>a forecast that changed for several days halves it</li>
+ * <li>someone using the app or the watch recently caps it at the default, and halves it if the
+ * forecast is changing at all</li>
+ * </ul>
+ * The result always stays between {@link #MIN_INTERVAL_SECONDS} and
+ * {@link #MAX_INTERVAL_SECONDS}.
+ */
+class SyncIntervalPolicy {
+
+    static final int BASE_INTERVAL_SECONDS = SunshineSyncAdapter.SYNC_INTERVAL;
+    static final int MIN_INTERVAL_SECONDS = 60 * 60;
+    static final int MAX_INTERVAL_SECONDS = 60 * 60 * 12;
+
+    // Unchanged syncs in a row before the interval is doubled, and doubled again
+    static final int LONG_STREAK = 2;
+    static final int VERY_LONG_STREAK = 4;
+
+    // Changed days in the last sync that make a forecast volatile
+    static final int VOLATILE_CHANGED_DAYS = 3;
+
+    static final long ACTIVE_WITHIN_MILLIS = 1000 * 60 * 60;
+    static final long IDLE_AFTER_MILLIS = 1000 * 60 * 60 * 12;
+
+    /**
+     * Everything the decision is based on, so it can be logged and recorded alongside it.
+     */
+    static class Inputs {
+        // Syncs in a row, up to and including the last one, that changed no days
+        int unchangedStreak;
+        // Days the last sync changed
+        int changedDays;
+        // Since the app was last in front of someone or a watch came in range; Long.MAX_VALUE
+        // if never
+        long millisSinceActive = Long.MAX_VALUE;
+        boolean deviceIdle;
+        boolean hasWidgets;
+
+        @Override
+        public String toString() {
+            return "unchangedStreak=" + unchangedStreak + " changedDays=" + changedDays
+                    + " minutesSinceActive=" + (millisSinceActive == Long.MAX_VALUE
+                            ? "never" : Long.toString(millisSinceActive / 60000))
+                    + " deviceIdle=" + deviceIdle + " hasWidgets=" + hasWidgets;
+        }
+    }
+
+    static int chooseIntervalSeconds(Inputs inputs) {
+        long interval = BASE_INTERVAL_SECONDS;
+
+        if (inputs.unchangedStreak >= VERY_LONG_STREAK) {
+            interval *= 4;
+        } else if (inputs.unchangedStreak >= LONG_STREAK) {
+            interval *= 2;
+        }
+
+        boolean recentlyActive = inputs.millisSinceActive < ACTIVE_WITHIN_MILLIS;
+        boolean unused = inputs.millisSinceActive >= IDLE_AFTER_MILLIS;
+        if ((inputs.deviceIdle || unused) && !inputs.hasWidgets && !recentlyActive) {
+            interval *= 2;
+        }
+
+        if (inputs.changedDays >= VOLATILE_CHANGED_DAYS) {
+            interval /= 2;
+        }
+
+        if (recentlyActive) {
+            interval = Math.min(interval, BASE_INTERVAL_SECONDS);
+            if (inputs.changedDays > 0) {
+                interval /= 2;
+            }
+        }
+
+        return (int) Math.max(MIN_INTERVAL_SECONDS, Math.min(MAX_INTERVAL_SECONDS, interval));
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.appwidget.AppWidgetManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.PowerManager;
+import android.util.Log;
+
+import com.example.android.sunshine.app.SunshineStats;
+import com.example.android.sunshine.app.widget.DetailWidgetProvider;
+import com.example.android.sunshine.app.widget.TodayWidgetProvider;
+
+/**
+ * Moves the periodic sync interval up and down after every sync, following
+ * {@link SyncIntervalPolicy}.  The periodic sync is only rescheduled when the interval actually
+ * changes.
+ *
+ * Anything that shows weather to someone calls {@link #noteActive} so the scheduler knows the
+ * forecast is being looked at.  Every decision is recorded in {@link SunshineStats}, along with
+ * how many periodic syncs woke the device, so the effect on network wakeups can be checked.
+ */
+public class SyncScheduler {
+    private static final String LOG_TAG = SyncScheduler.class.getSimpleName();
+
+    static final String PREFS_NAME = "sync_schedule";
+    private static final String KEY_INTERVAL = "interval_seconds";
+    private static final String KEY_UNCHANGED_STREAK = "unchanged_streak";
+    private static final String KEY_LAST_ACTIVE = "last_active";
+
+    public static final String SOURCE_APP = "app";
+    public static final String SOURCE_WATCH = "watch";
+    public static final String SOURCE_WIDGET = "widget";
+
+    // Reported through SunshineStats
+    public static final String STAT_PERIODIC_WAKEUPS = "scheduler.periodic_wakeups";
+    public static final String STAT_INTERVAL_MINUTES = "scheduler.interval_min";
+    public static final String STAT_LENGTHENED = "scheduler.lengthened";
+    public static final String STAT_SHORTENED = "scheduler.shortened";
+    public static final String STAT_UNCHANGED_STREAK = "scheduler.unchanged_streak";
+    public static final String STAT_CHANGED_DAYS = "scheduler.changed_days";
+    public static final String STAT_IDLE_DECISIONS = "scheduler.idle_decisions";
+    public static final String STAT_ACTIVE_DECISIONS = "scheduler.active_decisions";
+
+    /**
+     * Remembers that someone is looking at the weather right now.
+     * @param source Who, e.g. {@link #SOURCE_APP}; only used for logging
+     */
+    public static void noteActive(Context context, String source) {
+        Log.v(LOG_TAG, "Active: " + source);
+        getPrefs(context).edit().putLong(KEY_LAST_ACTIVE, System.currentTimeMillis()).apply();
+    }
+
+    /**
+     * @return the interval the periodic sync is currently scheduled with
+     */
+    public static int getIntervalSeconds(Context context) {
+        return getPrefs(context).getInt(KEY_INTERVAL, SyncIntervalPolicy.BASE_INTERVAL_SECONDS);
+    }
+
+    /**
+     * Called at the end of every sync with how the preferred location went.
+     *
+     * @param periodic Whether the sync was a periodic one, rather than one somebody asked for
+     */
+    static void onSyncFinished(Context context, @SunshineSyncAdapter.LocationStatus int status,
+                               int changedDays, boolean periodic) {
+        if (periodic) {
+            SunshineStats.increment(context, STAT_PERIODIC_WAKEUPS);
+        }
+        if (status != SunshineSyncAdapter.LOCATION_STATUS_OK) {
+            // A failed sync says nothing about how fast the forecast changes
+            return;
+        }
+
+        SharedPreferences prefs = getPrefs(context);
+        SyncIntervalPolicy.Inputs inputs = new SyncIntervalPolicy.Inputs();
+        inputs.unchangedStreak = changedDays == 0 ? prefs.getInt(KEY_UNCHANGED_STREAK, 0) + 1 : 0;
+        inputs.changedDays = changedDays;
+        long lastActive = prefs.getLong(KEY_LAST_ACTIVE, -1);
+        if (lastActive != -1) {
+            inputs.millisSinceActive = Math.max(0, System.currentTimeMillis() - lastActive);
+        }
+        inputs.deviceIdle = isDeviceIdle(context);
+        inputs.hasWidgets = hasWidgets(context);
+
+        int current = prefs.getInt(KEY_INTERVAL, SyncIntervalPolicy.BASE_INTERVAL_SECONDS);
+        int interval = SyncIntervalPolicy.chooseIntervalSeconds(inputs);
+
+        SunshineStats.record(context, STAT_UNCHANGED_STREAK, inputs.unchangedStreak);
+        SunshineStats.record(context, STAT_CHANGED_DAYS, changedDays);
+        if (inputs.millisSinceActive < SyncIntervalPolicy.ACTIVE_WITHIN_MILLIS) {
+            SunshineStats.increment(context, STAT_ACTIVE_DECISIONS);
+        } else if (inputs.deviceIdle
+                || inputs.millisSinceActive >= SyncIntervalPolicy.IDLE_AFTER_MILLIS) {
+            SunshineStats.increment(context, STAT_IDLE_DECISIONS);
+        }
+        SunshineStats.record(context, STAT_INTERVAL_MINUTES, interval / 60);
+
+        SharedPreferences.Editor editor = prefs.edit()
+                .putInt(KEY_UNCHANGED_STREAK, inputs.unchangedStreak);
+        if (interval != current) {
+            SunshineStats.increment(context, interval > current ? STAT_LENGTHENED : STAT_SHORTENED);
+            Log.d(LOG_TAG, "Sync interval " + current / 60 + " -> " + interval / 60
+                    + " minutes (" + inputs + ")");
+            SunshineSyncAdapter.configurePeriodicSync(context, interval, interval / 3);
+            editor.putInt(KEY_INTERVAL, interval);
+        }
+        editor.apply();
+    }
+
+    private static boolean isDeviceIdle(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            return isDeviceIdleMode(context);
+        }
+        return false;
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private static boolean isDeviceIdleMode(Context context) {
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        return powerManager.isDeviceIdleMode();
+    }
+
+    private static boolean hasWidgets(Context context) {
+        AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
+        return appWidgetManager.getAppWidgetIds(
+                new ComponentName(context, TodayWidgetProvider.class)).length > 0
+                || appWidgetManager.getAppWidgetIds(
+                new ComponentName(context, DetailWidgetProvider.class)).length > 0;
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -16,7 +16,10 @@ import com.bumptech.glide.Glide;
 import com.bumptech.glide.request.target.Target;
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.LocationCache;
 import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.sync.ForecastFreshness;
+import com.example.android.sunshine.app.sync.SyncScheduler;
 
 import java.util.concurrent.ExecutionException;
 
@@ -49,7 +52,10 @@ public class DetailWidgetRemoteViewsService extends RemoteViewsService {
 
             @Override
             public void onCreate() {
-                // Nothing to do
+                // The launcher only asks for the list when it has the widget to show; a sync's
+                // update reuses this factory and so doesn't count
+                SyncScheduler.noteActive(DetailWidgetRemoteViewsService.this,
+                        SyncScheduler.SOURCE_WIDGET);
             }
 
             @Override
@@ -62,14 +68,20 @@ public class DetailWidgetRemoteViewsService extends RemoteViewsService {
                 // data. Therefore we need to clear (and finally restore) the calling identity so
                 // that calls use our process and permission
                 final long identityToken = Binder.clearCallingIdentity();
-                String location = Utility.getPreferredLocation(DetailWidgetRemoteViewsService.this);
-                Uri weatherForLocationUri = WeatherContract.WeatherEntry
-                        .buildWeatherLocationWithStartDate(location, System.currentTimeMillis());
-                data = getContentResolver().query(weatherForLocationUri,
-                        FORECAST_COLUMNS,
-                        null,
-                        null,
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+                long locationId = LocationCache.getInstance(DetailWidgetRemoteViewsService.this)
+                        .getPreferredLocationId();
+                if (locationId == -1) {
+                    data = null;
+                } else {
+                    data = getContentResolver().query(WeatherContract.WeatherEntry.CONTENT_URI,
+                            FORECAST_COLUMNS,
+                            LocationCache.WEATHER_FROM_DATE_SELECTION,
+                            LocationCache.weatherSelectionArgs(locationId,
+                                    System.currentTimeMillis()),
+                            WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+                    ForecastFreshness.revalidateLocation(DetailWidgetRemoteViewsService.this,
+                            locationId, SyncScheduler.SOURCE_WIDGET);
+                }
                 Binder.restoreCallingIdentity(identityToken);
             }
 
@@ -22,7 +22,6 @@ import android.appwidget.AppWidgetManager;
 import android.content.ComponentName;
 import android.content.Intent;
 import android.database.Cursor;
-import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.util.DisplayMetrics;
@@ -32,7 +31,11 @@ import android.widget.RemoteViews;
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.LocationCache;
 import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.sync.ForecastFreshness;
+import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+import com.example.android.sunshine.app.sync.SyncScheduler;
 
 /**
  * IntentService which handles updating all Today widgets with the latest data
@@ -61,12 +64,22 @@ public class TodayWidgetIntentService extends IntentService {
         int[] appWidgetIds = appWidgetManager.getAppWidgetIds(new ComponentName(this,
                 TodayWidgetProvider.class));
 
+        // Placed, resized or brought back by the launcher, rather than updated by a sync, which
+        // would otherwise keep the scheduler thinking somebody is looking
+        if (appWidgetIds.length > 0 && (intent == null
+                || !SunshineSyncAdapter.ACTION_DATA_UPDATED.equals(intent.getAction()))) {
+            SyncScheduler.noteActive(this, SyncScheduler.SOURCE_WIDGET);
+        }
+
         // Get today's data from the ContentProvider
-        String location = Utility.getPreferredLocation(this);
-        Uri weatherForLocationUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
-                location, System.currentTimeMillis());
-        Cursor data = getContentResolver().query(weatherForLocationUri, FORECAST_COLUMNS, null,
-                null, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        long locationId = LocationCache.getInstance(this).getPreferredLocationId();
+        if (locationId == -1) {
+            return;
+        }
+        Cursor data = getContentResolver().query(WeatherContract.WeatherEntry.CONTENT_URI,
+                FORECAST_COLUMNS, LocationCache.WEATHER_FROM_DATE_SELECTION,
+                LocationCache.weatherSelectionArgs(locationId, System.currentTimeMillis()),
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
         if (data == null) {
             return;
         }
@@ -119,6 +132,9 @@ public class TodayWidgetIntentService extends IntentService {
             // Tell the AppWidgetManager to perform an update on the current app widget
             appWidgetManager.updateAppWidget(appWidgetId, views);
         }
+
+        // The widgets show what is stored; if that is old, a sync will update them again
+        ForecastFreshness.revalidateLocation(this, locationId, SyncScheduler.SOURCE_WIDGET);
     }
 
     private int getWidgetWidth(AppWidgetManager appWidgetManager, int appWidgetId) {
@@ -0,0 +1,133 @@
+package com.example.android.sunshine.app.sync;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+    private static final long NOW = 1000000000L;
+
+    private static CircuitBreaker newBreaker() {
+        return new CircuitBreaker(new Random(42));
+    }
+
+    private static void failUntilOpen(CircuitBreaker breaker, long now) {
+        for (int i = 0; i < CircuitBreaker.FAILURE_THRESHOLD; i++) {
+            assertTrue(breaker.allowRequest(now));
+            breaker.onFailure(now);
+        }
+    }
+
+    @Test
+    public void staysClosedBelowThreshold() throws Exception {
+        CircuitBreaker breaker = newBreaker();
+        for (int i = 0; i < CircuitBreaker.FAILURE_THRESHOLD - 1; i++) {
+            breaker.onFailure(NOW);
+        }
+        assertEquals(CircuitBreaker.STATE_CLOSED, breaker.state);
+        assertTrue(breaker.allowRequest(NOW));
+
+        // A success in between starts the count over
+        breaker.onSuccess();
+        breaker.onFailure(NOW);
+        assertEquals(CircuitBreaker.STATE_CLOSED, breaker.state);
+    }
+
+    @Test
+    public void opensAtThresholdAndRejects() throws Exception {
+        CircuitBreaker breaker = newBreaker();
+        failUntilOpen(breaker, NOW);
+
+        assertEquals(CircuitBreaker.STATE_OPEN, breaker.state);
+        assertTrue(breaker.isOpen(NOW));
+        assertFalse(breaker.allowRequest(NOW + 1000));
+    }
+
+    @Test
+    public void backoffHasJitterWithinBounds() throws Exception {
+        CircuitBreaker breaker = newBreaker();
+        failUntilOpen(breaker, NOW);
+
+        long backoff = breaker.retryAt - NOW;
+        assertTrue(backoff >= CircuitBreaker.BASE_BACKOFF_MILLIS * (1 - CircuitBreaker.JITTER_FRACTION));
+        assertTrue(backoff <= CircuitBreaker.BASE_BACKOFF_MILLIS * (1 + CircuitBreaker.JITTER_FRACTION));
+    }
+
+    @Test
+    public void halfOpenLetsOneProbeThrough() throws Exception {
+        CircuitBreaker breaker = newBreaker();
+        failUntilOpen(breaker, NOW);
+        long later = breaker.retryAt;
+
+        assertTrue("Backoff over, a probe should go out", breaker.allowRequest(later));
+        assertEquals(CircuitBreaker.STATE_HALF_OPEN, breaker.state);
+        assertFalse("Only one probe at a time", breaker.allowRequest(later + 1));
+        assertTrue(breaker.isOpen(later + 1));
+
+        // A probe that never reports back doesn't hold the breaker forever
+        assertTrue(breaker.allowRequest(later + CircuitBreaker.PROBE_TIMEOUT_MILLIS));
+    }
+
+    @Test
+    public void probeNowCutsBackoffShort() throws Exception {
+        CircuitBreaker breaker = newBreaker();
+        failUntilOpen(breaker, NOW);
+        assertFalse(breaker.allowRequest(NOW + 1000));
+
+        breaker.probeNow(NOW + 1000);
+        assertFalse(breaker.isOpen(NOW + 1000));
+        assertTrue(breaker.allowRequest(NOW + 1000));
+        assertEquals(CircuitBreaker.STATE_HALF_OPEN, breaker.state);
+
+        // Even with a probe already out
+        breaker.probeNow(NOW + 2000);
+        assertTrue(breaker.allowRequest(NOW + 2000));
+    }
+
+    @Test
+    public void probeNowLeavesClosedBreakerAlone() throws Exception {
+        CircuitBreaker breaker = newBreaker();
+        breaker.onFailure(NOW);
+        breaker.probeNow(NOW);
+
+        assertEquals(CircuitBreaker.STATE_CLOSED, breaker.state);
+        assertEquals(1, breaker.failures);
+        assertEquals(0, breaker.retryAt);
+    }
+
+    @Test
+    public void successfulProbeCloses() throws Exception {
+        CircuitBreaker breaker = newBreaker();
+        failUntilOpen(breaker, NOW);
+        breaker.allowRequest(breaker.retryAt);
+        breaker.onSuccess();
+
+        assertEquals(CircuitBreaker.STATE_CLOSED, breaker.state);
+        assertEquals(0, breaker.openCount);
+        assertEquals(CircuitBreaker.BASE_BACKOFF_MILLIS, breaker.nextBackoffMillis());
+    }
+
+    @Test
+    public void failedProbeBacksOffLonger() throws Exception {
+        CircuitBreaker breaker = newBreaker();
+        failUntilOpen(breaker, NOW);
+
+        long previousBackoff = CircuitBreaker.BASE_BACKOFF_MILLIS;
+        for (int i = 0; i < 10; i++) {
+            long probeAt = breaker.retryAt;
+            assertTrue(breaker.allowRequest(probeAt));
+            breaker.onFailure(probeAt);
+            assertEquals(CircuitBreaker.STATE_OPEN, breaker.state);
+
+            long backoff = Math.min(previousBackoff * 2, CircuitBreaker.MAX_BACKOFF_MILLIS);
+            long actual = breaker.retryAt - probeAt;
+            assertTrue(actual >= backoff * (1 - CircuitBreaker.JITTER_FRACTION));
+            assertTrue(actual <= backoff * (1 + CircuitBreaker.JITTER_FRACTION));
+            previousBackoff = backoff;
+        }
+        assertEquals(CircuitBreaker.MAX_BACKOFF_MILLIS, breaker.nextBackoffMillis());
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.android.sunshine.app.sync;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class NetworkBatchPolicyTest {
+
+    private static final long NOW = 1419033600000L;
+    private static final long HOUR_MILLIS = 1000 * 60 * 60;
+
+    @Test
+    public void syncTakesWorkAlongOnUnmeteredNetworks() throws Exception {
+        assertTrue(NetworkBatchPolicy.shouldRunWithSync(true, NOW + 4 * HOUR_MILLIS, NOW));
+        assertFalse(NetworkBatchPolicy.shouldRunWithSync(false, NOW + 4 * HOUR_MILLIS, NOW));
+    }
+
+    @Test
+    public void syncTakesWorkAlongOnAnyNetworkCloseToItsDeadline() throws Exception {
+        long deadline = NOW + NetworkBatchPolicy.DEADLINE_FLEX_MILLIS;
+        assertTrue(NetworkBatchPolicy.shouldRunWithSync(false, deadline, NOW));
+        // Overdue, e.g. after the device was off
+        assertTrue(NetworkBatchPolicy.shouldRunWithSync(false, NOW - HOUR_MILLIS, NOW));
+    }
+
+    @Test
+    public void opportunisticWindowRunsUntilTheDeadline() throws Exception {
+        long[] window = NetworkBatchPolicy.getOpportunisticWindowSeconds(
+                NOW + 4 * HOUR_MILLIS, NOW);
+        assertEquals(0, window[0]);
+        assertEquals(4 * 60 * 60, window[1]);
+    }
+
+    @Test
+    public void deadlineWindowIsTheFlexBeforeTheDeadline() throws Exception {
+        long[] window = NetworkBatchPolicy.getDeadlineWindowSeconds(NOW + 4 * HOUR_MILLIS, NOW);
+        assertEquals((4 * HOUR_MILLIS - NetworkBatchPolicy.DEADLINE_FLEX_MILLIS) / 1000,
+                window[0]);
+        assertEquals(4 * 60 * 60, window[1]);
+    }
+
+    @Test
+    public void windowsStayValidPastTheDeadline() throws Exception {
+        long[] deadline = NetworkBatchPolicy.getDeadlineWindowSeconds(NOW - HOUR_MILLIS, NOW);
+        assertEquals(0, deadline[0]);
+        assertTrue(deadline[1] > deadline[0]);
+
+        long[] opportunistic =
+                NetworkBatchPolicy.getOpportunisticWindowSeconds(NOW - HOUR_MILLIS, NOW);
+        assertTrue(opportunistic[1] > opportunistic[0]);
+    }
+
+    @Test
+    public void radioUsesWithinItsTailShareAWakeup() throws Exception {
+        assertTrue(NetworkBatchPolicy.isWakeup(-1, NOW));
+        assertFalse(NetworkBatchPolicy.isWakeup(NOW - 1000, NOW));
+        assertTrue(NetworkBatchPolicy.isWakeup(NOW - NetworkBatchPolicy.RADIO_TAIL_MILLIS, NOW));
+        // The clock was turned back
+        assertTrue(NetworkBatchPolicy.isWakeup(NOW + HOUR_MILLIS, NOW));
+    }
+
+    @Test
+    public void wakeupsAreCountedPerDay() throws Exception {
+        assertEquals(NetworkBatchPolicy.getDay(NOW),
+                NetworkBatchPolicy.getDay(NOW + NetworkBatchPolicy.DAY_MILLIS - 1));
+        assertEquals(NetworkBatchPolicy.getDay(NOW) + 1,
+                NetworkBatchPolicy.getDay(NOW + NetworkBatchPolicy.DAY_MILLIS));
+    }
+}
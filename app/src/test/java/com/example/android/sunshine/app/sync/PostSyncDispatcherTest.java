@@ -0,0 +1,124 @@
+package com.example.android.sunshine.app.sync;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class PostSyncDispatcherTest {
+
+    private static PostSyncDispatcher.Consumer sleeper(String name, final long sleepMillis,
+                                                       long timeoutMillis) {
+        return new PostSyncDispatcher.Consumer(name, timeoutMillis) {
+            @Override
+            void run() throws Exception {
+                Thread.sleep(sleepMillis);
+            }
+        };
+    }
+
+    private static List<PostSyncDispatcher.Outcome> dispatchAndWait(
+            List<PostSyncDispatcher.Consumer> consumers) throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            final CountDownLatch done = new CountDownLatch(1);
+            final AtomicReference<List<PostSyncDispatcher.Outcome>> result =
+                    new AtomicReference<List<PostSyncDispatcher.Outcome>>();
+            new PostSyncDispatcher(executor).dispatch(consumers,
+                    new PostSyncDispatcher.Listener() {
+                        @Override
+                        public void onDispatched(List<PostSyncDispatcher.Outcome> outcomes) {
+                            result.set(outcomes);
+                            done.countDown();
+                        }
+                    });
+            assertTrue("Listener never called", done.await(5, TimeUnit.SECONDS));
+            return result.get();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void dispatchReturnsImmediately() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        List<PostSyncDispatcher.Consumer> consumers = new ArrayList<PostSyncDispatcher.Consumer>();
+        consumers.add(sleeper("slow", 500, 1000));
+
+        long start = System.nanoTime();
+        new PostSyncDispatcher(executor).dispatch(consumers, new PostSyncDispatcher.Listener() {
+            @Override
+            public void onDispatched(List<PostSyncDispatcher.Outcome> outcomes) {
+            }
+        });
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 200);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void consumersRunConcurrently() throws Exception {
+        List<PostSyncDispatcher.Consumer> consumers = new ArrayList<PostSyncDispatcher.Consumer>();
+        for (int i = 0; i < 4; i++) {
+            consumers.add(sleeper("consumer" + i, 300, 2000));
+        }
+
+        long start = System.nanoTime();
+        List<PostSyncDispatcher.Outcome> outcomes = dispatchAndWait(consumers);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("Took " + elapsed + "ms, consumers ran one after another", elapsed < 4 * 300);
+        assertEquals(4, outcomes.size());
+        for (int i = 0; i < outcomes.size(); i++) {
+            PostSyncDispatcher.Outcome outcome = outcomes.get(i);
+            assertEquals("consumer" + i, outcome.name);
+            assertFalse(outcome.isTimedOut());
+            assertFalse(outcome.isFailed());
+            assertTrue(outcome.getLatencyMillis() >= 300);
+        }
+    }
+
+    @Test
+    public void slowConsumerTimesOutWithoutHoldingUpOthers() throws Exception {
+        List<PostSyncDispatcher.Consumer> consumers = new ArrayList<PostSyncDispatcher.Consumer>();
+        consumers.add(sleeper("stuck", 10000, 200));
+        consumers.add(sleeper("fast", 50, 2000));
+
+        long start = System.nanoTime();
+        List<PostSyncDispatcher.Outcome> outcomes = dispatchAndWait(consumers);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("Took " + elapsed + "ms", elapsed < 2000);
+        assertTrue(outcomes.get(0).isTimedOut());
+        assertTrue(outcomes.get(0).getLatencyMillis() >= 200);
+        assertFalse(outcomes.get(1).isTimedOut());
+        assertTrue(outcomes.get(1).getLatencyMillis() < 200);
+    }
+
+    @Test
+    public void failingConsumerIsReported() throws Exception {
+        final IllegalStateException error = new IllegalStateException("broken");
+        List<PostSyncDispatcher.Consumer> consumers = new ArrayList<PostSyncDispatcher.Consumer>();
+        consumers.add(new PostSyncDispatcher.Consumer("broken", 1000) {
+            @Override
+            void run() throws Exception {
+                throw error;
+            }
+        });
+        consumers.add(sleeper("fine", 10, 1000));
+
+        List<PostSyncDispatcher.Outcome> outcomes = dispatchAndWait(consumers);
+
+        assertTrue(outcomes.get(0).isFailed());
+        assertSame("The cause should be kept for the log", error, outcomes.get(0).getError());
+        assertFalse(outcomes.get(0).isTimedOut());
+        assertFalse(outcomes.get(1).isFailed());
+        assertNull(outcomes.get(1).getError());
+    }
+}
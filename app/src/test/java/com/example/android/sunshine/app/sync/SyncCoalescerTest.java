@@ -0,0 +1,89 @@
+package com.example.android.sunshine.app.sync;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SyncCoalescerTest {
+
+    private static final long NOW = 1000000000L;
+
+    @Test
+    public void burstWithinWindowExecutesOnce() throws Exception {
+        SyncCoalescer coalescer = new SyncCoalescer();
+        assertEquals(SyncCoalescer.EXECUTE, coalescer.onRequest(NOW, false));
+        for (int i = 1; i < 10; i++) {
+            assertEquals(SyncCoalescer.MERGED, coalescer.onRequest(NOW + i * 100, false));
+        }
+        // Even a forced one: the requested sync hasn't read the settings yet
+        assertEquals(SyncCoalescer.MERGED, coalescer.onRequest(NOW + 1000, true));
+    }
+
+    @Test
+    public void executesAgainAfterWindow() throws Exception {
+        SyncCoalescer coalescer = new SyncCoalescer();
+        assertEquals(SyncCoalescer.EXECUTE, coalescer.onRequest(NOW, false));
+        // The framework never ran it, e.g. no network; ask again
+        assertEquals(SyncCoalescer.EXECUTE,
+                coalescer.onRequest(NOW + SyncCoalescer.MERGE_WINDOW_MILLIS, false));
+    }
+
+    @Test
+    public void attachesToRunningSync() throws Exception {
+        SyncCoalescer coalescer = new SyncCoalescer();
+        coalescer.onRequest(NOW, false);
+        coalescer.onSyncStarted(NOW + 100);
+        assertEquals(SyncCoalescer.ATTACHED, coalescer.onRequest(NOW + 200, false));
+        assertFalse(coalescer.onSyncFinished(NOW + 300, true));
+    }
+
+    @Test
+    public void forcedRequestDuringSyncQueuesOneRerun() throws Exception {
+        SyncCoalescer coalescer = new SyncCoalescer();
+        coalescer.onSyncStarted(NOW);
+        assertEquals(SyncCoalescer.QUEUED, coalescer.onRequest(NOW + 100, true));
+        assertEquals(SyncCoalescer.QUEUED, coalescer.onRequest(NOW + 200, true));
+        assertEquals(SyncCoalescer.ATTACHED, coalescer.onRequest(NOW + 300, false));
+
+        assertTrue(coalescer.onSyncFinished(NOW + 400, true));
+        // The rerun is pending, so requests until it starts merge into it
+        assertEquals(SyncCoalescer.MERGED, coalescer.onRequest(NOW + 500, true));
+
+        coalescer.onSyncStarted(NOW + 600);
+        assertFalse(coalescer.onSyncFinished(NOW + 700, true));
+    }
+
+    @Test
+    public void freshDataAnswersUnlessForced() throws Exception {
+        SyncCoalescer coalescer = new SyncCoalescer();
+        coalescer.onSyncStarted(NOW);
+        coalescer.onSyncFinished(NOW, true);
+
+        long later = NOW + SyncCoalescer.MERGE_WINDOW_MILLIS;
+        assertEquals(SyncCoalescer.FRESH, coalescer.onRequest(later, false));
+        assertEquals(SyncCoalescer.EXECUTE, coalescer.onRequest(later, true));
+
+        SyncCoalescer stale = new SyncCoalescer();
+        stale.onSyncStarted(NOW);
+        stale.onSyncFinished(NOW, true);
+        assertEquals(SyncCoalescer.EXECUTE,
+                stale.onRequest(NOW + SyncCoalescer.MIN_FRESH_MILLIS, false));
+    }
+
+    @Test
+    public void failedSyncDoesNotCountAsFresh() throws Exception {
+        SyncCoalescer coalescer = new SyncCoalescer();
+        coalescer.onSyncStarted(NOW);
+        coalescer.onSyncFinished(NOW, false);
+        assertEquals(SyncCoalescer.EXECUTE, coalescer.onRequest(NOW + 100, false));
+    }
+
+    @Test
+    public void runningSyncExpires() throws Exception {
+        SyncCoalescer coalescer = new SyncCoalescer();
+        coalescer.onSyncStarted(NOW);
+        // It never reported back
+        assertEquals(SyncCoalescer.EXECUTE,
+                coalescer.onRequest(NOW + SyncCoalescer.IN_FLIGHT_EXPIRY_MILLIS, false));
+    }
+}
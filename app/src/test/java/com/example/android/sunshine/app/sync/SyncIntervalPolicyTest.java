@@ -0,0 +1,79 @@
+package com.example.android.sunshine.app.sync;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SyncIntervalPolicyTest {
+
+    private static final long HOUR_MILLIS = 1000 * 60 * 60;
+
+    private static SyncIntervalPolicy.Inputs inputs(int unchangedStreak, int changedDays,
+                                                    long millisSinceActive) {
+        SyncIntervalPolicy.Inputs inputs = new SyncIntervalPolicy.Inputs();
+        inputs.unchangedStreak = unchangedStreak;
+        inputs.changedDays = changedDays;
+        inputs.millisSinceActive = millisSinceActive;
+        return inputs;
+    }
+
+    @Test
+    public void ordinarySyncKeepsBaseInterval() throws Exception {
+        assertEquals(SyncIntervalPolicy.BASE_INTERVAL_SECONDS,
+                SyncIntervalPolicy.chooseIntervalSeconds(inputs(0, 1, 2 * HOUR_MILLIS)));
+    }
+
+    @Test
+    public void unchangedSyncsLengthenInterval() throws Exception {
+        int one = SyncIntervalPolicy.chooseIntervalSeconds(inputs(1, 0, 2 * HOUR_MILLIS));
+        int two = SyncIntervalPolicy.chooseIntervalSeconds(inputs(2, 0, 2 * HOUR_MILLIS));
+        int four = SyncIntervalPolicy.chooseIntervalSeconds(inputs(4, 0, 2 * HOUR_MILLIS));
+
+        assertEquals(SyncIntervalPolicy.BASE_INTERVAL_SECONDS, one);
+        assertEquals(SyncIntervalPolicy.BASE_INTERVAL_SECONDS * 2, two);
+        assertEquals(SyncIntervalPolicy.BASE_INTERVAL_SECONDS * 4, four);
+    }
+
+    @Test
+    public void idleDeviceLengthensUnlessWidgetsShowWeather() throws Exception {
+        SyncIntervalPolicy.Inputs idle = inputs(0, 1, Long.MAX_VALUE);
+        assertEquals(SyncIntervalPolicy.BASE_INTERVAL_SECONDS * 2,
+                SyncIntervalPolicy.chooseIntervalSeconds(idle));
+
+        idle.hasWidgets = true;
+        assertEquals(SyncIntervalPolicy.BASE_INTERVAL_SECONDS,
+                SyncIntervalPolicy.chooseIntervalSeconds(idle));
+
+        SyncIntervalPolicy.Inputs dozing = inputs(0, 1, 2 * HOUR_MILLIS);
+        dozing.deviceIdle = true;
+        assertEquals(SyncIntervalPolicy.BASE_INTERVAL_SECONDS * 2,
+                SyncIntervalPolicy.chooseIntervalSeconds(dozing));
+    }
+
+    @Test
+    public void volatileForecastShortensInterval() throws Exception {
+        assertEquals(SyncIntervalPolicy.BASE_INTERVAL_SECONDS / 2,
+                SyncIntervalPolicy.chooseIntervalSeconds(inputs(0,
+                        SyncIntervalPolicy.VOLATILE_CHANGED_DAYS, 2 * HOUR_MILLIS)));
+    }
+
+    @Test
+    public void recentUseCapsAndShortensInterval() throws Exception {
+        // Unchanged data would otherwise stretch the interval, but someone is looking
+        assertEquals(SyncIntervalPolicy.BASE_INTERVAL_SECONDS,
+                SyncIntervalPolicy.chooseIntervalSeconds(inputs(4, 0, 0)));
+        assertEquals(SyncIntervalPolicy.BASE_INTERVAL_SECONDS / 2,
+                SyncIntervalPolicy.chooseIntervalSeconds(inputs(0, 1, 0)));
+    }
+
+    @Test
+    public void intervalStaysWithinBounds() throws Exception {
+        SyncIntervalPolicy.Inputs longest = inputs(100, 0, Long.MAX_VALUE);
+        longest.deviceIdle = true;
+        assertEquals(SyncIntervalPolicy.MAX_INTERVAL_SECONDS,
+                SyncIntervalPolicy.chooseIntervalSeconds(longest));
+
+        assertEquals(SyncIntervalPolicy.MIN_INTERVAL_SECONDS,
+                SyncIntervalPolicy.chooseIntervalSeconds(inputs(0, 14, 0)));
+    }
+}